@@ -0,0 +1,371 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Streaming minimum, maximum, mean and variance of every numeric attribute.
+ * <p>
+ * Each row is added in a single pass, mean and variance are updated with Welford's algorithm. Two accumulators over
+ * disjoint rows can be merged, so partitions of the training data are summarized in parallel and rows appended later
+ * are added without rescanning the model. Statistics are kept per attribute index, so they stay valid if the store
+ * reorders its numeric block. Missing values (NaN) are ignored.
+ * <p>
+ * Windowed statistics additionally support removing the oldest row. They keep a monotonic queue of the candidates
+ * for the minimum and the maximum of every attribute, so the bounds of a sliding window are maintained in amortized
+ * constant time per row without rescanning the window.
+ */
+public class AttributeStatistics implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final int[] attributes;
+	private final long[] count;
+	private final double[] min;
+	private final double[] max;
+	private final double[] mean;
+	private final double[] m2;
+	private final Extremes[] minima;
+	private final Extremes[] maxima;
+	private long added;
+	private long removed;
+	
+	/**
+	 * Creates empty statistics for the numeric attributes of the store
+	 *
+	 * @param store the training data
+	 */
+	public AttributeStatistics(InstanceStore store) {
+		this(store, false);
+	}
+	
+	/**
+	 * Creates empty statistics for the numeric attributes of the store
+	 *
+	 * @param store    the training data
+	 * @param windowed true to support {@link #removeOldest(InstanceStore, int)}
+	 */
+	public AttributeStatistics(InstanceStore store, boolean windowed) {
+		int numAttributes = store.numAttributes();
+		this.attributes = new int[store.numNumeric()];
+		for (int p = 0; p < this.attributes.length; p++) {
+			this.attributes[p] = store.numericAttribute(p);
+		}
+		this.count = new long[numAttributes];
+		this.min = new double[numAttributes];
+		this.max = new double[numAttributes];
+		this.mean = new double[numAttributes];
+		this.m2 = new double[numAttributes];
+		Arrays.fill(this.min, Double.POSITIVE_INFINITY);
+		Arrays.fill(this.max, Double.NEGATIVE_INFINITY);
+		this.minima = windowed ? new Extremes[numAttributes] : null;
+		this.maxima = windowed ? new Extremes[numAttributes] : null;
+		if (windowed) {
+			for (int i : this.attributes) {
+				this.minima[i] = new Extremes(false);
+				this.maxima[i] = new Extremes(true);
+			}
+		}
+	}
+	
+	/**
+	 * Summarizes all rows of the store, partitions of the rows are processed in parallel
+	 *
+	 * @param store the training data
+	 * @return the statistics of all rows
+	 */
+	public static AttributeStatistics of(InstanceStore store) {
+		return of(store, false);
+	}
+	
+	/**
+	 * Summarizes all rows of the store, partitions of the rows are processed in parallel
+	 *
+	 * @param store    the training data
+	 * @param windowed true to support {@link #removeOldest(InstanceStore, int)}
+	 * @return the statistics of all rows
+	 */
+	public static AttributeStatistics of(InstanceStore store, boolean windowed) {
+		int partitions = Math.max(1, Math.min(4 * Runtime.getRuntime().availableProcessors(), store.size() / 1024));
+		int partitionSize = (store.size() + partitions - 1) / Math.max(1, partitions);
+		return IntStream.range(0, partitions).parallel()
+				.mapToObj(partition -> {
+					AttributeStatistics statistics = new AttributeStatistics(store, windowed);
+					int from = partition * partitionSize;
+					statistics.added = statistics.removed = Math.min(store.size(), from);
+					for (int row = from; row < Math.min(store.size(), from + partitionSize); row++) {
+						statistics.add(store, row);
+					}
+					return statistics;
+				})
+				.reduce((a, b) -> {
+					a.merge(b);
+					return a;
+				}).get();
+	}
+	
+	/**
+	 * Adds a stored row
+	 *
+	 * @param store the training data
+	 * @param row   index of the row
+	 */
+	public void add(InstanceStore store, int row) {
+		double[] block = store.numeric();
+		int offset = row * store.numNumeric();
+		long sequence = this.added++;
+		for (int p = 0; p < store.numNumeric(); p++) {
+			this.add(store.numericAttribute(p), block[offset + p], sequence);
+		}
+	}
+	
+	private void add(int attribute, double value, long sequence) {
+		if (Double.isNaN(value)) return;
+		long count = ++this.count[attribute];
+		double delta = value - this.mean[attribute];
+		this.mean[attribute] += delta / count;
+		this.m2[attribute] += delta * (value - this.mean[attribute]);
+		if (value < this.min[attribute]) this.min[attribute] = value;
+		if (value > this.max[attribute]) this.max[attribute] = value;
+		if (this.minima != null) {
+			this.minima[attribute].push(sequence, value);
+			this.maxima[attribute].push(sequence, value);
+		}
+	}
+	
+	/**
+	 * Removes a stored row which was added before. Mean and variance are updated in place, but the minimum and
+	 * maximum cannot be restored without the remaining rows.
+	 *
+	 * @param store the training data
+	 * @param row   index of the row
+	 * @return false if the row held a minimum or maximum, the statistics then have to be recomputed from the store
+	 */
+	public boolean remove(InstanceStore store, int row) {
+		if (this.minima != null) return false;
+		double[] block = store.numeric();
+		int offset = row * store.numNumeric();
+		boolean bounded = true;
+		for (int p = 0; p < store.numNumeric(); p++) {
+			int attribute = store.numericAttribute(p);
+			double value = block[offset + p];
+			if (Double.isNaN(value)) continue;
+			this.remove(attribute, value);
+			bounded &= value != this.min[attribute] && value != this.max[attribute];
+		}
+		return bounded;
+	}
+	
+	/**
+	 * Removes the oldest row still contained in windowed statistics, including its minima and maxima
+	 *
+	 * @param store the training data
+	 * @param row   index of the oldest row
+	 */
+	public void removeOldest(InstanceStore store, int row) {
+		if (this.minima == null) throw new IllegalStateException("Statistics are not windowed");
+		double[] block = store.numeric();
+		int offset = row * store.numNumeric();
+		long sequence = this.removed++;
+		for (int p = 0; p < store.numNumeric(); p++) {
+			int attribute = store.numericAttribute(p);
+			double value = block[offset + p];
+			if (Double.isNaN(value)) continue;
+			this.remove(attribute, value);
+			this.minima[attribute].evict(sequence);
+			this.maxima[attribute].evict(sequence);
+			this.min[attribute] = this.minima[attribute].isEmpty() ? Double.POSITIVE_INFINITY : this.minima[attribute].peek();
+			this.max[attribute] = this.maxima[attribute].isEmpty() ? Double.NEGATIVE_INFINITY : this.maxima[attribute].peek();
+		}
+	}
+	
+	private void remove(int attribute, double value) {
+		long count = --this.count[attribute];
+		if (count == 0) {
+			this.mean[attribute] = 0;
+			this.m2[attribute] = 0;
+		} else {
+			double mean = this.mean[attribute] - (value - this.mean[attribute]) / count;
+			this.m2[attribute] = Math.max(0, this.m2[attribute] - (value - mean) * (value - this.mean[attribute]));
+			this.mean[attribute] = mean;
+		}
+	}
+	
+	/**
+	 * Adds the rows summarized by other statistics of the same schema
+	 *
+	 * @param other statistics over rows not contained in these statistics, for windowed statistics over rows added
+	 *              after the rows of these statistics
+	 */
+	public void merge(AttributeStatistics other) {
+		this.added = Math.max(this.added, other.added);
+		for (int i : this.attributes) {
+			if (this.minima != null) {
+				this.minima[i].append(other.minima[i]);
+				this.maxima[i].append(other.maxima[i]);
+			}
+			if (other.count[i] == 0) continue;
+			long count = this.count[i] + other.count[i];
+			double delta = other.mean[i] - this.mean[i];
+			this.mean[i] += delta * other.count[i] / count;
+			this.m2[i] += other.m2[i] + delta * delta * this.count[i] * other.count[i] / count;
+			this.count[i] = count;
+			this.min[i] = Math.min(this.min[i], other.min[i]);
+			this.max[i] = Math.max(this.max[i], other.max[i]);
+		}
+	}
+	
+	/**
+	 * Writes the summary of every attribute by its index, the candidates for the bounds of a window are not written
+	 *
+	 * @param out the stream to write to
+	 * @throws IOException if the stream cannot be written
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeLong(this.added);
+		out.writeLong(this.removed);
+		for (int i = 0; i < this.count.length; i++) {
+			out.writeLong(this.count[i]);
+			out.writeDouble(this.min[i]);
+			out.writeDouble(this.max[i]);
+			out.writeDouble(this.mean[i]);
+			out.writeDouble(this.m2[i]);
+		}
+	}
+	
+	/**
+	 * Reads statistics written by {@link #write(DataOutput)}, they do not support
+	 * {@link #removeOldest(InstanceStore, int)}
+	 *
+	 * @param store the training data of the same schema
+	 * @param in    the stream to read from
+	 * @return the statistics
+	 * @throws IOException if the stream cannot be read
+	 */
+	static AttributeStatistics read(InstanceStore store, DataInput in) throws IOException {
+		AttributeStatistics statistics = new AttributeStatistics(store, false);
+		statistics.added = in.readLong();
+		statistics.removed = in.readLong();
+		for (int i = 0; i < statistics.count.length; i++) {
+			statistics.count[i] = in.readLong();
+			statistics.min[i] = in.readDouble();
+			statistics.max[i] = in.readDouble();
+			statistics.mean[i] = in.readDouble();
+			statistics.m2[i] = in.readDouble();
+		}
+		return statistics;
+	}
+	
+	/**
+	 * @return true if {@link #removeOldest(InstanceStore, int)} is supported
+	 */
+	public boolean isWindowed() {
+		return minima != null;
+	}
+	
+	/**
+	 * @param attribute a numeric attribute index
+	 * @return the amount of known values
+	 */
+	public long getCount(int attribute) {
+		return count[attribute];
+	}
+	
+	/**
+	 * @param attribute a numeric attribute index
+	 * @return the smallest value, positive infinity if no value is known
+	 */
+	public double getMin(int attribute) {
+		return min[attribute];
+	}
+	
+	/**
+	 * @param attribute a numeric attribute index
+	 * @return the largest value, negative infinity if no value is known
+	 */
+	public double getMax(int attribute) {
+		return max[attribute];
+	}
+	
+	/**
+	 * @param attribute a numeric attribute index
+	 * @return the mean value
+	 */
+	public double getMean(int attribute) {
+		return mean[attribute];
+	}
+	
+	/**
+	 * @param attribute a numeric attribute index
+	 * @return the population variance
+	 */
+	public double getVariance(int attribute) {
+		return count[attribute] == 0 ? 0 : m2[attribute] / count[attribute];
+	}
+	
+	/**
+	 * Monotonic queue of the values which may still become the minimum or maximum of the window: a value is dropped
+	 * as soon as a newer value is at least as extreme, because the newer value leaves the window later.
+	 */
+	private static class Extremes implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private final boolean maximum;
+		private long[] sequences = new long[16];
+		private double[] values = new double[16];
+		private int head, size;
+		
+		Extremes(boolean maximum) {
+			this.maximum = maximum;
+		}
+		
+		void push(long sequence, double value) {
+			while (this.size > 0) {
+				double last = this.values[(this.head + this.size - 1) % this.values.length];
+				if (this.maximum ? last > value : last < value) break;
+				this.size--;
+			}
+			if (this.size == this.values.length) this.grow();
+			int tail = (this.head + this.size++) % this.values.length;
+			this.sequences[tail] = sequence;
+			this.values[tail] = value;
+		}
+		
+		void evict(long sequence) {
+			if (this.size > 0 && this.sequences[this.head] == sequence) {
+				this.head = (this.head + 1) % this.values.length;
+				this.size--;
+			}
+		}
+		
+		void append(Extremes newer) {
+			for (int i = 0; i < newer.size; i++) {
+				int index = (newer.head + i) % newer.values.length;
+				this.push(newer.sequences[index], newer.values[index]);
+			}
+		}
+		
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+		
+		double peek() {
+			return this.values[this.head];
+		}
+		
+		private void grow() {
+			long[] sequences = new long[2 * this.values.length];
+			double[] values = new double[2 * this.values.length];
+			for (int i = 0; i < this.size; i++) {
+				sequences[i] = this.sequences[(this.head + i) % this.values.length];
+				values[i] = this.values[(this.head + i) % this.values.length];
+			}
+			this.sequences = sequences;
+			this.values = values;
+			this.head = 0;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package tud.ke.ml.project.classifier;
+
+import tud.ke.ml.project.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Heap for approximate strategies which additionally remembers every row offered with its distance.
+ * <p>
+ * An approximate strategy never looks at most of the training rows, so a tie behind the k-th nearest neighbor is
+ * decided over its candidates only, see {@link #sorted()}, instead of over the whole training set.
+ */
+class CandidateHeap extends NeighborHeap {
+	private int[] candidateRows = new int[16];
+	private double[] candidateDistances = new double[16];
+	private int candidates;
+	
+	/**
+	 * @param capacity the amount of neighbors to keep (k)
+	 */
+	CandidateHeap(int capacity) {
+		super(capacity);
+	}
+	
+	@Override
+	public boolean offer(int row, double distance) {
+		if (this.candidates == this.candidateRows.length) {
+			this.candidateRows = Arrays.copyOf(this.candidateRows, 2 * this.candidates);
+			this.candidateDistances = Arrays.copyOf(this.candidateDistances, 2 * this.candidates);
+		}
+		this.candidateRows[this.candidates] = row;
+		this.candidateDistances[this.candidates++] = distance;
+		return super.offer(row, distance);
+	}
+	
+	@Override
+	public void clear() {
+		super.clear();
+		this.candidates = 0;
+	}
+	
+	/**
+	 * @return the row index and distance of every offered row, ordered by distance and row index like a stable sort of
+	 * the whole training set
+	 */
+	List<Pair<Integer, Double>> sorted() {
+		List<Pair<Integer, Double>> sorted = new ArrayList<>(this.candidates);
+		for (int i = 0; i < this.candidates; i++) {
+			sorted.add(new Pair<>(this.candidateRows[i], this.candidateDistances[i]));
+		}
+		sorted.sort(Comparator.<Pair<Integer, Double>, Double>comparing(Pair::getB).thenComparing(Pair::getA));
+		return sorted;
+	}
+}
@@ -0,0 +1,313 @@
+package tud.ke.ml.project.classifier;
+
+import weka.classifiers.lazy.keNN;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.stream.IntStream;
+
+/**
+ * Cross-validation of every metric, normalization, weighting and k up to a maximum on the training data of a learned
+ * {@link NearestNeighbor}.
+ * <p>
+ * The folds are never materialized as separate models. For every combination of metric and normalization one kernel
+ * and one index are built over all rows, and every row collects its nearest rows outside its own fold with a heap that
+ * masks the rows of the fold. All k and both weightings are scored from prefixes of that single neighbor list, so a
+ * complete sweep costs one search per row and distance instead of one model per fold and configuration. The
+ * normalization is computed on all rows instead of the training folds only, which is what makes the distances
+ * shareable between the folds.
+ */
+public class CrossValidation {
+	private static final int[] METRICS = {keNN.DIST_MANHATTAN, keNN.DIST_EUCLIDEAN};
+	/**
+	 * -1 for unnormalized distances
+	 */
+	private static final int[] SCALINGS = {-1, keNN.SCALE_RANGE, keNN.SCALE_ZSCORE};
+	
+	private final NearestNeighbor model;
+	private final int numFolds;
+	private final long seed;
+	private int maxK = 10;
+	
+	/**
+	 * @param model    a learned model, its search strategy and threads are used. An approximate strategy and the
+	 *                 KD-tree over numeric values off heap are replaced by a linear scan. Normalized copies of
+	 *                 off-heap values stay off heap and are released after every configuration.
+	 * @param numFolds the amount of folds
+	 * @param seed     the seed of the random assignment of the rows to the folds
+	 */
+	public CrossValidation(NearestNeighbor model, int numFolds, long seed) {
+		this.model = model;
+		this.numFolds = numFolds;
+		this.seed = seed;
+	}
+	
+	/**
+	 * Evaluates all configurations
+	 *
+	 * @return the accuracy of every combination of metric, normalization, weighting and k
+	 */
+	public List<Result> run() {
+		InstanceStore store = this.model.getStore();
+		int[] folds = this.folds();
+		int maxK = Math.max(1, Math.min(this.maxK, store.size() - 1));
+		
+		List<Result> results = new ArrayList<>();
+		for (int scaling : SCALINGS) {
+			double[][] normalization = scaling < 0 ? new double[2][] : this.model.normalizationScaling(scaling);
+			for (int metric : METRICS) {
+				long start = System.nanoTime();
+				DistanceKernel kernel = new DistanceKernel(store, metric, normalization[0], normalization[1]);
+				long[][] correct;
+				try {
+					correct = score(this.model, kernel, this.model.newExactSearch(kernel), null, folds, maxK);
+				} finally {
+					kernel.release();
+				}
+				long millis = (System.nanoTime() - start) / 1000000;
+				for (int weighting = 0; weighting < 2; weighting++) {
+					for (int k = 1; k <= maxK; k++) {
+						double accuracy = (double) correct[weighting][k - 1] / store.size();
+						results.add(new Result(metric, scaling, weighting == 1, k, accuracy, millis));
+					}
+				}
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Shuffles the rows and deals them to the folds class by class, so every fold gets about the same class
+	 * distribution. The rows are bucketed by class in one pass, so a numeric class with many distinct values costs no
+	 * more than a nominal one.
+	 *
+	 * @return the fold of every training row of the model, the same for every call
+	 */
+	public int[] folds() {
+		InstanceStore store = this.model.getStore();
+		if (store == null) throw new IllegalStateException("No model learned");
+		int size = store.size();
+		int[] order = IntStream.range(0, size).toArray();
+		Random random = new Random(this.seed);
+		for (int i = size - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int row = order[i];
+			order[i] = order[j];
+			order[j] = row;
+		}
+		int[] labels = store.labels();
+		int[] starts = new int[store.numClasses() + 1];
+		for (int row = 0; row < size; row++) {
+			starts[labels[row] + 1]++;
+		}
+		for (int label = 0; label < store.numClasses(); label++) {
+			starts[label + 1] += starts[label];
+		}
+		int[] folds = new int[size];
+		for (int row : order) {
+			folds[row] = starts[labels[row]]++ % this.numFolds;
+		}
+		return folds;
+	}
+	
+	/**
+	 * Classifies every row by its nearest rows of the other folds and counts for every k whether the unweighted and
+	 * the inverse-distance weighted vote are correct. The rows are evaluated in parallel on the threads of the model.
+	 *
+	 * @param model  the model providing the store and the threads
+	 * @param kernel the distance
+	 * @param search an index over the kernel
+	 * @param matrix the distances between the rows, used instead of the index if not null
+	 * @param folds  the fold of every row
+	 * @param maxK   the largest amount of neighbors
+	 * @return the amount of correctly classified rows, indexed by weighting (0 unweighted, 1 inverse distance) and
+	 * k - 1
+	 */
+	static long[][] score(NearestNeighbor model, DistanceKernel kernel, NeighborSearch search, DistanceMatrix matrix, int[] folds, int maxK) {
+		InstanceStore store = kernel.getStore();
+		int size = store.size();
+		int partitions = Math.max(1, Math.min(4 * Runtime.getRuntime().availableProcessors(), size / 256));
+		int partitionSize = (size + partitions - 1) / partitions;
+		Callable<long[][]> task = () -> IntStream.range(0, partitions).parallel()
+				.mapToObj(partition -> {
+					long[][] correct = new long[2][maxK];
+					Evaluation evaluation = new Evaluation(kernel, folds, maxK);
+					for (int row = partition * partitionSize; row < Math.min(size, (partition + 1) * partitionSize); row++) {
+						evaluation.score(row, search, matrix, correct);
+					}
+					return correct;
+				})
+				.reduce((a, b) -> {
+					for (int w = 0; w < a.length; w++) {
+						for (int k = 0; k < maxK; k++) {
+							a[w][k] += b[w][k];
+						}
+					}
+					return a;
+				}).get();
+		return model.execute(task);
+	}
+	
+	/**
+	 * Buffers of a partition of rows.
+	 */
+	private static class Evaluation {
+		private final DistanceKernel kernel;
+		private final InstanceStore store;
+		private final double[] numeric;
+		private final int[] codes;
+		private final long[] nominal;
+		private final double[] counts;
+		private final double[] weights;
+		/**
+		 * The class indices with a vote in {@link #counts} and {@link #weights}
+		 */
+		private final int[] voted;
+		private final FoldHeap heap;
+		
+		Evaluation(DistanceKernel kernel, int[] folds, int maxK) {
+			this.kernel = kernel;
+			this.store = kernel.getStore();
+			this.numeric = new double[this.store.numNumeric()];
+			this.codes = new int[this.store.numNominal()];
+			this.nominal = new long[kernel.packedLength()];
+			this.counts = new double[this.store.numClasses()];
+			this.weights = new double[this.store.numClasses()];
+			this.voted = new int[maxK];
+			this.heap = new FoldHeap(maxK, folds);
+		}
+		
+		void score(int row, NeighborSearch search, DistanceMatrix matrix, long[][] correct) {
+			this.heap.clear();
+			this.heap.fold = this.heap.folds[row];
+			if (matrix != null) {
+				for (int other = 0; other < matrix.size(); other++) {
+					this.heap.offer(other, matrix.distance(row, other));
+				}
+			} else {
+				int numNominal = this.store.numNominal();
+				this.kernel.row(row, this.numeric);
+				System.arraycopy(this.store.nominal(), row * numNominal, this.codes, 0, numNominal);
+				this.kernel.pack(this.codes, this.nominal);
+				search.search(this.kernel, this.numeric, this.nominal, this.heap);
+			}
+			
+			int[] labels = this.store.labels();
+			int numVoted = 0;
+			for (int i = 0, size = this.heap.sort(); i < size; i++) {
+				int label = labels[this.heap.row(i)];
+				if (this.counts[label] == 0) this.voted[numVoted++] = label;
+				this.counts[label]++;
+				this.weights[label] += 1 / (this.heap.distance(i) + 0.001);
+				if (NearestNeighbor.winner(this.counts, this.voted, numVoted) == labels[row]) correct[0][i]++;
+				if (NearestNeighbor.winner(this.weights, this.voted, numVoted) == labels[row]) correct[1][i]++;
+			}
+			for (int i = 0; i < numVoted; i++) {
+				this.counts[this.voted[i]] = 0;
+				this.weights[this.voted[i]] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Heap which ignores the rows of the fold of the current query.
+	 */
+	private static class FoldHeap extends NeighborHeap {
+		private final int[] folds;
+		private int fold;
+		
+		FoldHeap(int capacity, int[] folds) {
+			super(capacity);
+			this.folds = folds;
+		}
+		
+		@Override
+		public boolean offer(int row, double distance) {
+			return this.folds[row] != this.fold && super.offer(row, distance);
+		}
+	}
+	
+	/**
+	 * @return the largest amount of neighbors evaluated
+	 */
+	public int getMaxK() {
+		return maxK;
+	}
+	
+	/**
+	 * @param maxK the largest amount of neighbors evaluated, at most the amount of training rows minus one
+	 */
+	public void setMaxK(int maxK) {
+		this.maxK = maxK;
+	}
+	
+	/**
+	 * Accuracy of one configuration.
+	 */
+	public static class Result {
+		private final int metric;
+		private final int scalingMode;
+		private final boolean inverseWeighting;
+		private final int k;
+		private final double accuracy;
+		private final long millis;
+		
+		Result(int metric, int scalingMode, boolean inverseWeighting, int k, double accuracy, long millis) {
+			this.metric = metric;
+			this.scalingMode = scalingMode;
+			this.inverseWeighting = inverseWeighting;
+			this.k = k;
+			this.accuracy = accuracy;
+			this.millis = millis;
+		}
+		
+		/**
+		 * @return {@link keNN#DIST_MANHATTAN} or {@link keNN#DIST_EUCLIDEAN}
+		 */
+		public int getMetric() {
+			return metric;
+		}
+		
+		public boolean isNormalizing() {
+			return scalingMode >= 0;
+		}
+		
+		/**
+		 * @return {@link keNN#SCALE_RANGE} or {@link keNN#SCALE_ZSCORE}, -1 without normalization
+		 */
+		public int getScalingMode() {
+			return scalingMode;
+		}
+		
+		public boolean isInverseWeighting() {
+			return inverseWeighting;
+		}
+		
+		public int getK() {
+			return k;
+		}
+		
+		/**
+		 * @return the fraction of rows classified correctly by the rows of the other folds
+		 */
+		public double getAccuracy() {
+			return accuracy;
+		}
+		
+		/**
+		 * @return the time of the shared pass over all rows for the metric and the normalization of this
+		 * configuration, which also evaluated all other weightings and k
+		 */
+		public long getMillis() {
+			return millis;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%s, %s, %s, k = %d: %.4f (%d ms)", metric == keNN.DIST_EUCLIDEAN ? "euclidean" : "manhattan",
+					scalingMode < 0 ? "unnormalized" : scalingMode == keNN.SCALE_ZSCORE ? "z-score" : "range", inverseWeighting ? "inverse distance" : "unweighted", k, accuracy, millis);
+		}
+	}
+}
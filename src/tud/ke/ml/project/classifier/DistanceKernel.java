@@ -0,0 +1,577 @@
+package tud.ke.ml.project.classifier;
+
+import weka.classifiers.lazy.keNN;
+
+import java.io.Serializable;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Computes Manhattan and Euclidean distances on the primitive layout of an {@link InstanceStore}.
+ * <p>
+ * Numeric attributes contribute their (optionally normalized) difference, every nominal mismatch adds 1, counted on
+ * the {@link NominalBits} of the store. All search
+ * strategies use this class so that every strategy produces bit-identical distances.
+ * <p>
+ * If normalization is used, the kernel materializes the normalized numeric block once on construction. Queries have
+ * to be normalized once via {@link #normalize(double[])} before they are passed to any of the distance methods, which
+ * then work on {@link #values()} without any further conversion. Rows appended to the store are covered after
+ * {@link #append()}, rows evicted from its front are dropped via {@link #removeFirst(int)}.
+ * <p>
+ * After {@link #moveOffHeap()} the numeric block lives in an {@link OffHeapBlock} and the kernel can no longer be
+ * extended until {@link #moveOnHeap()}, the distances stay bit-identical.
+ */
+public class DistanceKernel implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Amount of independent accumulators of the numeric sum, 4 doubles fill one 256 bit register
+	 */
+	static final int LANES = 4;
+	
+	private final InstanceStore store;
+	private int metric;
+	private final double[] scaling;
+	private final double[] translation;
+	private double[] values;
+	private OffHeapBlock block;
+	private final NominalBits bits;
+	/**
+	 * Buffers of {@link #copy(int, int)}, created on first use, also after deserialization
+	 */
+	private transient ThreadLocal<double[]> copies;
+	private int size;
+	private int removed;
+	
+	/**
+	 * Creates a kernel over the current rows of the store. If the numeric block of the store is off heap, see
+	 * {@link InstanceStore#moveNumericOffHeap()}, the kernel reads it in place or normalizes it into a new off-heap
+	 * block, which is returned by {@link #release()}.
+	 *
+	 * @param store       the training data
+	 * @param metric      {@link keNN#DIST_MANHATTAN} or {@link keNN#DIST_EUCLIDEAN}
+	 * @param scaling     scaling factor per attribute, null if no normalization is used
+	 * @param translation translation per attribute, null if no normalization is used
+	 */
+	public DistanceKernel(InstanceStore store, int metric, double[] scaling, double[] translation) {
+		if (metric != keNN.DIST_MANHATTAN && metric != keNN.DIST_EUCLIDEAN) throw new UnknownError("Metric unknown");
+		this.store = store;
+		this.metric = metric;
+		this.scaling = byPosition(store, scaling);
+		this.translation = byPosition(store, translation);
+		OffHeapBlock numeric = store.numericBlock();
+		if (numeric == null) {
+			this.values = this.scaling == null ? store.numeric() : new double[store.size() * store.numNumeric()];
+			this.normalize(0, store.size());
+		} else {
+			this.block = this.scaling == null ? numeric : this.normalize(numeric);
+		}
+		this.bits = new NominalBits(store);
+		this.size = store.size();
+	}
+	
+	/**
+	 * Adopts the blocks of a kernel written by {@link ModelFile}, nothing is normalized or packed again
+	 *
+	 * @param store       the training data
+	 * @param metric      {@link keNN#DIST_MANHATTAN} or {@link keNN#DIST_EUCLIDEAN}
+	 * @param scaling     scaling factor per attribute, null if no normalization is used
+	 * @param translation translation per attribute, null if no normalization is used
+	 * @param block       the normalized numeric block, the numeric block of the store if no normalization is used
+	 * @param bits        the packed nominal block of the store
+	 */
+	DistanceKernel(InstanceStore store, int metric, double[] scaling, double[] translation, OffHeapBlock block, NominalBits bits) {
+		if (metric != keNN.DIST_MANHATTAN && metric != keNN.DIST_EUCLIDEAN) throw new UnknownError("Metric unknown");
+		this.store = store;
+		this.metric = metric;
+		this.scaling = byPosition(store, scaling);
+		this.translation = byPosition(store, translation);
+		this.block = block;
+		this.bits = bits;
+		this.size = store.size();
+	}
+	
+	/**
+	 * @return the per attribute values ordered like the numeric block of the store, null for null
+	 */
+	private static double[] byPosition(InstanceStore store, double[] values) {
+		if (values == null) return null;
+		double[] result = new double[store.numNumeric()];
+		for (int p = 0; p < result.length; p++) {
+			result[p] = values[store.numericAttribute(p)];
+		}
+		return result;
+	}
+	
+	/**
+	 * Extends the kernel by the rows appended to the store since the kernel was built or last extended. Fails if the
+	 * appended rows hold nominal values which were unknown when the kernel was built.
+	 *
+	 * @return false if the kernel has to be rebuilt instead
+	 */
+	public boolean append() {
+		if (this.block != null) throw new IllegalStateException("Numeric values off heap, the kernel cannot be extended");
+		if (!this.bits.append(this.store)) return false;
+		if (this.scaling == null) {
+			this.values = this.store.numeric();
+		} else if (this.values.length < this.store.size() * this.store.numNumeric()) {
+			this.values = Arrays.copyOf(this.values, Math.max(this.store.size(), 2 * this.size) * this.store.numNumeric());
+		}
+		this.normalize(this.size, this.store.size());
+		this.size = this.store.size();
+		return true;
+	}
+	
+	/**
+	 * Drops the oldest rows after the store removed them via {@link InstanceStore#remove(int, int)} from its front
+	 *
+	 * @param count the amount of rows removed from the front of the store
+	 */
+	public void removeFirst(int count) {
+		if (this.block != null) throw new IllegalStateException("Numeric values off heap, the kernel cannot be shrunk");
+		this.bits.removeFirst(count);
+		if (this.scaling == null) {
+			this.values = this.store.numeric();
+		} else {
+			int numNumeric = this.store.numNumeric();
+			System.arraycopy(this.values, count * numNumeric, this.values, 0, (this.size - count) * numNumeric);
+		}
+		this.size -= count;
+		this.removed += count;
+	}
+	
+	private void normalize(int from, int to) {
+		if (this.scaling == null) return;
+		double[] block = this.store.numeric();
+		int numNumeric = this.store.numNumeric();
+		for (int offset = from * numNumeric; offset < to * numNumeric; offset += numNumeric) {
+			for (int p = 0; p < numNumeric; p++) {
+				this.values[offset + p] = (block[offset + p] + this.translation[p]) * this.scaling[p];
+			}
+		}
+	}
+	
+	/**
+	 * @param numeric the off-heap numeric block of the store
+	 * @return a new off-heap block of the normalized values
+	 */
+	private OffHeapBlock normalize(OffHeapBlock numeric) {
+		OffHeapBlock block = OffHeapBlock.allocate(this.store.size(), this.store.numNumeric());
+		double[] row = new double[this.store.numNumeric()];
+		for (int r = 0; r < this.store.size(); r++) {
+			numeric.get(r, 1, row);
+			this.normalize(row);
+			block.put(r, row);
+		}
+		return block;
+	}
+	
+	/**
+	 * Normalizes the numeric values of an encoded instance in place, does nothing if no normalization is used
+	 *
+	 * @param numeric numeric values of the instance, see {@link InstanceStore#encode(java.util.List, double[], int[])}
+	 */
+	public void normalize(double[] numeric) {
+		if (this.scaling == null) return;
+		for (int p = 0; p < numeric.length; p++) {
+			numeric[p] = (numeric[p] + this.translation[p]) * this.scaling[p];
+		}
+	}
+	
+	/**
+	 * Packs the nominal codes of an encoded instance into the layout the distance methods expect
+	 *
+	 * @param nominal nominal codes of the instance, see {@link InstanceStore#encode(java.util.List, double[], int[])}
+	 * @param out     buffer of length {@link #packedLength()}
+	 */
+	public void pack(int[] nominal, long[] out) {
+		this.bits.pack(nominal, out);
+	}
+	
+	/**
+	 * @return the amount of long words of a packed instance
+	 */
+	public int packedLength() {
+		return this.bits.stride();
+	}
+	
+	/**
+	 * @param row       index of the training row
+	 * @param attribute position among the nominal attributes
+	 * @return the dictionary code of the row's value, -1 if unknown
+	 */
+	public long nominalValue(int row, int attribute) {
+		return this.bits.value(row, attribute);
+	}
+	
+	/**
+	 * @param nominal   packed nominal values of the instance
+	 * @param attribute position among the nominal attributes
+	 * @return the dictionary code of the instance's value, -1 if unknown
+	 */
+	public long nominalValue(long[] nominal, int attribute) {
+		return this.bits.value(nominal, attribute);
+	}
+	
+	/**
+	 * @param row     index of the training row
+	 * @param nominal packed nominal values of the instance
+	 * @return the amount of nominal attributes in which the row differs from the instance
+	 */
+	public int mismatches(int row, long[] nominal) {
+		return this.bits.mismatches(row, nominal);
+	}
+	
+	/**
+	 * Calculates the distance between a stored training row and an encoded instance
+	 *
+	 * @param row     index of the training row
+	 * @param numeric numeric values of the instance, see {@link InstanceStore#encode(java.util.List, double[], int[])}
+	 *                and {@link #normalize(double[])}
+	 * @param nominal packed nominal values of the instance, see {@link #pack(int[], long[])}
+	 * @return the distance
+	 */
+	public double distance(int row, double[] numeric, long[] nominal) {
+		double[] block = this.values;
+		int offset = row * numeric.length;
+		if (this.block != null) {
+			block = this.copy(row, 0);
+			offset = 0;
+		}
+		return this.finish(this.sum(block, offset, numeric, 0, this.bits.mismatches(row, nominal), Double.POSITIVE_INFINITY));
+	}
+	
+	/**
+	 * Offers a stored training row to the heap, abandoning the distance computation as soon as the partial sum proves
+	 * that the row is farther away than the current k-th nearest neighbor. Abandoned rows are reported via
+	 * {@link NeighborHeap#skip(int, double)} with the partial distance as lower bound, all other rows are offered with
+	 * the same distance {@link #distance(int, double[], long[])} returns. Nominal mismatches are counted first, then
+	 * the numeric attributes in store order, which puts the attributes with the highest variance first.
+	 *
+	 * @param row     index of the training row
+	 * @param numeric numeric values of the instance
+	 * @param nominal packed nominal values of the instance
+	 * @param heap    collector of the nearest neighbors
+	 */
+	public void offer(int row, double[] numeric, long[] nominal, NeighborHeap heap) {
+		double limit = heap.abandonLimit(this);
+		int mismatches = this.bits.mismatches(row, nominal);
+		if (mismatches > limit) {
+			heap.skip(1, this.finish(mismatches));
+			return;
+		}
+		
+		double[] block = this.values;
+		int offset = row * numeric.length;
+		if (this.block != null) {
+			block = this.copy(row, 0);
+			offset = 0;
+		}
+		double sum = this.sum(block, offset, numeric, 0, mismatches, limit);
+		if (sum < 0) heap.skip(1, this.finish(-sum));
+		else heap.offer(row, this.finish(sum));
+	}
+	
+	/**
+	 * Converts a bound on the distance into a bound on the sum computed before {@link #finish(double)}
+	 *
+	 * @param bound the distance a row must not exceed
+	 * @return the largest sum whose distance does not exceed the bound
+	 */
+	public double sumLimit(double bound) {
+		if (this.metric == keNN.DIST_MANHATTAN || Double.isInfinite(bound) || Double.isNaN(bound)) return bound;
+		double limit = bound * bound;
+		while (limit > 0 && Math.sqrt(limit) > bound) limit = Math.nextDown(limit);
+		while (Math.sqrt(Math.nextUp(limit)) <= bound) limit = Math.nextUp(limit);
+		return limit;
+	}
+	
+	/**
+	 * Calculates the distance between two stored training rows
+	 *
+	 * @param row1 index of the first training row
+	 * @param row2 index of the second training row
+	 * @return the distance
+	 */
+	public double distance(int row1, int row2) {
+		int numNumeric = this.store.numNumeric();
+		double[] a = this.values, b = this.values;
+		int aOffset = row1 * numNumeric, bOffset = row2 * numNumeric;
+		if (this.block != null) {
+			a = this.copy(row1, 0);
+			b = this.copy(row2, 1);
+			aOffset = 0;
+			bOffset = numNumeric;
+		}
+		return this.finish(this.sum(a, aOffset, b, bOffset, this.bits.mismatches(row1, row2), Double.POSITIVE_INFINITY));
+	}
+	
+	/**
+	 * Calculates a lower bound of the distance between an encoded instance and any row whose numeric values lie inside
+	 * the given box. Nominal attributes are assumed to match. The terms are summed in the same lanes as
+	 * {@link #manhattan(double[], int, double[], int, double, double)}, so the bound never exceeds the result of
+	 * {@link #distance(int, double[], long[])} for such a row, including rounding.
+	 *
+	 * @param lo      lower corner of the box in {@link #values()}
+	 * @param hi      upper corner of the box in {@link #values()}
+	 * @param offset  start of the box inside lo and hi
+	 * @param numeric numeric values of the instance
+	 * @return the lower bound
+	 */
+	public double boxDistance(double[] lo, double[] hi, int offset, double[] numeric) {
+		int length = numeric.length, unrolled = length - length % LANES;
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int p = 0;
+		for (; p < unrolled; p += LANES) {
+			s0 += this.boxTerm(lo, hi, offset, numeric, p);
+			s1 += this.boxTerm(lo, hi, offset, numeric, p + 1);
+			s2 += this.boxTerm(lo, hi, offset, numeric, p + 2);
+			s3 += this.boxTerm(lo, hi, offset, numeric, p + 3);
+		}
+		for (; p < length; p++) {
+			s0 += this.boxTerm(lo, hi, offset, numeric, p);
+		}
+		return this.finish((s0 + s1) + (s2 + s3));
+	}
+	
+	private double boxTerm(double[] lo, double[] hi, int offset, double[] numeric, int p) {
+		double q = numeric[p];
+		double gap = Math.max(0, Math.max(lo[offset + p] - q, q - hi[offset + p]));
+		return this.metric == keNN.DIST_MANHATTAN ? gap : gap * gap;
+	}
+	
+	/**
+	 * Sums the numeric terms of the metric and adds the nominal mismatches, see
+	 * {@link #manhattan(double[], int, double[], int, double, double)}
+	 */
+	private double sum(double[] a, int aOffset, double[] b, int bOffset, double mismatches, double limit) {
+		return this.metric == keNN.DIST_MANHATTAN
+				? this.manhattan(a, aOffset, b, bOffset, mismatches, limit)
+				: this.euclidean(a, aOffset, b, bOffset, mismatches, limit);
+	}
+	
+	/**
+	 * Sums the absolute differences in {@link #LANES} independent accumulators and adds the nominal mismatches.
+	 * Attribute p is added to lane p % LANES, the remainder behind the last full group to lane 0. This breaks the
+	 * dependency chain of the floating point additions, so consecutive attributes are processed in parallel by the
+	 * CPU. Every distance of this kernel is summed here, on and off heap, so all of them are bit-identical.
+	 *
+	 * @param limit the sum is abandoned after the first full group whose partial sum exceeds the limit
+	 * @return the sum, or the negated partial sum if it was abandoned, which is below 0 as the limit is not negative
+	 */
+	private double manhattan(double[] a, int aOffset, double[] b, int bOffset, double mismatches, double limit) {
+		int length = this.store.numNumeric(), unrolled = length - length % LANES;
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int p = 0;
+		for (; p < unrolled; p += LANES) {
+			s0 += Math.abs(a[aOffset + p] - b[bOffset + p]);
+			s1 += Math.abs(a[aOffset + p + 1] - b[bOffset + p + 1]);
+			s2 += Math.abs(a[aOffset + p + 2] - b[bOffset + p + 2]);
+			s3 += Math.abs(a[aOffset + p + 3] - b[bOffset + p + 3]);
+			double partial = ((s0 + s1) + (s2 + s3)) + mismatches;
+			if (partial > limit) return -partial;
+		}
+		for (; p < length; p++) {
+			s0 += Math.abs(a[aOffset + p] - b[bOffset + p]);
+		}
+		return ((s0 + s1) + (s2 + s3)) + mismatches;
+	}
+	
+	/**
+	 * {@link #manhattan(double[], int, double[], int, double, double)} with squared differences
+	 */
+	private double euclidean(double[] a, int aOffset, double[] b, int bOffset, double mismatches, double limit) {
+		int length = this.store.numNumeric(), unrolled = length - length % LANES;
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int p = 0;
+		for (; p < unrolled; p += LANES) {
+			double d0 = a[aOffset + p] - b[bOffset + p];
+			double d1 = a[aOffset + p + 1] - b[bOffset + p + 1];
+			double d2 = a[aOffset + p + 2] - b[bOffset + p + 2];
+			double d3 = a[aOffset + p + 3] - b[bOffset + p + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			double partial = ((s0 + s1) + (s2 + s3)) + mismatches;
+			if (partial > limit) return -partial;
+		}
+		for (; p < length; p++) {
+			double diff = a[aOffset + p] - b[bOffset + p];
+			s0 += diff * diff;
+		}
+		return ((s0 + s1) + (s2 + s3)) + mismatches;
+	}
+	
+	/**
+	 * Copies a row of the {@link OffHeapBlock} into a buffer of the calling thread, so it is summed by the same code as
+	 * the rows on the heap
+	 *
+	 * @param row  index of the training row
+	 * @param slot 0 or 1, the buffer holds two rows at the same time
+	 * @return the buffer, the row starts at slot * {@link InstanceStore#numNumeric()}
+	 */
+	private double[] copy(int row, int slot) {
+		ThreadLocal<double[]> copies = this.copies;
+		if (copies == null) this.copies = copies = new ThreadLocal<>();
+		int numNumeric = this.store.numNumeric();
+		double[] out = copies.get();
+		if (out == null) copies.set(out = new double[2 * numNumeric]);
+		DoubleBuffer chunk = this.block.chunk(row);
+		for (int p = 0, offset = this.block.offset(row); p < numNumeric; p++) {
+			out[slot * numNumeric + p] = chunk.get(offset + p);
+		}
+		return out;
+	}
+	
+	/**
+	 * @param sum the sum of the numeric terms and the nominal mismatches
+	 * @return the distance
+	 */
+	double finish(double sum) {
+		return this.metric == keNN.DIST_MANHATTAN ? sum : Math.sqrt(sum);
+	}
+	
+	/**
+	 * @return the metric this kernel computes
+	 */
+	public int getMetric() {
+		return metric;
+	}
+	
+	/**
+	 * Changes the metric, the (normalized) values stay the same
+	 *
+	 * @param metric {@link keNN#DIST_MANHATTAN} or {@link keNN#DIST_EUCLIDEAN}
+	 */
+	public void setMetric(int metric) {
+		if (metric != keNN.DIST_MANHATTAN && metric != keNN.DIST_EUCLIDEAN) throw new UnknownError("Metric unknown");
+		this.metric = metric;
+	}
+	
+	/**
+	 * @return the amount of rows the kernel covers, see {@link #append()}
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Indices built before a {@link #removeFirst(int)} refer to row {@code r} as {@code r + removed()} at build time
+	 *
+	 * @return the amount of rows removed from the front since the kernel was built
+	 */
+	public int removed() {
+		return removed;
+	}
+	
+	/**
+	 * @return true if numeric attributes are normalized
+	 */
+	public boolean isNormalizing() {
+		return scaling != null;
+	}
+	
+	/**
+	 * @return the row-major numeric block the distances are computed on, normalized if normalization is used, null
+	 * once the values were moved off heap, see {@link #row(int, double[])}
+	 */
+	public double[] values() {
+		return values;
+	}
+	
+	/**
+	 * Copies the numeric values of a row, on or off heap
+	 *
+	 * @param row index of the training row
+	 * @param out buffer of length {@link InstanceStore#numNumeric()}
+	 */
+	public void row(int row, double[] out) {
+		if (this.block != null) this.block.get(row, 1, out);
+		else System.arraycopy(this.values, row * out.length, out, 0, out.length);
+	}
+	
+	/**
+	 * Moves the numeric block out of the heap. A block shared with the store is moved for both, see
+	 * {@link InstanceStore#moveNumericOffHeap()}. Afterwards the kernel can no longer be extended or shrunk.
+	 */
+	public void moveOffHeap() {
+		if (this.block != null) return;
+		if (this.values == this.store.numeric()) {
+			this.store.moveNumericOffHeap();
+			this.block = this.store.numericBlock();
+		} else {
+			this.block = new OffHeapBlock(this.values, this.size, this.store.numNumeric());
+		}
+		this.values = null;
+	}
+	
+	/**
+	 * Moves the numeric block into a mapped temporary file like {@link #moveOffHeap()}, see
+	 * {@link OffHeapBlock#spill(double[], int, int)}. A block shared with the store is moved for both.
+	 */
+	void spill() {
+		if (this.block != null) return;
+		if (this.values == this.store.numeric()) {
+			this.store.spillNumeric();
+			this.block = this.store.numericBlock();
+		} else {
+			this.block = OffHeapBlock.spill(this.values, this.size, this.store.numNumeric());
+		}
+		this.values = null;
+	}
+	
+	/**
+	 * Copies an off-heap numeric block back onto the heap and returns its memory. A block shared with the store is
+	 * moved for both, see {@link InstanceStore#moveNumericOnHeap()}. Afterwards the kernel can be extended and shrunk
+	 * again.
+	 */
+	void moveOnHeap() {
+		if (this.block == null) return;
+		if (this.block == this.store.numericBlock()) {
+			this.store.moveNumericOnHeap();
+			this.values = this.store.numeric();
+		} else {
+			this.values = new double[this.size * this.store.numNumeric()];
+			this.block.get(0, this.size, this.values);
+			this.block.close();
+		}
+		this.block = null;
+	}
+	
+	/**
+	 * @return true if the numeric block lives off heap, see {@link #moveOffHeap()}
+	 */
+	public boolean isOffHeap() {
+		return block != null;
+	}
+	
+	/**
+	 * @return the numeric block outside the heap, null if it is still on the heap
+	 */
+	OffHeapBlock block() {
+		return block;
+	}
+	
+	/**
+	 * @return the packed nominal block
+	 */
+	NominalBits bits() {
+		return bits;
+	}
+	
+	/**
+	 * Returns the memory of an off-heap block, the kernel must not be used afterwards. A block shared with the store is
+	 * left to {@link InstanceStore#release()}.
+	 */
+	public void release() {
+		if (this.block != null && this.block != this.store.numericBlock()) this.block.close();
+	}
+	
+	/**
+	 * @return the training data the kernel operates on
+	 */
+	public InstanceStore getStore() {
+		return store;
+	}
+}
@@ -0,0 +1,154 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed distances between all pairs of training rows of a {@link DistanceKernel}, stored as floats.
+ * <p>
+ * The symmetric matrix is split into square tiles of {@link #TILE} rows, only the tiles on and below the diagonal are
+ * stored, tile by tile. The tiles are computed in parallel, a tile compares two blocks of rows which stay in the cache
+ * while it is filled. The floats live outside the heap in direct buffers, large matrices are spilled into a memory
+ * mapped temporary file instead, so the page cache decides which part stays in memory. Every buffer holds at most
+ * {@link #CHUNK} bytes. A lookup is a few shifts and one read.
+ * <p>
+ * The matrix is bound to the kernel, its metric and its rows at construction, see {@link #isValid(DistanceKernel)}.
+ * Its memory is returned by {@link #release()} or once the matrix is garbage collected.
+ */
+public class DistanceMatrix {
+	/**
+	 * Rows per tile side, a power of two
+	 */
+	static final int TILE = 256;
+	private static final int TILE_SHIFT = 8;
+	private static final int CHUNK_SHIFT = 30;
+	/**
+	 * Bytes per buffer, a multiple of the bytes of a tile
+	 */
+	private static final long CHUNK = 1L << CHUNK_SHIFT;
+	
+	private final DistanceKernel kernel;
+	private final int metric;
+	private final int size;
+	private final int removed;
+	private final ByteBuffer[] chunks;
+	
+	/**
+	 * Computes the distances between all rows of the kernel
+	 *
+	 * @param kernel         the distance
+	 * @param spillThreshold the size in bytes from which the matrix is stored in a memory mapped temporary file
+	 * @param model          the model whose threads compute the tiles
+	 */
+	DistanceMatrix(DistanceKernel kernel, long spillThreshold, NearestNeighbor model) {
+		this.kernel = kernel;
+		this.metric = kernel.getMetric();
+		this.size = kernel.size();
+		this.removed = kernel.removed();
+		
+		int tiles = (this.size + TILE - 1) >>> TILE_SHIFT;
+		long bytes = (long) tiles * (tiles + 1) / 2 * TILE * TILE * Float.BYTES;
+		this.chunks = new ByteBuffer[(int) ((bytes + CHUNK - 1) >>> CHUNK_SHIFT)];
+		try {
+			if (bytes >= spillThreshold) this.map(bytes);
+			else this.allocate(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		
+		model.execute(() -> {
+			IntStream.range(0, tiles).parallel().forEach(row -> {
+				for (int column = 0; column <= row; column++) {
+					this.fill(row, column);
+				}
+			});
+			return null;
+		});
+	}
+	
+	private void allocate(long bytes) {
+		for (int c = 0; c < this.chunks.length; c++) {
+			this.chunks[c] = ByteBuffer.allocateDirect((int) Math.min(CHUNK, bytes - c * CHUNK)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+	
+	/**
+	 * Maps a temporary file which is deleted right away, the mappings stay valid until they are garbage collected
+	 */
+	private void map(long bytes) throws IOException {
+		Path file = Files.createTempFile("distances", ".bin");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			for (int c = 0; c < this.chunks.length; c++) {
+				long length = Math.min(CHUNK, bytes - c * CHUNK);
+				this.chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, c * CHUNK, length).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		} finally {
+			if (!file.toFile().delete()) file.toFile().deleteOnExit();
+		}
+	}
+	
+	private void fill(int tileRow, int tileColumn) {
+		int fromRow = tileRow << TILE_SHIFT, toRow = Math.min(this.size, fromRow + TILE);
+		int fromColumn = tileColumn << TILE_SHIFT, toColumn = Math.min(this.size, fromColumn + TILE);
+		for (int i = fromRow; i < toRow; i++) {
+			for (int j = fromColumn; j < Math.min(toColumn, i + 1); j++) {
+				long offset = this.offset(i, j);
+				this.chunks[(int) (offset >>> CHUNK_SHIFT)].putFloat((int) (offset & (CHUNK - 1)), (float) this.kernel.distance(i, j));
+			}
+		}
+	}
+	
+	/**
+	 * Byte offset of the distance between row i and row j with i &gt;= j
+	 */
+	private long offset(int i, int j) {
+		long tileRow = i >>> TILE_SHIFT, tileColumn = j >>> TILE_SHIFT;
+		long tile = tileRow * (tileRow + 1) / 2 + tileColumn;
+		return ((tile << (2 * TILE_SHIFT)) + ((i & (TILE - 1)) << TILE_SHIFT) + (j & (TILE - 1))) * Float.BYTES;
+	}
+	
+	/**
+	 * @param row1 index of the first training row
+	 * @param row2 index of the second training row
+	 * @return the distance of both rows, rounded to a float
+	 */
+	public float distance(int row1, int row2) {
+		long offset = row1 >= row2 ? this.offset(row1, row2) : this.offset(row2, row1);
+		return this.chunks[(int) (offset >>> CHUNK_SHIFT)].getFloat((int) (offset & (CHUNK - 1)));
+	}
+	
+	/**
+	 * Determines if the matrix still holds the distances of the kernel, i.e. neither the kernel, nor its metric, nor its
+	 * rows changed since the matrix was computed
+	 *
+	 * @param kernel the current distance
+	 * @return true if the matrix can be used with the kernel
+	 */
+	public boolean isValid(DistanceKernel kernel) {
+		return kernel == this.kernel && kernel.getMetric() == this.metric && kernel.size() == this.size && kernel.removed() == this.removed;
+	}
+	
+	/**
+	 * @return the amount of rows
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the memory of the buffers or unmaps the temporary file right away, the matrix must not be used afterwards
+	 */
+	public synchronized void release() {
+		for (int c = 0; c < this.chunks.length; c++) {
+			if (this.chunks[c] != null) OffHeapBlock.free(this.chunks[c]);
+			this.chunks[c] = null;
+		}
+	}
+}
@@ -0,0 +1,465 @@
+package tud.ke.ml.project.classifier;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate nearest neighbor search on a hierarchical navigable small world graph.
+ * <p>
+ * Every row is a node of the bottom layer and, with exponentially falling probability, of the layers above. Each
+ * layer links a node to nearby nodes, chosen by the heuristic of Malkov and Yashunin, which prefers neighbors in
+ * different directions over a cluster of close ones. A query descends greedily from the single node of the top layer
+ * and runs a beam search of width {@link #getSearchBeam()} on the bottom layer. The graph only relies on the distance of
+ * the {@link DistanceKernel}, so it handles nominal and numeric attributes alike, and the beam is offered with exact
+ * distances, but true neighbors outside the beam are missed.
+ * <p>
+ * The rows are inserted in parallel on the threads of the model. Link lists are guarded by striped locks during the
+ * build only, queries read the finished graph without locking. Rows appended to the kernel afterwards are compared
+ * linearly. Rows removed from its front still route the search with the distance of the node they were reached from,
+ * but are never offered, until the graph is rebuilt.
+ */
+public class HNSWIndex implements NeighborSearch {
+	private static final long serialVersionUID = 1L;
+	
+	private static final int LOCKS = 1024;
+	
+	private final DistanceKernel kernel;
+	private final int metric;
+	private final int removed;
+	private final int size;
+	private final int degree;
+	private final int[] levels;
+	/**
+	 * Links of the bottom layer, node * (2 * degree + 1) holds their amount followed by up to 2 * degree nodes
+	 */
+	private final int[] base;
+	/**
+	 * Links of the upper layers per node, (layer - 1) * (degree + 1) holds their amount followed by up to degree nodes
+	 */
+	private final int[][] upper;
+	private int entry = -1;
+	private int maxLevel;
+	private int searchBeam;
+	
+	private transient Object[] locks;
+	private transient ThreadLocal<Buffers> buffers;
+	
+	/**
+	 * Builds the graph over all rows of the kernel's store
+	 *
+	 * @param kernel           the distance the graph is built for
+	 * @param degree           the amount of links per node and upper layer, the bottom layer keeps twice as many
+	 * @param constructionBeam the beam width searching the links of an inserted node
+	 * @param searchBeam       the beam width of a query
+	 * @param seed             the seed of the random layers
+	 * @param model            the model whose threads insert the rows
+	 */
+	HNSWIndex(DistanceKernel kernel, int degree, int constructionBeam, int searchBeam, long seed, NearestNeighbor model) {
+		this.kernel = kernel;
+		this.metric = kernel.getMetric();
+		this.removed = kernel.removed();
+		this.size = kernel.size();
+		this.degree = Math.max(2, degree);
+		this.searchBeam = searchBeam;
+		
+		Random random = new Random(seed);
+		double scale = 1 / Math.log(this.degree);
+		this.levels = new int[this.size];
+		this.upper = new int[this.size][];
+		for (int row = 0; row < this.size; row++) {
+			this.levels[row] = (int) (-Math.log(1 - random.nextDouble()) * scale);
+			if (this.levels[row] > 0) this.upper[row] = new int[this.levels[row] * (this.degree + 1)];
+		}
+		this.base = new int[this.size * (2 * this.degree + 1)];
+		if (this.size == 0) return;
+		
+		this.locks = new Object[LOCKS];
+		for (int i = 0; i < LOCKS; i++) {
+			this.locks[i] = new Object();
+		}
+		this.entry = 0;
+		this.maxLevel = this.levels[0];
+		int beam = Math.max(constructionBeam, this.degree);
+		model.execute(() -> {
+			IntStream.range(1, this.size).parallel().forEach(row -> this.insert(row, beam));
+			return null;
+		});
+		this.locks = null;
+	}
+	
+	private void insert(int row, int beam) {
+		Buffers buffers = this.buffers();
+		int level = this.levels[row];
+		int entry, top;
+		synchronized (this) {
+			entry = this.entry;
+			top = this.maxLevel;
+		}
+		double distance = this.kernel.distance(row, entry);
+		for (int layer = top; layer > level; layer--) {
+			for (boolean moved = true; moved; ) {
+				moved = false;
+				for (int i = 0, count = this.copyLinks(entry, layer, buffers.links); i < count; i++) {
+					double d = this.kernel.distance(row, buffers.links[i]);
+					if (d < distance) {
+						distance = d;
+						entry = buffers.links[i];
+						moved = true;
+					}
+				}
+			}
+		}
+		for (int layer = Math.min(level, top); layer >= 0; layer--) {
+			this.searchLayer(row, null, null, 0, entry, distance, beam, layer, buffers);
+			int count = buffers.results.drain(buffers);
+			int capacity = layer == 0 ? 2 * this.degree : this.degree;
+			int selected = this.select(row, buffers.rows, buffers.distances, count, capacity, buffers.selected);
+			synchronized (this.lock(row)) {
+				int[] links = this.links(row, layer);
+				int offset = this.offset(row, layer);
+				links[offset] = selected;
+				System.arraycopy(buffers.selected, 0, links, offset + 1, selected);
+			}
+			for (int i = 0; i < selected; i++) {
+				this.connect(buffers.selected[i], row, layer, capacity, buffers);
+			}
+			if (count > 0) {
+				entry = buffers.rows[0];
+				distance = buffers.distances[0];
+			}
+		}
+		if (level > top) {
+			synchronized (this) {
+				if (level > this.maxLevel) {
+					this.maxLevel = level;
+					this.entry = row;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Keeps a candidate only if it is closer to the node than to every candidate kept before
+	 *
+	 * @param node       the node to link
+	 * @param rows       the candidates in ascending distance
+	 * @param distances  their distances to the node
+	 * @param count      the amount of candidates
+	 * @param capacity   the maximum amount of links
+	 * @param out        the kept candidates
+	 * @return the amount of kept candidates
+	 */
+	private int select(int node, int[] rows, double[] distances, int count, int capacity, int[] out) {
+		int selected = 0;
+		for (int i = 0; i < count && selected < capacity; i++) {
+			int candidate = rows[i];
+			if (candidate == node) continue;
+			boolean diverse = true;
+			for (int j = 0; j < selected && diverse; j++) {
+				diverse = this.kernel.distance(candidate, out[j]) >= distances[i];
+			}
+			if (diverse) out[selected++] = candidate;
+		}
+		return selected;
+	}
+	
+	/**
+	 * Adds a link from a node to the inserted node, reselecting the links of the node if it has too many
+	 */
+	private void connect(int node, int inserted, int layer, int capacity, Buffers buffers) {
+		synchronized (this.lock(node)) {
+			int[] links = this.links(node, layer);
+			int offset = this.offset(node, layer);
+			int count = links[offset];
+			if (count < capacity) {
+				links[offset + 1 + count] = inserted;
+				links[offset] = count + 1;
+				return;
+			}
+			int[] rows = buffers.candidates;
+			double[] distances = buffers.candidateDistances;
+			for (int i = 0; i < count; i++) {
+				rows[i] = links[offset + 1 + i];
+				distances[i] = this.kernel.distance(node, rows[i]);
+			}
+			rows[count] = inserted;
+			distances[count] = this.kernel.distance(node, inserted);
+			sort(rows, distances, count + 1);
+			int selected = this.select(node, rows, distances, count + 1, capacity, buffers.reselected);
+			links[offset] = selected;
+			System.arraycopy(buffers.reselected, 0, links, offset + 1, selected);
+		}
+	}
+	
+	/**
+	 * Insertion sort by ascending distance, the lists are short
+	 */
+	private static void sort(int[] rows, double[] distances, int count) {
+		for (int i = 1; i < count; i++) {
+			int row = rows[i];
+			double distance = distances[i];
+			int j = i - 1;
+			for (; j >= 0 && distances[j] > distance; j--) {
+				rows[j + 1] = rows[j];
+				distances[j + 1] = distances[j];
+			}
+			rows[j + 1] = row;
+			distances[j + 1] = distance;
+		}
+	}
+	
+	/**
+	 * Beam search on one layer, leaving the closest nodes in the results queue of the buffers. The query is either the
+	 * stored row or, if the row is negative, the encoded instance. Nodes below the shift were removed from the kernel,
+	 * they inherit the distance of the node they were reached from and are never results.
+	 */
+	private void searchLayer(int row, double[] numeric, long[] nominal, int shift, int entry, double distance, int beam, int layer, Buffers buffers) {
+		RowMarks marks = buffers.marks;
+		Queue candidates = buffers.candidateQueue, results = buffers.results;
+		marks.next();
+		marks.mark(entry);
+		candidates.clear();
+		results.clear();
+		candidates.push(entry, -distance);
+		if (entry >= shift) results.push(entry, distance);
+		while (candidates.size() > 0) {
+			double nearest = -candidates.topKey();
+			if (results.size() >= beam && nearest > results.topKey()) break;
+			int node = candidates.topRow();
+			candidates.pop();
+			int count = this.locks == null ? this.readLinks(node, layer, buffers.links) : this.copyLinks(node, layer, buffers.links);
+			for (int i = 0; i < count; i++) {
+				int next = buffers.links[i];
+				if (!marks.mark(next)) continue;
+				if (next < shift) {
+					candidates.push(next, -nearest);
+					continue;
+				}
+				double d = row >= 0 ? this.kernel.distance(row, next) : this.kernel.distance(next - shift, numeric, nominal);
+				if (results.size() < beam || d < results.topKey()) {
+					candidates.push(next, -d);
+					results.push(next, d);
+					if (results.size() > beam) results.pop();
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap) {
+		int shift = kernel.removed() - this.removed;
+		if (this.entry >= 0) {
+			Buffers buffers = this.buffers();
+			int entry = this.entry;
+			double distance = this.distance(entry, shift, numeric, nominal);
+			for (int layer = this.maxLevel; layer > 0; layer--) {
+				for (boolean moved = true; moved; ) {
+					moved = false;
+					for (int i = 0, count = this.readLinks(entry, layer, buffers.links); i < count; i++) {
+						double d = this.distance(buffers.links[i], shift, numeric, nominal);
+						if (d < distance) {
+							distance = d;
+							entry = buffers.links[i];
+							moved = true;
+						}
+					}
+				}
+			}
+			// two rows more than k, so the heap can tell whether the rows behind the k-th nearest are tied
+			int beam = Math.max(this.searchBeam, heap.capacity() + 2);
+			this.searchLayer(-1, numeric, nominal, shift, entry, distance, beam, 0, buffers);
+			Queue results = buffers.results;
+			for (int i = 0; i < results.size(); i++) {
+				heap.offer(results.row(i) - shift, results.key(i));
+			}
+		}
+		for (int row = Math.max(0, this.size - shift); row < kernel.size(); row++) {
+			kernel.offer(row, numeric, nominal, heap);
+		}
+	}
+	
+	/**
+	 * @return the distance of a node to the instance, infinity if the node was removed from the kernel
+	 */
+	private double distance(int node, int shift, double[] numeric, long[] nominal) {
+		return node < shift ? Double.POSITIVE_INFINITY : this.kernel.distance(node - shift, numeric, nominal);
+	}
+	
+	private int[] links(int node, int layer) {
+		return layer == 0 ? this.base : this.upper[node];
+	}
+	
+	private int offset(int node, int layer) {
+		return layer == 0 ? node * (2 * this.degree + 1) : (layer - 1) * (this.degree + 1);
+	}
+	
+	private Object lock(int node) {
+		return this.locks[node & (LOCKS - 1)];
+	}
+	
+	private int readLinks(int node, int layer, int[] out) {
+		int[] links = this.links(node, layer);
+		int offset = this.offset(node, layer);
+		int count = links[offset];
+		System.arraycopy(links, offset + 1, out, 0, count);
+		return count;
+	}
+	
+	private int copyLinks(int node, int layer, int[] out) {
+		synchronized (this.lock(node)) {
+			return this.readLinks(node, layer, out);
+		}
+	}
+	
+	private Buffers buffers() {
+		ThreadLocal<Buffers> buffers = this.buffers;
+		if (buffers == null) {
+			buffers = ThreadLocal.withInitial(() -> new Buffers(this.size, this.degree));
+			this.buffers = buffers;
+		}
+		return buffers.get();
+	}
+	
+	/**
+	 * @return the beam width of a query, at least k + 2
+	 */
+	public int getSearchBeam() {
+		return searchBeam;
+	}
+	
+	/**
+	 * A wider beam finds more of the true neighbors at the cost of more distance computations, the graph is kept
+	 *
+	 * @param searchBeam the beam width of a query
+	 */
+	public void setSearchBeam(int searchBeam) {
+		this.searchBeam = searchBeam;
+	}
+	
+	/**
+	 * The graph is rebuilt once the rows appended or removed after the build exceed an eighth of the indexed rows
+	 */
+	@Override
+	public boolean isExact() {
+		return false;
+	}
+	
+	@Override
+	public boolean supports(DistanceKernel kernel) {
+		int shift = kernel.removed() - this.removed;
+		int appended = kernel.size() - Math.max(0, this.size - shift);
+		return kernel == this.kernel && kernel.getMetric() == this.metric && shift + appended <= this.size / 8 + 1;
+	}
+	
+	/**
+	 * Search buffers of a thread.
+	 */
+	private static class Buffers {
+		private final RowMarks marks;
+		private final Queue candidateQueue = new Queue();
+		private final Queue results = new Queue();
+		private final int[] links;
+		private final int[] selected;
+		private final int[] reselected;
+		private final int[] candidates;
+		private final double[] candidateDistances;
+		private int[] rows = new int[0];
+		private double[] distances = new double[0];
+		
+		Buffers(int size, int degree) {
+			this.marks = new RowMarks(size);
+			this.links = new int[2 * degree];
+			this.selected = new int[2 * degree];
+			this.reselected = new int[2 * degree];
+			this.candidates = new int[2 * degree + 1];
+			this.candidateDistances = new double[2 * degree + 1];
+		}
+	}
+	
+	/**
+	 * Binary max-heap of rows by key. Distances are pushed negated to pop the nearest row first.
+	 */
+	private static class Queue {
+		private int[] rows = new int[16];
+		private double[] keys = new double[16];
+		private int size;
+		
+		void clear() {
+			this.size = 0;
+		}
+		
+		int size() {
+			return this.size;
+		}
+		
+		int topRow() {
+			return this.rows[0];
+		}
+		
+		double topKey() {
+			return this.keys[0];
+		}
+		
+		int row(int i) {
+			return this.rows[i];
+		}
+		
+		double key(int i) {
+			return this.keys[i];
+		}
+		
+		void push(int row, double key) {
+			if (this.size == this.rows.length) {
+				this.rows = Arrays.copyOf(this.rows, 2 * this.size);
+				this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+			}
+			int i = this.size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (this.keys[parent] >= key) break;
+				this.rows[i] = this.rows[parent];
+				this.keys[i] = this.keys[parent];
+				i = parent;
+			}
+			this.rows[i] = row;
+			this.keys[i] = key;
+		}
+		
+		void pop() {
+			int row = this.rows[--this.size];
+			double key = this.keys[this.size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= this.size) break;
+				if (child + 1 < this.size && this.keys[child + 1] > this.keys[child]) child++;
+				if (this.keys[child] <= key) break;
+				this.rows[i] = this.rows[child];
+				this.keys[i] = this.keys[child];
+				i = child;
+			}
+			this.rows[i] = row;
+			this.keys[i] = key;
+		}
+		
+		/**
+		 * Empties the queue of distances into the buffers in ascending order
+		 *
+		 * @return the amount of rows
+		 */
+		int drain(Buffers buffers) {
+			int count = this.size;
+			if (buffers.rows.length < count) {
+				buffers.rows = new int[count];
+				buffers.distances = new double[count];
+			}
+			for (int i = count - 1; i >= 0; i--) {
+				buffers.rows[i] = this.topRow();
+				buffers.distances[i] = this.topKey();
+				this.pop();
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,625 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.Serializable;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar storage for the training data of {@link NearestNeighbor}.
+ * <p>
+ * Numeric attributes are kept in one row-major double block, nominal attributes are dictionary encoded into an int
+ * block and class values are stored as indices into a class dictionary. The class attribute itself is never part of
+ * the numeric or nominal block. Every row additionally carries the time it was added at, which can be overridden via
+ * {@link #setTimestamp(int, long)}.
+ * <p>
+ * The numeric block can be moved out of the heap via {@link #moveNumericOffHeap()}, the store is read-only
+ * afterwards.
+ */
+public class InstanceStore implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private final int numAttributes;
+	private final int classAttribute;
+	private final boolean[] isNumeric;
+	private final int[] numericAttributes;
+	private final int[] nominalAttributes;
+	private final int[] positions;
+	private final Vocabulary[] vocabularies;
+	private final Vocabulary classes = new Vocabulary();
+	
+	private double[] numeric;
+	private OffHeapBlock numericBlock;
+	private int[] nominal;
+	private int[] labels;
+	private long[] timestamps;
+	private int size;
+	
+	/**
+	 * @param isNumeric      true for every attribute holding numeric values
+	 * @param classAttribute the index of the class attribute
+	 */
+	public InstanceStore(boolean[] isNumeric, int classAttribute) {
+		this.numAttributes = isNumeric.length;
+		this.classAttribute = classAttribute;
+		this.isNumeric = isNumeric.clone();
+		this.positions = new int[this.numAttributes];
+		
+		int numNumeric = 0, numNominal = 0;
+		for (int i = 0; i < this.numAttributes; i++) {
+			if (i == classAttribute) this.positions[i] = -1;
+			else if (isNumeric[i]) this.positions[i] = numNumeric++;
+			else this.positions[i] = numNominal++;
+		}
+		this.numericAttributes = new int[numNumeric];
+		this.nominalAttributes = new int[numNominal];
+		this.vocabularies = new Vocabulary[numNominal];
+		for (int i = 0; i < this.numAttributes; i++) {
+			if (i == classAttribute) continue;
+			if (isNumeric[i]) {
+				this.numericAttributes[this.positions[i]] = i;
+			} else {
+				this.nominalAttributes[this.positions[i]] = i;
+				this.vocabularies[this.positions[i]] = new Vocabulary();
+			}
+		}
+		
+		this.numeric = new double[INITIAL_CAPACITY * numNumeric];
+		this.nominal = new int[INITIAL_CAPACITY * numNominal];
+		this.labels = new int[INITIAL_CAPACITY];
+		this.timestamps = new long[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Creates a store whose schema is derived from the value types of the given row
+	 *
+	 * @param prototype      a row of the data set, numeric values are {@link Double}s
+	 * @param classAttribute the index of the class attribute
+	 * @return an empty store
+	 */
+	public static InstanceStore forPrototype(List<Object> prototype, int classAttribute) {
+		boolean[] isNumeric = new boolean[prototype.size()];
+		int i = 0;
+		for (Object value : prototype) {
+			isNumeric[i++] = value instanceof Double;
+		}
+		return new InstanceStore(isNumeric, classAttribute);
+	}
+	
+	/**
+	 * Appends a row
+	 *
+	 * @param row all attribute values of the instance including the class value
+	 */
+	public void add(List<Object> row) {
+		ensureCapacity(this.size + 1);
+		int numericOffset = this.size * this.numericAttributes.length;
+		int nominalOffset = this.size * this.nominalAttributes.length;
+		int i = 0;
+		for (Object value : row) {
+			int position = this.positions[i];
+			if (i == this.classAttribute) {
+				this.labels[this.size] = this.classes.intern(value);
+			} else if (!this.isNumeric[i]) {
+				this.nominal[nominalOffset + position] = this.vocabularies[position].intern(value);
+			} else {
+				this.numeric[numericOffset + position] = (double) value;
+			}
+			i++;
+		}
+		this.timestamps[this.size] = System.currentTimeMillis();
+		this.size++;
+	}
+	
+	/**
+	 * Declares the values of a nominal attribute or of the class attribute in advance, so the code of every value
+	 * equals its index in the given list. Has to be called before any row is added.
+	 *
+	 * @param attribute the attribute index
+	 * @param values    all values of the attribute
+	 */
+	public void declareValues(int attribute, List<?> values) {
+		Vocabulary vocabulary = attribute == this.classAttribute ? this.classes : this.vocabularies[this.positions[attribute]];
+		for (Object value : values) {
+			vocabulary.intern(value);
+		}
+	}
+	
+	/**
+	 * Appends a row given in the primitive layout of WEKA: numeric values as they are, nominal values as the index
+	 * of a value declared via {@link #declareValues(int, List)}. A numeric class value is stored like a nominal one.
+	 *
+	 * @param values all attribute values of the instance including the class value
+	 */
+	public void add(double[] values) {
+		ensureCapacity(this.size + 1);
+		int numericOffset = this.size * this.numericAttributes.length;
+		int nominalOffset = this.size * this.nominalAttributes.length;
+		for (int i = 0; i < this.numAttributes; i++) {
+			int position = this.positions[i];
+			if (i == this.classAttribute) {
+				this.labels[this.size] = this.isNumeric[i] ? this.classes.intern(values[i]) : (int) values[i];
+			} else if (!this.isNumeric[i]) {
+				this.nominal[nominalOffset + position] = (int) values[i];
+			} else {
+				this.numeric[numericOffset + position] = values[i];
+			}
+		}
+		this.timestamps[this.size] = System.currentTimeMillis();
+		this.size++;
+	}
+	
+	/**
+	 * Encodes an instance given in the primitive layout of {@link #add(double[])}
+	 *
+	 * @param values     all attribute values of the instance, the class value is ignored
+	 * @param numericOut buffer of length {@link #numNumeric()}
+	 * @param nominalOut buffer of length {@link #numNominal()}
+	 */
+	public void encode(double[] values, double[] numericOut, int[] nominalOut) {
+		for (int i = 0; i < this.numAttributes; i++) {
+			if (i == this.classAttribute) continue;
+			if (this.isNumeric[i]) {
+				numericOut[this.positions[i]] = values[i];
+			} else {
+				nominalOut[this.positions[i]] = (int) values[i];
+			}
+		}
+	}
+	
+	/**
+	 * Encodes an instance into the numeric and nominal layout of this store. Nominal values never seen during
+	 * training are encoded as -1 and therefore mismatch every training row.
+	 *
+	 * @param row        all attribute values of the instance, the class value is ignored
+	 * @param numericOut buffer of length {@link #numNumeric()}
+	 * @param nominalOut buffer of length {@link #numNominal()}
+	 */
+	public void encode(List<Object> row, double[] numericOut, int[] nominalOut) {
+		int i = 0;
+		for (Object value : row) {
+			int position = this.positions[i];
+			if (i != this.classAttribute) {
+				if (this.isNumeric[i]) {
+					numericOut[position] = (double) value;
+				} else {
+					nominalOut[position] = this.vocabularies[position].lookup(value);
+				}
+			}
+			i++;
+		}
+	}
+	
+	/**
+	 * Searches a stored row with exactly the given values
+	 *
+	 * @param row all attribute values of the instance including the class value
+	 * @return the index of the first matching row, -1 if no row matches
+	 */
+	public int indexOf(List<Object> row) {
+		double[] numericValues = new double[this.numericAttributes.length];
+		int[] nominalValues = new int[this.nominalAttributes.length];
+		this.encode(row, numericValues, nominalValues);
+		int label = this.classes.lookup(row.get(this.classAttribute));
+		for (int r = 0; r < this.size; r++) {
+			if (this.labels[r] == label && this.equals(r, numericValues, nominalValues)) return r;
+		}
+		return -1;
+	}
+	
+	private boolean equals(int row, double[] numericValues, int[] nominalValues) {
+		int numericOffset = row * numericValues.length, nominalOffset = row * nominalValues.length;
+		for (int p = 0; p < numericValues.length; p++) {
+			if (Double.compare(this.numeric[numericOffset + p], numericValues[p]) != 0) return false;
+		}
+		for (int p = 0; p < nominalValues.length; p++) {
+			if (this.nominal[nominalOffset + p] != nominalValues[p]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes a row, the following rows move up by one and keep their order
+	 *
+	 * @param row the row index
+	 */
+	public void remove(int row) {
+		this.remove(row, 1);
+	}
+	
+	/**
+	 * Removes consecutive rows, the following rows move up and keep their order
+	 *
+	 * @param row   the index of the first row to remove
+	 * @param count the amount of rows to remove
+	 */
+	public void remove(int row, int count) {
+		this.checkOnHeap();
+		int numNumeric = this.numericAttributes.length, numNominal = this.nominalAttributes.length;
+		int end = row + count, remaining = this.size - end;
+		System.arraycopy(this.numeric, end * numNumeric, this.numeric, row * numNumeric, remaining * numNumeric);
+		System.arraycopy(this.nominal, end * numNominal, this.nominal, row * numNominal, remaining * numNominal);
+		System.arraycopy(this.labels, end, this.labels, row, remaining);
+		System.arraycopy(this.timestamps, end, this.timestamps, row, remaining);
+		this.size -= count;
+	}
+	
+	/**
+	 * Materializes a stored row in the list format used by {@link INearestNeighbor}
+	 *
+	 * @param row the row index
+	 * @return all attribute values of the row including the class value
+	 */
+	public List<Object> getRow(int row) {
+		List<Object> result = new ArrayList<>(this.numAttributes);
+		for (int i = 0; i < this.numAttributes; i++) {
+			int position = this.positions[i];
+			if (i == this.classAttribute) {
+				result.add(this.classes.value(this.labels[row]));
+			} else if (!this.isNumeric[i]) {
+				result.add(this.vocabularies[position].value(this.nominal[row * this.nominalAttributes.length + position]));
+			} else if (this.numericBlock != null) {
+				DoubleBuffer chunk = this.numericBlock.chunk(row);
+				result.add(chunk.get(this.numericBlock.offset(row) + position));
+			} else {
+				result.add(this.numeric[row * this.numericAttributes.length + position]);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Changes the order of the numeric attributes inside the numeric block
+	 *
+	 * @param order the old position of every new position
+	 */
+	public void reorderNumeric(int[] order) {
+		this.checkOnHeap();
+		int numNumeric = this.numericAttributes.length;
+		int[] attributes = new int[numNumeric];
+		for (int p = 0; p < numNumeric; p++) {
+			attributes[p] = this.numericAttributes[order[p]];
+			this.positions[attributes[p]] = p;
+		}
+		System.arraycopy(attributes, 0, this.numericAttributes, 0, numNumeric);
+		
+		double[] row = new double[numNumeric];
+		for (int r = 0; r < this.size; r++) {
+			int offset = r * numNumeric;
+			for (int p = 0; p < numNumeric; p++) {
+				row[p] = this.numeric[offset + order[p]];
+			}
+			System.arraycopy(row, 0, this.numeric, offset, numNumeric);
+		}
+	}
+	
+	/**
+	 * Replaces the numeric block, e.g. by its normalized values if the raw values are no longer needed
+	 *
+	 * @param numeric the new row-major numeric block with the same layout
+	 */
+	public void replaceNumeric(double[] numeric) {
+		if (numeric.length < this.size * this.numericAttributes.length) throw new IllegalArgumentException("Numeric block too small");
+		this.numeric = numeric;
+	}
+	
+	/**
+	 * Moves the numeric block into an {@link OffHeapBlock}, the store must not be changed afterwards. Does nothing if
+	 * the block was already moved.
+	 */
+	public void moveNumericOffHeap() {
+		if (this.numericBlock != null) return;
+		this.numericBlock = new OffHeapBlock(this.numeric, this.size, this.numericAttributes.length);
+		this.numeric = null;
+	}
+	
+	/**
+	 * Moves the numeric block into a mapped temporary file like {@link #moveNumericOffHeap()}, see
+	 * {@link OffHeapBlock#spill(double[], int, int)}. Does nothing if the block is no longer on the heap.
+	 */
+	void spillNumeric() {
+		if (this.numericBlock != null) return;
+		this.numericBlock = OffHeapBlock.spill(this.numeric, this.size, this.numericAttributes.length);
+		this.numeric = null;
+	}
+	
+	/**
+	 * Copies an off-heap numeric block back onto the heap and returns its memory, the store can be changed again
+	 * afterwards. Does nothing if the block is on the heap.
+	 */
+	void moveNumericOnHeap() {
+		if (this.numericBlock == null) return;
+		this.numeric = new double[this.size * this.numericAttributes.length];
+		this.numericBlock.get(0, this.size, this.numeric);
+		this.numericBlock.close();
+		this.numericBlock = null;
+	}
+	
+	private void checkOnHeap() {
+		if (this.numericBlock != null) throw new IllegalStateException("Numeric values off heap, the store is read-only");
+	}
+	
+	/**
+	 * @return the numeric block outside the heap, null if it is still on the heap
+	 */
+	OffHeapBlock numericBlock() {
+		return numericBlock;
+	}
+	
+	/**
+	 * Returns the memory of an off-heap numeric block, the store must not be used afterwards
+	 */
+	public void release() {
+		if (this.numericBlock != null) this.numericBlock.close();
+	}
+	
+	/**
+	 * Resizes all blocks to exactly the given amount of rows, whose values are then written into the blocks directly
+	 *
+	 * @param rows the new amount of rows
+	 */
+	void allocate(int rows) {
+		this.size = rows;
+		this.trimToSize();
+	}
+	
+	/**
+	 * Resizes the nominal, label and timestamp blocks like {@link #allocate(int)} and adopts a numeric block outside
+	 * the heap, the store is read-only afterwards
+	 *
+	 * @param rows    the new amount of rows
+	 * @param numeric the numeric values of all rows
+	 */
+	void allocate(int rows, OffHeapBlock numeric) {
+		this.size = rows;
+		this.numeric = null;
+		this.numericBlock = numeric;
+		this.nominal = new int[rows * this.nominalAttributes.length];
+		this.labels = new int[rows];
+		this.timestamps = new long[rows];
+	}
+	
+	private void ensureCapacity(int rows) {
+		this.checkOnHeap();
+		if (rows <= this.labels.length) return;
+		// grow by half like ArrayList, so a store filled row by row never holds much more than its final size
+		int capacity = Math.max(rows, this.labels.length + (this.labels.length >> 1));
+		this.numeric = Arrays.copyOf(this.numeric, capacity * this.numericAttributes.length);
+		this.nominal = Arrays.copyOf(this.nominal, capacity * this.nominalAttributes.length);
+		this.labels = Arrays.copyOf(this.labels, capacity);
+		this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+	}
+	
+	/**
+	 * Releases unused capacity after the last row has been added
+	 */
+	public void trimToSize() {
+		this.checkOnHeap();
+		if (this.labels.length == this.size) return;
+		this.numeric = Arrays.copyOf(this.numeric, this.size * this.numericAttributes.length);
+		this.nominal = Arrays.copyOf(this.nominal, this.size * this.nominalAttributes.length);
+		this.labels = Arrays.copyOf(this.labels, this.size);
+		this.timestamps = Arrays.copyOf(this.timestamps, this.size);
+	}
+	
+	/**
+	 * @return the amount of stored rows
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return the amount of attributes including the class attribute
+	 */
+	public int numAttributes() {
+		return numAttributes;
+	}
+	
+	/**
+	 * @return the index of the class attribute
+	 */
+	public int getClassAttribute() {
+		return classAttribute;
+	}
+	
+	/**
+	 * @return the amount of numeric attributes, excluding the class attribute
+	 */
+	public int numNumeric() {
+		return numericAttributes.length;
+	}
+	
+	/**
+	 * @return the amount of nominal attributes, excluding the class attribute
+	 */
+	public int numNominal() {
+		return nominalAttributes.length;
+	}
+	
+	/**
+	 * @param position position inside the numeric block
+	 * @return the attribute index stored at the given position
+	 */
+	public int numericAttribute(int position) {
+		return numericAttributes[position];
+	}
+	
+	/**
+	 * @param position position inside the nominal block
+	 * @return the attribute index stored at the given position
+	 */
+	public int nominalAttribute(int position) {
+		return nominalAttributes[position];
+	}
+	
+	/**
+	 * @param position position inside the nominal block
+	 * @return the amount of distinct values seen for the attribute at the given position
+	 */
+	public int numValues(int position) {
+		return vocabularies[position].size();
+	}
+	
+	/**
+	 * @param position position inside the nominal block
+	 * @param code     a code of the attribute
+	 * @return the attribute value, usually a String
+	 */
+	public Object nominalValue(int position, int code) {
+		return vocabularies[position].value(code);
+	}
+	
+	/**
+	 * @param attribute the attribute index
+	 * @return true if the attribute holds numeric values
+	 */
+	public boolean isNumeric(int attribute) {
+		return isNumeric[attribute];
+	}
+	
+	/**
+	 * @return the row-major numeric block, row {@code r} starts at {@code r * numNumeric()}, null once the block was
+	 * moved off heap
+	 */
+	public double[] numeric() {
+		return numeric;
+	}
+	
+	/**
+	 * @return the row-major nominal code block, row {@code r} starts at {@code r * numNominal()}
+	 */
+	public int[] nominal() {
+		return nominal;
+	}
+	
+	/**
+	 * @param row the row index
+	 * @return the time the row was added at, in milliseconds
+	 */
+	public long getTimestamp(int row) {
+		return timestamps[row];
+	}
+	
+	/**
+	 * @param row       the row index
+	 * @param timestamp the time the row was added at, in milliseconds
+	 */
+	public void setTimestamp(int row, long timestamp) {
+		this.timestamps[row] = timestamp;
+	}
+	
+	/**
+	 * @return the time every row was added at
+	 */
+	long[] timestamps() {
+		return timestamps;
+	}
+	
+	/**
+	 * @return the class index of every row
+	 */
+	public int[] labels() {
+		return labels;
+	}
+	
+	/**
+	 * @return the amount of distinct class values
+	 */
+	public int numClasses() {
+		return classes.size();
+	}
+	
+	/**
+	 * @param label a class index
+	 * @return the class value, usually a String
+	 */
+	public Object classValue(int label) {
+		return classes.value(label);
+	}
+	
+	/**
+	 * Bidirectional mapping between attribute values and dense integer codes.
+	 */
+	static class Vocabulary implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Object> values = new ArrayList<>();
+		private final Map<Object, Integer> codes = new HashMap<>();
+		/**
+		 * Open addressing table from the bits of the Double values to their code + 1, 0 marks a free slot. Built on
+		 * the first call of {@link #intern(double)}, so numeric class values are looked up without boxing.
+		 */
+		private transient long[] bits;
+		private transient int[] slots;
+		
+		int intern(Object value) {
+			Integer code = this.codes.get(value);
+			if (code == null) {
+				code = this.values.size();
+				this.values.add(value);
+				this.codes.put(value, code);
+				if (this.slots != null && value instanceof Double) this.index((Double) value, code);
+			}
+			return code;
+		}
+		
+		/**
+		 * Interns a numeric value like {@link #intern(Object)} does with the boxed value, only new values are boxed
+		 */
+		int intern(double value) {
+			if (this.slots == null) this.reindex();
+			long key = Double.doubleToLongBits(value);
+			int mask = this.slots.length - 1;
+			for (int slot = hash(key) & mask; this.slots[slot] != 0; slot = (slot + 1) & mask) {
+				if (this.bits[slot] == key) return this.slots[slot] - 1;
+			}
+			return this.intern((Object) value);
+		}
+		
+		private void index(double value, int code) {
+			if (2 * this.values.size() > this.slots.length) {
+				this.reindex();
+				return;
+			}
+			long key = Double.doubleToLongBits(value);
+			int mask = this.slots.length - 1;
+			int slot = hash(key) & mask;
+			while (this.slots[slot] != 0) slot = (slot + 1) & mask;
+			this.bits[slot] = key;
+			this.slots[slot] = code + 1;
+		}
+		
+		private void reindex() {
+			int capacity = 16;
+			while (capacity < 4 * this.values.size()) capacity <<= 1;
+			this.bits = new long[capacity];
+			this.slots = new int[capacity];
+			for (int code = 0; code < this.values.size(); code++) {
+				if (this.values.get(code) instanceof Double) this.index((Double) this.values.get(code), code);
+			}
+		}
+		
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ h >>> 32);
+		}
+		
+		int lookup(Object value) {
+			return this.codes.getOrDefault(value, -1);
+		}
+		
+		Object value(int code) {
+			return this.values.get(code);
+		}
+		
+		int size() {
+			return this.values.size();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package tud.ke.ml.project.classifier;
+
+import java.util.Arrays;
+
+/**
+ * KD-tree over the numeric attributes of the training data.
+ * <p>
+ * Every node stores the bounding box of its rows, so a subtree is skipped as soon as the distance between the
+ * instance and the box exceeds the current k-th nearest distance. The box distance ignores nominal attributes, which
+ * keeps the search exact for mixed data as well, it just prunes less. The tree is built on the values of a
+ * {@link DistanceKernel}, so it serves both metrics but has to be rebuilt with the kernel. Rows appended to the kernel
+ * after the tree was built are compared linearly and rows removed from its front are ignored until the tree is
+ * rebuilt, see {@link #supports(DistanceKernel)}.
+ */
+public class KDTree implements NeighborSearch {
+	private static final long serialVersionUID = 1L;
+	
+	private static final int LEAF_SIZE = 16;
+	
+	private final DistanceKernel kernel;
+	private final double[] block;
+	private final int dimensions;
+	private final int[] order;
+	private final int removed;
+	
+	private int[] start, end, left, right, splitDimension, minRow, maxRow;
+	private double[] splitValue;
+	private double[] lo, hi;
+	private int numNodes;
+	
+	/**
+	 * Builds the tree over all rows of the kernel's store
+	 *
+	 * @param kernel the distance whose (normalized) values the tree is built on
+	 */
+	public KDTree(DistanceKernel kernel) {
+		this.kernel = kernel;
+		this.block = kernel.values();
+		this.removed = kernel.removed();
+		this.dimensions = kernel.getStore().numNumeric();
+		this.order = new int[kernel.getStore().size()];
+		for (int i = 0; i < this.order.length; i++) {
+			this.order[i] = i;
+		}
+		
+		int capacity = Math.max(1, 4 * this.order.length / LEAF_SIZE + 1);
+		this.start = new int[capacity];
+		this.end = new int[capacity];
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.splitDimension = new int[capacity];
+		this.minRow = new int[capacity];
+		this.maxRow = new int[capacity];
+		this.splitValue = new double[capacity];
+		this.lo = new double[capacity * this.dimensions];
+		this.hi = new double[capacity * this.dimensions];
+		build(0, this.order.length);
+	}
+	
+	private int build(int from, int to) {
+		int node = newNode(from, to);
+		double[] block = this.block;
+		int box = node * this.dimensions;
+		Arrays.fill(this.lo, box, box + this.dimensions, Double.POSITIVE_INFINITY);
+		Arrays.fill(this.hi, box, box + this.dimensions, Double.NEGATIVE_INFINITY);
+		for (int i = from; i < to; i++) {
+			int offset = this.order[i] * this.dimensions;
+			for (int p = 0; p < this.dimensions; p++) {
+				this.lo[box + p] = Math.min(this.lo[box + p], block[offset + p]);
+				this.hi[box + p] = Math.max(this.hi[box + p], block[offset + p]);
+			}
+		}
+		
+		int widest = -1;
+		double spread = 0;
+		for (int p = 0; p < this.dimensions; p++) {
+			if (this.hi[box + p] - this.lo[box + p] > spread) {
+				spread = this.hi[box + p] - this.lo[box + p];
+				widest = p;
+			}
+		}
+		if (to - from <= LEAF_SIZE || widest < 0) return node;
+		
+		int median = (from + to) >>> 1;
+		select(from, to - 1, median, widest);
+		this.splitDimension[node] = widest;
+		this.splitValue[node] = block[this.order[median] * this.dimensions + widest];
+		int leftChild = build(from, median);
+		int rightChild = build(median, to);
+		this.left[node] = leftChild;
+		this.right[node] = rightChild;
+		return node;
+	}
+	
+	private int newNode(int from, int to) {
+		if (this.numNodes == this.start.length) {
+			int capacity = this.numNodes * 2;
+			this.start = Arrays.copyOf(this.start, capacity);
+			this.end = Arrays.copyOf(this.end, capacity);
+			this.left = Arrays.copyOf(this.left, capacity);
+			this.right = Arrays.copyOf(this.right, capacity);
+			this.splitDimension = Arrays.copyOf(this.splitDimension, capacity);
+			this.minRow = Arrays.copyOf(this.minRow, capacity);
+			this.maxRow = Arrays.copyOf(this.maxRow, capacity);
+			this.splitValue = Arrays.copyOf(this.splitValue, capacity);
+			this.lo = Arrays.copyOf(this.lo, capacity * this.dimensions);
+			this.hi = Arrays.copyOf(this.hi, capacity * this.dimensions);
+		}
+		int node = this.numNodes++;
+		this.start[node] = from;
+		this.end[node] = to;
+		this.left[node] = -1;
+		this.right[node] = -1;
+		this.minRow[node] = Integer.MAX_VALUE;
+		this.maxRow[node] = Integer.MIN_VALUE;
+		for (int i = from; i < to; i++) {
+			this.minRow[node] = Math.min(this.minRow[node], this.order[i]);
+			this.maxRow[node] = Math.max(this.maxRow[node], this.order[i]);
+		}
+		return node;
+	}
+	
+	/**
+	 * Partially sorts order[from..to] so that the row at position k has the k-th smallest value in the dimension
+	 */
+	private void select(int from, int to, int k, int dimension) {
+		double[] block = this.block;
+		while (from < to) {
+			double pivot = block[this.order[(from + to) >>> 1] * this.dimensions + dimension];
+			int i = from, j = to;
+			while (i <= j) {
+				while (block[this.order[i] * this.dimensions + dimension] < pivot) i++;
+				while (block[this.order[j] * this.dimensions + dimension] > pivot) j--;
+				if (i <= j) {
+					int swap = this.order[i];
+					this.order[i++] = this.order[j];
+					this.order[j--] = swap;
+				}
+			}
+			if (k <= j) to = j;
+			else if (k >= i) from = i;
+			else return;
+		}
+	}
+	
+	@Override
+	public void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap) {
+		int shift = kernel.removed() - this.removed;
+		if (this.order.length > 0) search(0, shift, kernel, numeric, nominal, heap);
+		for (int row = Math.max(0, this.order.length - shift); row < kernel.size(); row++) {
+			kernel.offer(row, numeric, nominal, heap);
+		}
+	}
+	
+	/**
+	 * Row r of the tree is row r - shift of the kernel, rows with a negative index were removed
+	 */
+	private void search(int node, int shift, DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap) {
+		if (this.maxRow[node] < shift) return;
+		double bound = kernel.boxDistance(this.lo, this.hi, node * this.dimensions, numeric);
+		if (bound > heap.bound()) {
+			if (this.minRow[node] >= shift) {
+				heap.skip(this.end[node] - this.start[node], bound);
+				return;
+			}
+			if (this.left[node] < 0) {
+				heap.skip(this.live(node, shift), bound);
+				return;
+			}
+		} else if (this.left[node] < 0) {
+			for (int i = this.start[node]; i < this.end[node]; i++) {
+				if (this.order[i] >= shift) kernel.offer(this.order[i] - shift, numeric, nominal, heap);
+			}
+			return;
+		}
+		if (numeric[this.splitDimension[node]] < this.splitValue[node]) {
+			search(this.left[node], shift, kernel, numeric, nominal, heap);
+			search(this.right[node], shift, kernel, numeric, nominal, heap);
+		} else {
+			search(this.right[node], shift, kernel, numeric, nominal, heap);
+			search(this.left[node], shift, kernel, numeric, nominal, heap);
+		}
+	}
+	
+	private int live(int node, int shift) {
+		int live = 0;
+		for (int i = this.start[node]; i < this.end[node]; i++) {
+			if (this.order[i] >= shift) live++;
+		}
+		return live;
+	}
+	
+	/**
+	 * The tree is rebuilt once the rows appended or removed after the build exceed an eighth of the indexed rows,
+	 * which keeps the linear part of the search small at amortized logarithmic cost per changed row.
+	 */
+	@Override
+	public boolean supports(DistanceKernel kernel) {
+		int shift = kernel.removed() - this.removed;
+		int appended = kernel.size() - Math.max(0, this.order.length - shift);
+		return kernel == this.kernel && shift + appended <= this.order.length / 8 + LEAF_SIZE;
+	}
+}
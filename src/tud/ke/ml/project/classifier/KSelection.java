@@ -0,0 +1,62 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.Serializable;
+
+/**
+ * Leave-one-out accuracy of every amount of neighbors up to a maximum, for unweighted and for inverse-distance
+ * weighted voting. Computed by {@link NearestNeighbor#selectK(int)}.
+ */
+public class KSelection implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final long[][] correct;
+	private final int rows;
+	
+	/**
+	 * @param correct the amount of correctly classified rows, indexed by weighting (0 unweighted, 1 inverse distance)
+	 *                and k - 1
+	 * @param rows    the amount of evaluated rows
+	 */
+	KSelection(long[][] correct, int rows) {
+		this.correct = correct;
+		this.rows = rows;
+	}
+	
+	/**
+	 * @return the largest evaluated amount of neighbors
+	 */
+	public int getMaxK() {
+		return correct[0].length;
+	}
+	
+	/**
+	 * @param k                the amount of neighbors, between 1 and {@link #getMaxK()}
+	 * @param inverseWeighting true for votes weighted by the inverse distance
+	 * @return the fraction of training rows classified correctly by the other rows
+	 */
+	public double getAccuracy(int k, boolean inverseWeighting) {
+		return rows == 0 ? 0 : (double) correct[inverseWeighting ? 1 : 0][k - 1] / rows;
+	}
+	
+	/**
+	 * @param inverseWeighting true for votes weighted by the inverse distance
+	 * @return the amount of neighbors with the highest accuracy, the smallest one if several are equally accurate
+	 */
+	public int getBestK(boolean inverseWeighting) {
+		long[] correct = this.correct[inverseWeighting ? 1 : 0];
+		int best = 0;
+		for (int k = 1; k < correct.length; k++) {
+			if (correct[k] > correct[best]) best = k;
+		}
+		return best + 1;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("k\tunweighted\tinverse distance\n");
+		for (int k = 1; k <= getMaxK(); k++) {
+			result.append(String.format("%d\t%.4f\t%.4f%n", k, getAccuracy(k, false), getAccuracy(k, true)));
+		}
+		return result.toString();
+	}
+}
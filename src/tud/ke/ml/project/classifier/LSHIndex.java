@@ -0,0 +1,199 @@
+package tud.ke.ml.project.classifier;
+
+import weka.classifiers.lazy.keNN;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbor search by locality-sensitive hashing.
+ * <p>
+ * Every table concatenates several hash functions into one bucket key. A numeric hash projects the (normalized)
+ * numeric values onto a random direction and cuts the line into buckets of a fixed width. The directions are drawn
+ * from a 2-stable Gaussian distribution for the Euclidean metric and from a 1-stable Cauchy distribution for the
+ * Manhattan metric, so the projections of two rows differ in proportion to their distance. A nominal hash samples the
+ * value of one nominal attribute, each hash function is nominal with the share of nominal attributes. A query only
+ * compares the rows sharing a bucket with it in at least one table, with the exact distance of the
+ * {@link DistanceKernel}, so the neighbors found are ranked exactly but true neighbors can be missed. More tables
+ * raise the recall, more hashes per table and narrower buckets lower the amount of candidates.
+ * <p>
+ * Rows appended to the kernel after the build are compared linearly and rows removed from its front are ignored until
+ * the index is rebuilt, like {@link KDTree}.
+ */
+public class LSHIndex implements NeighborSearch {
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Amount of random row pairs whose mean distance is the unit of the bucket width
+	 */
+	private static final int SAMPLE = 256;
+	
+	private final DistanceKernel kernel;
+	private final int metric;
+	private final int removed;
+	private final int size;
+	private final int dimensions;
+	private final int numTables;
+	private final int numHashes;
+	private final double width;
+	/**
+	 * Direction of every numeric hash function, indexed by (table * numHashes + hash) * dimensions
+	 */
+	private final double[] directions;
+	private final double[] offsets;
+	/**
+	 * Nominal attribute sampled by every hash function, -1 for a projection
+	 */
+	private final int[] attributes;
+	/**
+	 * Per table the rows sorted by bucket, every entry holds the bucket in the upper and the row in the lower half
+	 */
+	private final long[][] buckets;
+	
+	private transient ThreadLocal<RowMarks> marks;
+	
+	/**
+	 * Hashes all rows of the kernel's store
+	 *
+	 * @param kernel    the distance whose (normalized) values are hashed
+	 * @param numTables the amount of hash tables
+	 * @param numHashes the amount of hash functions concatenated per table
+	 * @param width     the bucket width of the projections relative to the mean distance between two training rows
+	 * @param seed      the seed of the random hash functions
+	 */
+	public LSHIndex(DistanceKernel kernel, int numTables, int numHashes, double width, long seed) {
+		this.kernel = kernel;
+		this.metric = kernel.getMetric();
+		this.removed = kernel.removed();
+		this.size = kernel.size();
+		this.dimensions = kernel.getStore().numNumeric();
+		this.numTables = Math.max(1, numTables);
+		this.numHashes = Math.max(1, numHashes);
+		
+		Random random = new Random(seed);
+		this.width = width * this.meanDistance(random);
+		int numNominal = kernel.getStore().numNominal();
+		int functions = this.numTables * this.numHashes;
+		this.directions = new double[functions * this.dimensions];
+		this.offsets = new double[functions];
+		this.attributes = new int[functions];
+		for (int f = 0; f < functions; f++) {
+			if (random.nextInt(numNominal + this.dimensions) < numNominal) {
+				this.attributes[f] = random.nextInt(numNominal);
+				continue;
+			}
+			this.attributes[f] = -1;
+			this.offsets[f] = random.nextDouble() * this.width;
+			for (int p = 0; p < this.dimensions; p++) {
+				this.directions[f * this.dimensions + p] = this.metric == keNN.DIST_EUCLIDEAN
+						? random.nextGaussian()
+						: Math.tan(Math.PI * (random.nextDouble() - 0.5));
+			}
+		}
+		
+		double[] values = new double[this.dimensions];
+		this.buckets = new long[this.numTables][this.size];
+		for (int row = 0; row < this.size; row++) {
+			kernel.row(row, values);
+			for (int table = 0; table < this.numTables; table++) {
+				this.buckets[table][row] = (long) this.bucket(table, values, 0, row, null) << 32 | row;
+			}
+		}
+		for (long[] entries : this.buckets) {
+			Arrays.sort(entries);
+		}
+	}
+	
+	/**
+	 * Scale of the bucket width, the mean distance between random pairs of rows
+	 */
+	private double meanDistance(Random random) {
+		if (this.size < 2) return 1;
+		double sum = 0;
+		for (int i = 0; i < SAMPLE; i++) {
+			sum += this.kernel.distance(random.nextInt(this.size), random.nextInt(this.size));
+		}
+		return sum > 0 ? sum / SAMPLE : 1;
+	}
+	
+	/**
+	 * Computes the bucket of a stored row or, if the packed nominal values are given, of an instance
+	 *
+	 * @param values  numeric values of the row or instance
+	 * @param offset  position of the first numeric value
+	 * @param row     index of the training row, ignored for an instance
+	 * @param nominal packed nominal values of the instance, null for a stored row
+	 */
+	private int bucket(int table, double[] values, int offset, int row, long[] nominal) {
+		long key = table;
+		for (int f = table * this.numHashes; f < (table + 1) * this.numHashes; f++) {
+			long component;
+			if (this.attributes[f] >= 0) {
+				component = nominal == null ? this.kernel.nominalValue(row, this.attributes[f]) : this.kernel.nominalValue(nominal, this.attributes[f]);
+			} else {
+				double projection = this.offsets[f];
+				for (int p = 0, direction = f * this.dimensions; p < this.dimensions; p++) {
+					projection += this.directions[direction + p] * values[offset + p];
+				}
+				component = (long) Math.floor(projection / this.width);
+			}
+			key = (key + component) * 0x9E3779B97F4A7C15L;
+		}
+		return (int) (key ^ key >>> 32);
+	}
+	
+	@Override
+	public void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap) {
+		int shift = kernel.removed() - this.removed;
+		RowMarks marks = this.marks();
+		marks.next();
+		for (int table = 0; table < this.numTables; table++) {
+			long[] entries = this.buckets[table];
+			long bucket = (long) this.bucket(table, numeric, 0, -1, nominal) << 32;
+			for (int i = lowerBound(entries, bucket); i < entries.length && (entries[i] & 0xFFFFFFFF00000000L) == bucket; i++) {
+				int row = (int) entries[i];
+				if (marks.mark(row) && row >= shift) kernel.offer(row - shift, numeric, nominal, heap);
+			}
+		}
+		for (int row = Math.max(0, this.size - shift); row < kernel.size(); row++) {
+			kernel.offer(row, numeric, nominal, heap);
+		}
+	}
+	
+	/**
+	 * @return the first position whose entry is not smaller than the key
+	 */
+	private static int lowerBound(long[] entries, long key) {
+		int low = 0, high = entries.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (entries[middle] < key) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+	
+	private RowMarks marks() {
+		ThreadLocal<RowMarks> marks = this.marks;
+		if (marks == null) {
+			marks = ThreadLocal.withInitial(() -> new RowMarks(this.size));
+			this.marks = marks;
+		}
+		return marks.get();
+	}
+	
+	/**
+	 * The index is rebuilt once the rows appended or removed after the build exceed an eighth of the indexed rows
+	 */
+	@Override
+	public boolean isExact() {
+		return false;
+	}
+	
+	@Override
+	public boolean supports(DistanceKernel kernel) {
+		int shift = kernel.removed() - this.removed;
+		int appended = kernel.size() - Math.max(0, this.size - shift);
+		return kernel == this.kernel && kernel.getMetric() == this.metric && shift + appended <= this.size / 8 + 1;
+	}
+}
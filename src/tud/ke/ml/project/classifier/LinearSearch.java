@@ -0,0 +1,40 @@
+package tud.ke.ml.project.classifier;
+
+/**
+ * Compares the instance with every training row.
+ */
+public class LinearSearch implements NeighborSearch {
+	private static final long serialVersionUID = 1L;
+	
+	private final InstanceStore store;
+	
+	public LinearSearch(InstanceStore store) {
+		this.store = store;
+	}
+	
+	@Override
+	public void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap) {
+		search(kernel, numeric, nominal, heap, 0, kernel.size());
+	}
+	
+	/**
+	 * Compares the instance with the training rows in [from, to)
+	 *
+	 * @param kernel  the distance to use
+	 * @param numeric numeric values of the instance
+	 * @param nominal packed nominal values of the instance
+	 * @param heap    collector of the nearest neighbors
+	 * @param from    first row to compare
+	 * @param to      end of the rows to compare, exclusive
+	 */
+	public void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap, int from, int to) {
+		for (int row = from; row < to; row++) {
+			kernel.offer(row, numeric, nominal, heap);
+		}
+	}
+	
+	@Override
+	public boolean supports(DistanceKernel kernel) {
+		return kernel.getStore() == this.store;
+	}
+}
@@ -0,0 +1,347 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary file format of a learned {@link NearestNeighbor}.
+ * <p>
+ * The file starts with a header holding the settings, the schema, the dictionaries of the nominal attributes and of
+ * the class, the normalization and the {@link AttributeStatistics}. It is followed by the blocks of the
+ * {@link InstanceStore} and its {@link DistanceKernel} exactly in their in-memory layout, each aligned to 8 bytes and
+ * in little-endian byte order: the numeric values, the normalized numeric values if normalization is used, the nominal
+ * codes, the packed nominal values, the labels and the timestamps.
+ * <p>
+ * Reading maps the numeric blocks as {@link OffHeapBlock}s, so queries read the values straight from the page cache
+ * and loading does not depend on the size of the numeric data. The other blocks are copied with a single bulk
+ * transfer each, so no object is created per row. Nothing is normalized, packed or summarized again, only the index of
+ * the search strategy is built by the first query. The loaded model copies its numeric values onto the heap as soon
+ * as it is changed or searched with the KD-tree, unless it was written with {@link NearestNeighbor#setOffHeap(boolean)}.
+ * {@link CrossValidation} reads the mapped values in place.
+ * The file must not be changed while it is mapped. The header is written with {@link DataOutputStream}, nominal values
+ * and class values have to be Strings or Doubles.
+ */
+public class ModelFile {
+	private static final int MAGIC = 0x6b4e4e31;
+	/**
+	 * Raised with every change of the layout, files of any other version are rejected
+	 */
+	private static final int VERSION = 6;
+	/**
+	 * Largest region mapped at once, a single mapping is limited to 2 GB
+	 */
+	private static final int MAX_MAPPING = 1 << 30;
+	
+	private ModelFile() {
+	}
+	
+	/**
+	 * Writes a learned model. An existing file is replaced atomically instead of being overwritten, so models which
+	 * still map the old file keep reading it.
+	 *
+	 * @param model a model which keeps its raw values, see {@link NearestNeighbor#setKeepingRawValues(boolean)}
+	 * @param path  the file to create or replace
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(NearestNeighbor model, Path path) throws IOException {
+		InstanceStore store = model.getStore();
+		if (store == null) throw new IllegalStateException("No model learned");
+		DistanceKernel kernel = model.getKernel();
+		byte[] header = header(model, store, kernel);
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(1 << 20, (header.length + 15) & ~7)).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(header.length);
+			buffer.put(header);
+			align(buffer);
+			int size = store.size();
+			if (store.numericBlock() == null) write(channel, buffer, store.numeric(), size * store.numNumeric());
+			else write(channel, buffer, store.numericBlock(), store.numNumeric());
+			if (kernel.isNormalizing()) {
+				if (kernel.block() == null) write(channel, buffer, kernel.values(), size * store.numNumeric());
+				else write(channel, buffer, kernel.block(), store.numNumeric());
+			}
+			write(channel, buffer, store.nominal(), size * store.numNominal());
+			write(channel, buffer, kernel.bits().block(), size * kernel.bits().stride());
+			write(channel, buffer, store.labels(), size);
+			write(channel, buffer, store.timestamps(), size);
+			flush(channel, buffer);
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static byte[] header(NearestNeighbor model, InstanceStore store, DistanceKernel kernel) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		
+		out.writeInt(model.getkNearest());
+		out.writeInt(model.getMetric());
+		out.writeBoolean(model.isNormalizing());
+		out.writeBoolean(model.isInverseWeighting());
+		out.writeInt(model.getScalingMode());
+		out.writeInt(model.getSearchStrategy());
+		out.writeInt(model.getWindowSize());
+		out.writeLong(model.getWindowDuration());
+		out.writeInt(model.getHashTables());
+		out.writeInt(model.getHashesPerTable());
+		out.writeDouble(model.getHashWidth());
+		out.writeInt(model.getGraphDegree());
+		out.writeInt(model.getConstructionBeam());
+		out.writeInt(model.getSearchBeam());
+		out.writeInt(model.getNumericStorage());
+		out.writeInt(model.getRerankFactor());
+		out.writeBoolean(model.isOffHeap());
+		
+		out.writeInt(store.numAttributes());
+		out.writeInt(store.getClassAttribute());
+		for (int i = 0; i < store.numAttributes(); i++) {
+			out.writeBoolean(store.isNumeric(i));
+		}
+		for (int p = 0; p < store.numNumeric(); p++) {
+			out.writeInt(store.numericAttribute(p));
+		}
+		for (int p = 0; p < store.numNominal(); p++) {
+			out.writeInt(store.numValues(p));
+			for (int code = 0; code < store.numValues(p); code++) {
+				writeValue(out, store.nominalValue(p, code));
+			}
+		}
+		out.writeInt(store.numClasses());
+		for (int label = 0; label < store.numClasses(); label++) {
+			writeValue(out, store.classValue(label));
+		}
+		
+		out.writeBoolean(model.scaling != null);
+		if (model.scaling != null) {
+			for (int i = 0; i < store.numAttributes(); i++) {
+				out.writeDouble(model.scaling[i]);
+				out.writeDouble(model.translation[i]);
+			}
+		}
+		out.writeBoolean(kernel.isNormalizing());
+		model.getAttributeStatistics().write(out);
+		out.writeInt(store.size());
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value instanceof Double) {
+			out.writeBoolean(true);
+			out.writeDouble((Double) value);
+		} else if (value instanceof String) {
+			out.writeBoolean(false);
+			out.writeUTF((String) value);
+		} else {
+			throw new IOException("Value cannot be written: " + value);
+		}
+	}
+	
+	/**
+	 * Reads a model, the index of its search strategy is built by the first query
+	 *
+	 * @param path a file written by {@link #write(NearestNeighbor, Path)}
+	 * @return the model with the settings it was written with
+	 * @throws IOException if the file cannot be read, is no model file or was written with another version of the layout
+	 */
+	public static NearestNeighbor read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, length, 0);
+			ByteBuffer header = ByteBuffer.allocate(length.getInt(0));
+			readFully(channel, header, Integer.BYTES);
+			long offset = (Integer.BYTES + header.capacity() + 7) & ~7L;
+			
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+			if (in.readInt() != MAGIC) throw new IOException("No model file: " + path);
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Model file version " + version + " unsupported, expected " + VERSION + ": " + path);
+			
+			NearestNeighbor model = new NearestNeighbor();
+			model.setkNearest(in.readInt());
+			model.setMetric(in.readInt());
+			model.setNormalizing(in.readBoolean());
+			model.setInverseWeighting(in.readBoolean());
+			model.setScalingMode(in.readInt());
+			model.setSearchStrategy(in.readInt());
+			model.setWindowSize(in.readInt());
+			model.setWindowDuration(in.readLong());
+			model.setHashTables(in.readInt());
+			model.setHashesPerTable(in.readInt());
+			model.setHashWidth(in.readDouble());
+			model.setGraphDegree(in.readInt());
+			model.setConstructionBeam(in.readInt());
+			model.setSearchBeam(in.readInt());
+			model.setNumericStorage(in.readInt());
+			model.setRerankFactor(in.readInt());
+			model.setOffHeap(in.readBoolean());
+			
+			boolean[] isNumeric = new boolean[in.readInt()];
+			int classAttribute = in.readInt();
+			for (int i = 0; i < isNumeric.length; i++) {
+				isNumeric[i] = in.readBoolean();
+			}
+			InstanceStore store = new InstanceStore(isNumeric, classAttribute);
+			int[] order = new int[store.numNumeric()];
+			for (int p = 0; p < order.length; p++) {
+				int attribute = in.readInt();
+				for (int q = 0; q < order.length; q++) {
+					if (store.numericAttribute(q) == attribute) order[p] = q;
+				}
+			}
+			store.reorderNumeric(order);
+			for (int p = 0; p < store.numNominal(); p++) {
+				store.declareValues(store.nominalAttribute(p), readValues(in));
+			}
+			store.declareValues(classAttribute, readValues(in));
+			
+			double[] scaling = null, translation = null;
+			if (in.readBoolean()) {
+				scaling = new double[isNumeric.length];
+				translation = new double[isNumeric.length];
+				for (int i = 0; i < isNumeric.length; i++) {
+					scaling[i] = in.readDouble();
+					translation[i] = in.readDouble();
+				}
+			}
+			boolean normalizing = in.readBoolean();
+			AttributeStatistics statistics = AttributeStatistics.read(store, in);
+			int size = in.readInt();
+			
+			OffHeapBlock numeric = OffHeapBlock.map(channel, offset, size, store.numNumeric());
+			offset = end(offset, (long) size * store.numNumeric(), Double.BYTES);
+			store.allocate(size, numeric);
+			OffHeapBlock normalized = numeric;
+			if (normalizing) {
+				normalized = OffHeapBlock.map(channel, offset, size, store.numNumeric());
+				offset = end(offset, (long) size * store.numNumeric(), Double.BYTES);
+			}
+			offset = read(channel, offset, store.nominal(), Integer.BYTES);
+			NominalBits bits = NominalBits.allocate(store);
+			offset = read(channel, offset, bits.block(), Long.BYTES);
+			offset = read(channel, offset, store.labels(), Integer.BYTES);
+			read(channel, offset, store.timestamps(), Long.BYTES);
+			
+			DistanceKernel kernel = normalizing
+					? new DistanceKernel(store, model.getMetric(), scaling, translation, normalized, bits)
+					: new DistanceKernel(store, model.getMetric(), null, null, normalized, bits);
+			model.restore(store, scaling, translation, statistics, kernel);
+			return model;
+		}
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Model file truncated");
+		}
+	}
+	
+	private static List<Object> readValues(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Object> values = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			values.add(in.readBoolean() ? (Object) in.readDouble() : in.readUTF());
+		}
+		return values;
+	}
+	
+	/**
+	 * Copies a block from the file into a primitive array, mapping at most {@link #MAX_MAPPING} bytes at once
+	 *
+	 * @return the aligned offset behind the block
+	 */
+	private static long read(FileChannel channel, long offset, Object array, int width) throws IOException {
+		int length = Array.getLength(array);
+		int chunk = MAX_MAPPING / width;
+		for (int from = 0; from < length; from += chunk) {
+			int count = Math.min(chunk, length - from);
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset + (long) from * width, (long) count * width);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (array instanceof double[]) buffer.asDoubleBuffer().get((double[]) array, from, count);
+			else if (array instanceof int[]) buffer.asIntBuffer().get((int[]) array, from, count);
+			else buffer.asLongBuffer().get((long[]) array, from, count);
+		}
+		return end(offset, length, width);
+	}
+	
+	/**
+	 * @return the aligned offset behind a block of the given amount of values starting at the offset
+	 */
+	private static long end(long offset, long length, int width) {
+		return (offset + length * width + 7) & ~7L;
+	}
+	
+	private static void write(FileChannel channel, ByteBuffer buffer, double[] block, int length) throws IOException {
+		for (int from = 0; from < length; ) {
+			if (buffer.remaining() < Double.BYTES) flush(channel, buffer);
+			int count = Math.min(length - from, buffer.remaining() / Double.BYTES);
+			buffer.asDoubleBuffer().put(block, from, count);
+			buffer.position(buffer.position() + count * Double.BYTES);
+			from += count;
+		}
+		align(buffer);
+	}
+	
+	/**
+	 * Writes an off-heap block through a small array, so the values are not copied into the heap at once
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer, OffHeapBlock block, int width) throws IOException {
+		int rows = Math.max(1, (1 << 20) / Double.BYTES / Math.max(1, width));
+		double[] values = new double[Math.min(rows, block.rows()) * width];
+		for (int from = 0; from < block.rows(); from += rows) {
+			int count = Math.min(rows, block.rows() - from);
+			block.get(from, count, values);
+			write(channel, buffer, values, count * width);
+		}
+	}
+	
+	private static void write(FileChannel channel, ByteBuffer buffer, int[] block, int length) throws IOException {
+		for (int from = 0; from < length; ) {
+			if (buffer.remaining() < Integer.BYTES) flush(channel, buffer);
+			int count = Math.min(length - from, buffer.remaining() / Integer.BYTES);
+			buffer.asIntBuffer().put(block, from, count);
+			buffer.position(buffer.position() + count * Integer.BYTES);
+			from += count;
+		}
+		align(buffer);
+	}
+	
+	private static void write(FileChannel channel, ByteBuffer buffer, long[] block, int length) throws IOException {
+		for (int from = 0; from < length; ) {
+			if (buffer.remaining() < Long.BYTES) flush(channel, buffer);
+			int count = Math.min(length - from, buffer.remaining() / Long.BYTES);
+			buffer.asLongBuffer().put(block, from, count);
+			buffer.position(buffer.position() + count * Long.BYTES);
+			from += count;
+		}
+		align(buffer);
+	}
+	
+	/**
+	 * Pads the buffer to the next multiple of 8 bytes, the buffer is always flushed at multiples of 8 bytes
+	 */
+	private static void align(ByteBuffer buffer) {
+		while ((buffer.position() & 7) != 0) buffer.put((byte) 0);
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+}
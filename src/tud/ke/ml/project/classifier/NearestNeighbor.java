@@ -3,25 +3,69 @@ package tud.ke.ml.project.classifier;
 import tud.ke.ml.project.util.Pair;
 import weka.classifiers.lazy.keNN;
 
+import java.io.Closeable;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * This implementation assumes the class attribute is always available (but probably not set).
+ * <p>
+ * With {@link #setOffHeap(boolean)} the numeric training values live outside the heap. {@link #close()} returns that
+ * memory and the one of the distance matrix right away.
  */
-public class NearestNeighbor extends INearestNeighbor implements Serializable {
+public class NearestNeighbor extends INearestNeighbor implements Serializable, Closeable {
 	private static final long serialVersionUID = 1L;
 	
 	protected double[] scaling;
 	protected double[] translation;
 	
-	private List<List<Object>> trainData;
+	private InstanceStore store;
 	private int numAttributes;
+	private DistanceKernel kernel;
+	private NeighborSearch search;
+	private int searchStrategy = keNN.SEARCH_LINEAR;
+	private int builtSearchStrategy;
+	private int hashTables = 10;
+	private int hashesPerTable = 6;
+	private double hashWidth = 1;
+	private int numericStorage = keNN.STORAGE_DOUBLE;
+	private int rerankFactor = 4;
+	private int graphDegree = 16;
+	private int constructionBeam = 100;
+	private int searchBeam = 50;
+	private final SearchStatistics statistics = new SearchStatistics();
+	private int numThreads;
+	private int parallelScanThreshold;
+	private boolean keepingRawValues = true;
+	private boolean rawDiscarded;
+	private boolean offHeap;
+	private boolean mapped;
+	private int scalingMode = keNN.SCALE_RANGE;
+	private int builtScalingMode;
+	private AttributeStatistics attributeStatistics;
+	private int windowSize;
+	private long windowDuration;
+	private int evicted;
+	private boolean cachingDistances;
+	private long distanceSpillThreshold = 1L << 30;
+	private transient DistanceMatrix distances;
+	private transient ForkJoinPool pool;
+	private transient ThreadLocal<Scratch> scratch;
 	
 	// TODO: add missing matrikel numbers
 	@Override
@@ -31,14 +75,599 @@ public class NearestNeighbor extends INearestNeighbor implements Serializable {
 	
 	@Override
 	protected void learnModel(List<List<Object>> data) {
-		this.trainData = data;
-		this.numAttributes = data.get(0).size();
+		InstanceStore store = InstanceStore.forPrototype(data.get(0), this.getClassAttribute());
+		for (List<Object> row : data) {
+			store.add(row);
+		}
+		this.learnStore(store);
+	}
+	
+	/**
+	 * Learns the model from rows which were written into a store directly, e.g. via
+	 * {@link InstanceStore#add(double[])}. Afterwards the store must only be changed via {@link #addInstance(double[])}
+	 * and {@link #removeInstance(List)}.
+	 *
+	 * @param store the training data
+	 */
+	public void learnModel(InstanceStore store) {
+		this.setClassAttribute(store.getClassAttribute());
+		this.learnStore(store);
+	}
+	
+	private void learnStore(InstanceStore store) {
+		this.store = store;
+		this.store.remove(0, this.excess());
+		this.store.trimToSize();
+		this.numAttributes = this.store.numAttributes();
+		this.attributeStatistics = this.execute(this.pool(), () -> AttributeStatistics.of(this.store, this.isWindowed()));
+		
+		this.scaling = null;
+		this.translation = null;
+		this.kernel = null;
+		this.search = null;
+		this.evicted = 0;
+		this.rawDiscarded = false;
+		this.mapped = false;
+		this.statistics.reset();
+		this.prepareSearch();
+	}
+	
+	/**
+	 * Restores a model written by {@link ModelFile}. The normalization, the statistics and the kernel are used as
+	 * they are, the index is built by the first query. Unless the model keeps its values off heap, the mapped values
+	 * are copied onto the heap as soon as the model is changed or searched with the KD-tree.
+	 *
+	 * @param store       the training data
+	 * @param scaling     the normalization factors, null if the model was saved without them
+	 * @param translation the normalization offsets, null if the model was saved without them
+	 * @param statistics  the statistics of the training data
+	 * @param kernel      the kernel over the training data
+	 */
+	void restore(InstanceStore store, double[] scaling, double[] translation, AttributeStatistics statistics, DistanceKernel kernel) {
+		this.setClassAttribute(store.getClassAttribute());
+		this.store = store;
+		this.numAttributes = store.numAttributes();
+		this.attributeStatistics = statistics;
 		
-		if (this.isNormalizing()) {
+		this.scaling = scaling;
+		this.translation = translation;
+		this.builtScalingMode = this.scalingMode;
+		this.kernel = kernel;
+		this.search = null;
+		this.rawDiscarded = false;
+		this.mapped = true;
+		this.evicted = 0;
+		this.statistics.reset();
+	}
+	
+	/**
+	 * @return true while the numeric training values of a model loaded by {@link ModelFile} are read from the mapped
+	 * file instead of the heap
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+	
+	/**
+	 * Copies the numeric values of a model loaded by {@link ModelFile} onto the heap and unmaps the file, so the
+	 * model can be changed like a learned one
+	 */
+	private void moveOnHeap() {
+		if (this.kernel != null) this.kernel.moveOnHeap();
+		this.store.moveNumericOnHeap();
+		this.mapped = false;
+	}
+	
+	/**
+	 * @return true for every attribute holding numeric values, null if no model was learned
+	 */
+	public boolean[] getNumericAttributes() {
+		if (this.store == null) return null;
+		boolean[] isNumeric = new boolean[this.store.numAttributes()];
+		for (int i = 0; i < isNumeric.length; i++) {
+			isNumeric[i] = this.store.isNumeric(i);
+		}
+		return isNumeric;
+	}
+	
+	/**
+	 * @return the training data, null if no model was learned
+	 */
+	InstanceStore getStore() {
+		if (this.rawDiscarded) throw new IllegalStateException("Raw values discarded, the training data is normalized");
+		return store;
+	}
+	
+	/**
+	 * Adds a training instance to the learned model without relearning it. The attribute statistics are updated
+	 * immediately, the distance kernel and the neighbor index are extended by the next query. They are only rebuilt if
+	 * the instance changes the normalization or holds a nominal value never seen before.
+	 *
+	 * @param row all attribute values of the instance including the class value
+	 */
+	public void addInstance(List<Object> row) {
+		this.checkUpdateable();
+		this.store.add(row);
+		this.added();
+	}
+	
+	/**
+	 * Adds a training instance which arrived at the given time, see {@link #addInstance(List)} and
+	 * {@link #setWindowDuration(long)}
+	 *
+	 * @param row       all attribute values of the instance including the class value
+	 * @param timestamp the arrival time in milliseconds, not before the arrival of any earlier instance
+	 */
+	public void addInstance(List<Object> row, long timestamp) {
+		this.checkUpdateable();
+		this.store.add(row);
+		this.store.setTimestamp(this.store.size() - 1, timestamp);
+		this.added();
+	}
+	
+	/**
+	 * Adds a training instance given in the primitive layout of {@link InstanceStore#add(double[])}, see
+	 * {@link #addInstance(List)}
+	 *
+	 * @param values all attribute values of the instance including the class value
+	 */
+	public void addInstance(double[] values) {
+		this.checkUpdateable();
+		this.store.add(values);
+		this.added();
+	}
+	
+	/**
+	 * Adds a training instance given in the primitive layout of {@link InstanceStore#add(double[])} which arrived at
+	 * the given time, see {@link #addInstance(List, long)}
+	 *
+	 * @param values    all attribute values of the instance including the class value
+	 * @param timestamp the arrival time in milliseconds, not before the arrival of any earlier instance
+	 */
+	public void addInstance(double[] values, long timestamp) {
+		this.checkUpdateable();
+		this.store.add(values);
+		this.store.setTimestamp(this.store.size() - 1, timestamp);
+		this.added();
+	}
+	
+	/**
+	 * Updates the statistics for the last row of the store. Rows which left the window are only evicted once they
+	 * exceed an eighth of the model, so the store is not shifted for every single instance.
+	 */
+	private void added() {
+		this.attributeStatistics.add(this.store, this.store.size() - 1);
+		this.evict(this.store.size() / 8);
+	}
+	
+	/**
+	 * Removes the rows in front of the window from the store and the statistics. The kernel drops them by the next
+	 * query.
+	 *
+	 * @param slack the amount of rows which may stay in front of the window
+	 */
+	private void evict(int slack) {
+		int excess = this.excess();
+		if (excess <= slack) return;
+		if (this.attributeStatistics.isWindowed()) {
+			for (int row = 0; row < excess; row++) {
+				this.attributeStatistics.removeOldest(this.store, row);
+			}
+			this.store.remove(0, excess);
+		} else {
+			this.store.remove(0, excess);
+			this.attributeStatistics = this.execute(this.pool(), () -> AttributeStatistics.of(this.store, true));
+		}
+		this.evicted += excess;
+	}
+	
+	/**
+	 * @return the amount of rows in front of the window, which are either too many or older than the window duration
+	 * relative to the newest row
+	 */
+	private int excess() {
+		int size = this.store.size();
+		int excess = this.windowSize > 0 ? Math.max(0, size - this.windowSize) : 0;
+		if (this.windowDuration > 0 && size > 0) {
+			long oldest = this.store.getTimestamp(size - 1) - this.windowDuration;
+			while (excess < size && this.store.getTimestamp(excess) <= oldest) excess++;
+		}
+		return excess;
+	}
+	
+	private boolean isWindowed() {
+		return this.windowSize > 0 || this.windowDuration > 0;
+	}
+	
+	/**
+	 * Removes the first training instance with exactly the given values. The remaining rows keep their order, so the
+	 * model answers like a model learned without the instance. The kernel and the index are rebuilt by the next query.
+	 *
+	 * @param row all attribute values of the instance including the class value
+	 * @return false if no such instance exists
+	 */
+	public boolean removeInstance(List<Object> row) {
+		this.checkUpdateable();
+		int index = this.store.indexOf(row);
+		if (index < 0) return false;
+		boolean bounded = this.attributeStatistics.remove(this.store, index);
+		this.store.remove(index);
+		if (!bounded) this.attributeStatistics = this.execute(this.pool(), () -> AttributeStatistics.of(this.store, this.isWindowed()));
+		this.scaling = null;
+		this.translation = null;
+		this.kernel = null;
+		this.evicted = 0;
+		return true;
+	}
+	
+	private void checkUpdateable() {
+		if (this.store == null) throw new IllegalStateException("No model learned");
+		if (this.rawDiscarded) throw new IllegalStateException("Raw values discarded, the model cannot be updated");
+		if (this.isCompressed()) throw new IllegalStateException("Numeric values compressed, the model cannot be updated");
+		if (this.mapped && !this.offHeap) this.moveOnHeap();
+		if (this.isStoredOffHeap()) throw new IllegalStateException("Numeric values off heap, the model cannot be updated");
+	}
+	
+	/**
+	 * @return true if the numeric block of the store was moved off heap, which makes the model read-only
+	 */
+	private boolean isStoredOffHeap() {
+		return this.store.numericBlock() != null;
+	}
+	
+	/**
+	 * @return true if the linear scan reads a compressed copy of the numeric values, which makes the model read-only
+	 */
+	private boolean isCompressed() {
+		return this.searchStrategy == keNN.SEARCH_LINEAR && this.numericStorage != keNN.STORAGE_DOUBLE;
+	}
+	
+	/**
+	 * Creates the distance kernel and the neighbor search for the current settings. Both are only rebuilt if the
+	 * metric, the normalization or the search strategy changed since the last call. A change of the metric reuses the
+	 * normalized values of the previous kernel. Rows which left the window are evicted first.
+	 */
+	private void prepareSearch() {
+		if (this.store == null) throw new IllegalStateException("No model learned");
+		if (this.isWindowed() && !this.rawDiscarded && !this.isStoredOffHeap()) this.evict(0);
+		if (this.kernel != null && this.evicted > 0) this.kernel.removeFirst(Math.min(this.evicted, this.kernel.size()));
+		if (this.kernel != null && (this.evicted > 0 || this.kernel.size() != this.store.size())) this.appendToKernel();
+		this.evicted = 0;
+		boolean rescaled = this.isNormalizing() && this.builtScalingMode != this.scalingMode;
+		if (this.kernel == null || this.kernel.isNormalizing() != this.isNormalizing() || rescaled) {
+			if (this.rawDiscarded) throw new IllegalStateException("Raw values discarded, normalization cannot be changed");
+			if (this.mapped && !this.offHeap) this.moveOnHeap();
+			if (this.isStoredOffHeap()) throw new IllegalStateException("Numeric values off heap, normalization cannot be changed");
+			if (this.isNormalizing() && (this.scaling == null || rescaled)) {
+				double[][] normalization = this.normalizationScaling();
+				this.scaling = normalization[0];
+				this.translation = normalization[1];
+				this.builtScalingMode = this.scalingMode;
+			}
+			this.store.reorderNumeric(this.varianceOrder());
+			this.kernel = this.isNormalizing()
+					? new DistanceKernel(this.store, this.getMetric(), this.scaling, this.translation)
+					: new DistanceKernel(this.store, this.getMetric(), null, null);
+			if (this.isNormalizing() && !this.keepingRawValues) {
+				this.store.replaceNumeric(this.kernel.values());
+				this.rawDiscarded = true;
+			}
+			if (this.offHeap) {
+				this.kernel.moveOffHeap();
+				this.store.moveNumericOffHeap();
+			}
+			this.search = null;
+		} else if (this.kernel.getMetric() != this.getMetric()) {
+			this.kernel.setMetric(this.getMetric());
+		}
+		if (this.search == null || this.builtSearchStrategy != this.searchStrategy || !this.search.supports(this.kernel)) {
+			if (this.mapped && !this.offHeap && this.searchStrategy == keNN.SEARCH_KDTREE) this.moveOnHeap();
+			if (this.isCompressed()) {
+				// the compressed copy replaces the doubles on the heap, re-ranking reads the candidates from the page cache
+				this.kernel.spill();
+				this.store.spillNumeric();
+			}
+			this.search = this.newSearch(this.kernel);
+			this.builtSearchStrategy = this.searchStrategy;
+		}
+		if (this.distances != null && !this.distances.isValid(this.kernel)) {
+			this.distances.release();
+			this.distances = null;
+		}
+	}
+	
+	/**
+	 * @return the distance over the current training rows and settings
+	 */
+	DistanceKernel getKernel() {
+		this.prepareSearch();
+		return this.kernel;
+	}
+	
+	/**
+	 * Returns the distances between all training rows, computing them if the model changed since the last call. The
+	 * matrix is released as soon as the metric, the normalization or the training rows change.
+	 *
+	 * @return the distance matrix of the current kernel
+	 */
+	public DistanceMatrix getDistanceMatrix() {
+		this.prepareSearch();
+		if (this.distances == null) this.distances = new DistanceMatrix(this.kernel, this.distanceSpillThreshold, this);
+		return this.distances;
+	}
+	
+	/**
+	 * @param kernel a kernel over the store of this model
+	 * @return a new index of the configured search strategy
+	 */
+	NeighborSearch newSearch(DistanceKernel kernel) {
+		switch (this.searchStrategy) {
+			case keNN.SEARCH_LINEAR:
+				if (this.numericStorage != keNN.STORAGE_DOUBLE) return new QuantizedScan(kernel, this.numericStorage, this.rerankFactor);
+				return new LinearSearch(this.store);
+			case keNN.SEARCH_KDTREE:
+				if (kernel.isOffHeap()) throw new IllegalStateException("Numeric values off heap, the KD-tree needs them on the heap");
+				return new KDTree(kernel);
+			case keNN.SEARCH_VPTREE:
+				return new VPTree(kernel);
+			case keNN.SEARCH_LSH:
+				return new LSHIndex(kernel, this.hashTables, this.hashesPerTable, this.hashWidth, 1);
+			case keNN.SEARCH_HNSW:
+				return new HNSWIndex(kernel, this.graphDegree, this.constructionBeam, this.searchBeam, 1, this);
+			default:
+				throw new UnknownError("Search strategy unknown");
+		}
+	}
+	
+	/**
+	 * @param kernel a kernel over the store of this model
+	 * @return a new index of the configured search strategy if it finds the exact neighbors over the kernel, a linear
+	 * scan over the doubles otherwise, which includes the KD-tree over values off heap
+	 */
+	NeighborSearch newExactSearch(DistanceKernel kernel) {
+		if (this.searchStrategy == keNN.SEARCH_KDTREE && !kernel.isOffHeap() || this.searchStrategy == keNN.SEARCH_VPTREE) return this.newSearch(kernel);
+		return new LinearSearch(this.store);
+	}
+	
+	/**
+	 * Extends the kernel by the rows added since the last query. The kernel is dropped for a rebuild instead if the
+	 * added or evicted rows changed the normalization or the added rows hold new nominal values.
+	 */
+	private void appendToKernel() {
+		if (this.kernel.isNormalizing() && this.isNormalizing()) {
 			double[][] normalization = this.normalizationScaling();
-			this.scaling = normalization[0];
-			this.translation = normalization[1];
+			if (!Arrays.equals(normalization[0], this.scaling) || !Arrays.equals(normalization[1], this.translation)) {
+				this.scaling = normalization[0];
+				this.translation = normalization[1];
+				this.kernel = null;
+				return;
+			}
 		}
+		if (!this.kernel.append()) this.kernel = null;
+	}
+	
+	/**
+	 * Orders the numeric attributes by descending variance of the values entering the distance, so the distance
+	 * computation can abandon far rows after as few attributes as possible.
+	 *
+	 * @return the current position of every numeric attribute in the new order
+	 */
+	private int[] varianceOrder() {
+		int numNumeric = this.store.numNumeric();
+		double[] variance = new double[numNumeric];
+		for (int p = 0; p < numNumeric; p++) {
+			int i = this.store.numericAttribute(p);
+			variance[p] = this.attributeStatistics.getVariance(i);
+			if (this.isNormalizing() && variance[p] > 0) variance[p] *= this.scaling[i] * this.scaling[i];
+		}
+		return IntStream.range(0, numNumeric).boxed()
+				.sorted(Comparator.comparing((Integer p) -> variance[p]).reversed())
+				.mapToInt(Integer::intValue)
+				.toArray();
+	}
+	
+	/**
+	 * Evaluates every k up to maxK by leave-one-out on the training data. A single search collects the maxK nearest
+	 * other rows of every training row, all k and both weightings are then scored from prefixes of that sorted list.
+	 * Unlike {@link #classifyInstance(List, int)} rows tied with the k-th neighbor are not added, the rows are taken in
+	 * the order of their distance and index. Every row is its own fold of {@link CrossValidation}, so the rows are
+	 * evaluated in parallel, see {@link #setNumThreads(int)}. With {@link #setCachingDistances(boolean)} the neighbors
+	 * are looked up in the distance matrix instead of searched. An approximate search strategy is replaced by an exact
+	 * one like in {@link CrossValidation}, so the selected k does not depend on the neighbors it misses.
+	 *
+	 * @param maxK the largest amount of neighbors to evaluate, at most the amount of training rows minus one
+	 * @return the accuracy of every k
+	 */
+	public KSelection selectK(int maxK) {
+		this.prepareSearch();
+		int size = this.store.size();
+		int[] folds = IntStream.range(0, size).toArray();
+		DistanceMatrix matrix = this.cachingDistances ? this.getDistanceMatrix() : null;
+		NeighborSearch search = this.search.isExact() ? this.search : this.newExactSearch(this.kernel);
+		return new KSelection(CrossValidation.score(this, this.kernel, search, matrix, folds, Math.max(1, Math.min(maxK, size - 1))), size);
+	}
+	
+	/**
+	 * Returns the strategy used to find the nearest neighbors
+	 *
+	 * @return one of the SEARCH_ constants of {@link keNN}
+	 */
+	public int getSearchStrategy() {
+		return searchStrategy;
+	}
+	
+	/**
+	 * @param searchStrategy one of the SEARCH_ constants of {@link keNN}
+	 */
+	public void setSearchStrategy(int searchStrategy) {
+		this.searchStrategy = searchStrategy;
+	}
+	
+	/**
+	 * Returns the amount of hash tables of {@link keNN#SEARCH_LSH}
+	 *
+	 * @return the amount of tables
+	 */
+	public int getHashTables() {
+		return hashTables;
+	}
+	
+	/**
+	 * More tables find more of the true neighbors at the cost of more candidates, memory and time per query
+	 *
+	 * @param hashTables the amount of hash tables of {@link keNN#SEARCH_LSH}
+	 */
+	public void setHashTables(int hashTables) {
+		this.hashTables = hashTables;
+		this.search = null;
+	}
+	
+	/**
+	 * Returns the amount of hash functions concatenated per table of {@link keNN#SEARCH_LSH}
+	 *
+	 * @return the amount of hash functions
+	 */
+	public int getHashesPerTable() {
+		return hashesPerTable;
+	}
+	
+	/**
+	 * More hash functions per table make the buckets smaller, so less candidates are compared but more true neighbors
+	 * are missed
+	 *
+	 * @param hashesPerTable the amount of hash functions concatenated per table of {@link keNN#SEARCH_LSH}
+	 */
+	public void setHashesPerTable(int hashesPerTable) {
+		this.hashesPerTable = hashesPerTable;
+		this.search = null;
+	}
+	
+	/**
+	 * Returns the bucket width of {@link keNN#SEARCH_LSH}
+	 *
+	 * @return the width relative to the mean distance between two training rows
+	 */
+	public double getHashWidth() {
+		return hashWidth;
+	}
+	
+	/**
+	 * Wider buckets find more of the true neighbors at the cost of more candidates. The Cauchy projections of the
+	 * Manhattan metric spread further than the Gaussian ones and need about twice the width for the same recall.
+	 *
+	 * @param hashWidth the bucket width of {@link keNN#SEARCH_LSH} relative to the mean distance between two training
+	 *                  rows
+	 */
+	public void setHashWidth(double hashWidth) {
+		this.hashWidth = hashWidth;
+		this.search = null;
+	}
+	
+	/**
+	 * Returns the precision of the numeric values scanned by {@link keNN#SEARCH_LINEAR}
+	 *
+	 * @return one of the STORAGE_ constants of {@link keNN}
+	 */
+	public int getNumericStorage() {
+		return numericStorage;
+	}
+	
+	/**
+	 * Anything but doubles makes the linear scan read a compressed copy of the numeric values, see
+	 * {@link QuantizedScan}. The other search strategies always use the doubles. The compressed copy replaces the
+	 * doubles on the heap: these are moved into a mapped temporary file, unless they are already off heap or mapped
+	 * from a {@link ModelFile}, and only the candidates re-ranked with their exact distance are read from there. The
+	 * training instances cannot be changed. Unless the doubles are mapped from a model file, neither can the
+	 * normalization and the KD-tree cannot be used, like off heap, until the next model is learned.
+	 *
+	 * @param numericStorage one of the STORAGE_ constants of {@link keNN}
+	 */
+	public void setNumericStorage(int numericStorage) {
+		this.numericStorage = numericStorage;
+		this.search = null;
+	}
+	
+	/**
+	 * Returns the amount of candidates per neighbor re-ranked with the exact distance after a compressed scan
+	 *
+	 * @return the factor, 0 if the approximate distances are used
+	 */
+	public int getRerankFactor() {
+		return rerankFactor;
+	}
+	
+	/**
+	 * @param rerankFactor the amount of candidates per neighbor re-ranked with the exact distance after a compressed
+	 *                     scan, 0 to use the approximate distances
+	 */
+	public void setRerankFactor(int rerankFactor) {
+		this.rerankFactor = rerankFactor;
+		this.search = null;
+	}
+	
+	/**
+	 * Returns the amount of links per node of {@link keNN#SEARCH_HNSW}
+	 *
+	 * @return the amount of links per node and upper layer, the bottom layer keeps twice as many
+	 */
+	public int getGraphDegree() {
+		return graphDegree;
+	}
+	
+	/**
+	 * More links raise the recall and the memory of the graph, 12 to 48 are common
+	 *
+	 * @param graphDegree the amount of links per node and upper layer of {@link keNN#SEARCH_HNSW}
+	 */
+	public void setGraphDegree(int graphDegree) {
+		this.graphDegree = graphDegree;
+		this.search = null;
+	}
+	
+	/**
+	 * Returns the beam width searching the links of a node inserted into the graph of {@link keNN#SEARCH_HNSW}
+	 *
+	 * @return the beam width of the build
+	 */
+	public int getConstructionBeam() {
+		return constructionBeam;
+	}
+	
+	/**
+	 * A wider beam builds a better graph in more time
+	 *
+	 * @param constructionBeam the beam width searching the links of a node inserted into the graph of
+	 *                         {@link keNN#SEARCH_HNSW}
+	 */
+	public void setConstructionBeam(int constructionBeam) {
+		this.constructionBeam = constructionBeam;
+		this.search = null;
+	}
+	
+	/**
+	 * Returns the beam width of a query on the graph of {@link keNN#SEARCH_HNSW}
+	 *
+	 * @return the beam width, at least k + 2 is used
+	 */
+	public int getSearchBeam() {
+		return searchBeam;
+	}
+	
+	/**
+	 * A wider beam finds more of the true neighbors at the cost of more distance computations. The graph is kept.
+	 *
+	 * @param searchBeam the beam width of a query on the graph of {@link keNN#SEARCH_HNSW}
+	 */
+	public void setSearchBeam(int searchBeam) {
+		this.searchBeam = searchBeam;
+		if (this.search instanceof HNSWIndex) ((HNSWIndex) this.search).setSearchBeam(searchBeam);
+	}
+	
+	/**
+	 * @return distance evaluations and pruned rows of all queries since the model was learned
+	 */
+	public SearchStatistics getSearchStatistics() {
+		return statistics;
 	}
 	
 	@Override
@@ -67,29 +696,425 @@ public class NearestNeighbor extends INearestNeighbor implements Serializable {
 		return this.isInverseWeighting() ? this.getWinner(this.getWeightedVotes(subset)) : this.getWinner(this.getUnweightedVotes(subset));
 	}
 	
+	/**
+	 * Classifies a batch of instances in parallel, see {@link #setNumThreads(int)}. The predictions are the same as
+	 * calling {@link #classifyInstance(List, int)} for every instance.
+	 *
+	 * @param testdata the instances to classify
+	 * @return the winning class of every instance, in the order of the instances
+	 */
+	public List<Object> classifyInstances(List<List<Object>> testdata) {
+		this.prepareSearch();
+		List<List<Object>> instances = testdata instanceof RandomAccess ? testdata : new ArrayList<>(testdata);
+		Callable<List<Object>> task = () -> IntStream.range(0, instances.size()).parallel()
+				.mapToObj(i -> this.classifyInstance(instances.get(i), this.getClassAttribute()))
+				.collect(Collectors.toList());
+		return this.execute(this.pool(), task);
+	}
+	
+	/**
+	 * Classifies an instance given in the primitive layout of {@link InstanceStore#add(double[])}. The values are
+	 * written into a buffer of the current thread, so no row is materialized for the query.
+	 *
+	 * @param source writes all attribute values of the instance into the given buffer
+	 * @return the winning class
+	 */
+	public Object classifyInstance(Consumer<double[]> source) {
+		this.prepareSearch();
+		Scratch scratch = this.scratch();
+		source.accept(scratch.values);
+		this.store.encode(scratch.values, scratch.numeric, scratch.codes);
+		return this.classify(scratch);
+	}
+	
+	/**
+	 * Computes the share of the votes of every class for an instance given in the primitive layout of
+	 * {@link InstanceStore#add(double[])}. The votes are counted or weighted like for {@link #classifyInstance(Consumer)}
+	 * and come from the same single neighbor search.
+	 *
+	 * @param source writes all attribute values of the instance into the given buffer
+	 * @return the normalized votes indexed by class index, see {@link InstanceStore#classValue(int)}
+	 */
+	public double[] distributionForInstance(Consumer<double[]> source) {
+		this.prepareSearch();
+		Scratch scratch = this.scratch();
+		source.accept(scratch.values);
+		this.store.encode(scratch.values, scratch.numeric, scratch.codes);
+		double[] distribution = this.vote(scratch).clone();
+		double sum = 0;
+		for (double vote : distribution) {
+			sum += vote;
+		}
+		for (int label = 0; sum > 0 && label < distribution.length; label++) {
+			distribution[label] /= sum;
+		}
+		return distribution;
+	}
+	
+	/**
+	 * Computes the class distributions of a batch of instances in parallel, see {@link #distributionForInstance(Consumer)}
+	 * and {@link #classifyInstances(int, ObjIntConsumer)}
+	 *
+	 * @param count  the amount of instances
+	 * @param source writes all attribute values of the instance with the given index into the given buffer
+	 * @return the normalized votes of every instance, in the order of the instances
+	 */
+	public List<double[]> distributionsForInstances(int count, ObjIntConsumer<double[]> source) {
+		this.prepareSearch();
+		Callable<List<double[]>> task = () -> IntStream.range(0, count).parallel()
+				.mapToObj(i -> this.distributionForInstance(values -> source.accept(values, i)))
+				.collect(Collectors.toList());
+		return this.execute(this.pool(), task);
+	}
+	
+	/**
+	 * Classifies a batch of instances given in the primitive layout of {@link InstanceStore#add(double[])} in
+	 * parallel, see {@link #classifyInstances(List)}.
+	 *
+	 * @param count  the amount of instances
+	 * @param source writes all attribute values of the instance with the given index into the given buffer
+	 * @return the winning class of every instance, in the order of the instances
+	 */
+	public List<Object> classifyInstances(int count, ObjIntConsumer<double[]> source) {
+		this.prepareSearch();
+		Callable<List<Object>> task = () -> IntStream.range(0, count).parallel()
+				.mapToObj(i -> this.classifyInstance(values -> source.accept(values, i)))
+				.collect(Collectors.toList());
+		return this.execute(this.pool(), task);
+	}
+	
+	private synchronized ForkJoinPool pool() {
+		int parallelism = this.numThreads > 0 ? this.numThreads : Runtime.getRuntime().availableProcessors();
+		if (this.pool == null || this.pool.getParallelism() != parallelism) {
+			if (this.pool != null) this.pool.shutdown();
+			this.pool = new ForkJoinPool(parallelism);
+		}
+		return this.pool;
+	}
+	
+	/**
+	 * Returns the amount of threads used by {@link #classifyInstances(List)} and parallel scans
+	 *
+	 * @return the amount of threads, 0 for one per available processor
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	/**
+	 * @param numThreads the amount of threads used by {@link #classifyInstances(List)}, 0 for one per available processor
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Returns the model size from which a single query scans the training rows in parallel
+	 *
+	 * @return the amount of rows, 0 if queries are never split
+	 */
+	public int getParallelScanThreshold() {
+		return parallelScanThreshold;
+	}
+	
+	/**
+	 * @param parallelScanThreshold the model size from which a single query scans the training rows in parallel, 0 to
+	 *                              never split queries
+	 */
+	public void setParallelScanThreshold(int parallelScanThreshold) {
+		this.parallelScanThreshold = parallelScanThreshold;
+	}
+	
+	/**
+	 * Determines if the raw numeric values are kept after the normalized values were computed
+	 *
+	 * @return true if the raw values are kept
+	 */
+	public boolean isKeepingRawValues() {
+		return keepingRawValues;
+	}
+	
+	/**
+	 * Without raw values the normalized training data needs half the memory, but {@link #getNearest(List)} returns
+	 * normalized rows, and neither the normalization nor the training instances can be changed until the next model
+	 * is learned. Has to be set before the model is learned.
+	 *
+	 * @param keepingRawValues true to keep the raw values next to the normalized ones
+	 */
+	public void setKeepingRawValues(boolean keepingRawValues) {
+		this.keepingRawValues = keepingRawValues;
+	}
+	
+	/**
+	 * Determines if the numeric training values are moved out of the heap once the model is learned
+	 *
+	 * @return true if the values live off heap
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+	
+	/**
+	 * Off heap the numeric training values only occupy a few buffer objects on the heap, so a large model neither
+	 * counts against the heap size nor is copied by the garbage collector, and {@link #close()} returns the memory
+	 * deterministically. The distances stay the same, but the training instances and the normalization cannot be
+	 * changed until the next model is learned and the KD-tree cannot be used. Has to be set before the model is
+	 * learned.
+	 *
+	 * @param offHeap true to move the numeric training values off heap
+	 */
+	public void setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+	
+	/**
+	 * Returns the memory outside the heap, i.e. the off-heap training values and the distance matrix, right away
+	 * instead of when the model is garbage collected, and stops the worker threads. The model has to be learned again
+	 * before it can be used. Must not be called while a query runs.
+	 */
+	@Override
+	public void close() {
+		if (this.distances != null) this.distances.release();
+		if (this.kernel != null) this.kernel.release();
+		if (this.store != null) this.store.release();
+		this.distances = null;
+		this.kernel = null;
+		this.search = null;
+		this.store = null;
+		this.mapped = false;
+		synchronized (this) {
+			if (this.pool != null) this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+	
+	/**
+	 * A query is only split for the linear scan on large models and never inside {@link #classifyInstances(List)},
+	 * which already keeps all threads busy.
+	 */
+	private boolean isScanningInParallel() {
+		return this.parallelScanThreshold > 0 && this.store.size() >= this.parallelScanThreshold
+				&& this.search instanceof LinearSearch && !(Thread.currentThread() instanceof ForkJoinWorkerThread);
+	}
+	
+	/**
+	 * Scans chunks of the training rows in parallel, each with its own heap, and merges the partial results.
+	 */
+	private void searchInParallel(double[] numeric, long[] nominal, NeighborHeap heap) {
+		LinearSearch linear = (LinearSearch) this.search;
+		ForkJoinPool pool = this.pool();
+		int chunks = 4 * pool.getParallelism();
+		int chunkSize = (this.store.size() + chunks - 1) / chunks;
+		Callable<NeighborHeap> task = () -> IntStream.range(0, chunks).parallel()
+				.mapToObj(chunk -> {
+					NeighborHeap partial = new NeighborHeap(this.getkNearest());
+					int from = chunk * chunkSize;
+					linear.search(this.kernel, numeric, nominal, partial, from, Math.min(this.store.size(), from + chunkSize));
+					return partial;
+				})
+				.reduce((a, b) -> {
+					a.merge(b);
+					return a;
+				}).get();
+		heap.merge(this.execute(pool, task));
+	}
+	
+	/**
+	 * Runs a parallel task on the threads of this model, see {@link #setNumThreads(int)}
+	 */
+	<T> T execute(Callable<T> task) {
+		return this.execute(this.pool(), task);
+	}
+	
+	private <T> T execute(ForkJoinPool pool, Callable<T> task) {
+		try {
+			return pool.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Parallel classification interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * @return the query buffers of the current thread, sized for the current model and k
+	 */
+	private Scratch scratch() {
+		if (this.scratch == null) this.scratch = ThreadLocal.withInitial(Scratch::new);
+		Scratch scratch = this.scratch.get();
+		if (scratch.values.length != this.store.numAttributes()) {
+			scratch.values = new double[this.store.numAttributes()];
+		}
+		if (scratch.numeric.length != this.store.numNumeric() || scratch.codes.length != this.store.numNominal()) {
+			scratch.numeric = new double[this.store.numNumeric()];
+			scratch.codes = new int[this.store.numNominal()];
+		}
+		if (scratch.nominal.length != this.kernel.packedLength()) {
+			scratch.nominal = new long[this.kernel.packedLength()];
+		}
+		if (scratch.votes.length != this.store.numClasses()) {
+			scratch.votes = new double[this.store.numClasses()];
+			scratch.numVoted = 0;
+		}
+		boolean exact = this.search.isExact();
+		if (scratch.heap == null || scratch.heap.capacity() != this.getkNearest() || (scratch.heap instanceof CandidateHeap) == exact) {
+			scratch.heap = exact ? new NeighborHeap(this.getkNearest()) : new CandidateHeap(this.getkNearest());
+		}
+		scratch.heap.clear();
+		return scratch;
+	}
+	
+	@Override
+	public Object classifyInstance(List<Object> data, int classAttribute) {
+		this.prepareSearch();
+		Scratch scratch = this.scratch();
+		this.store.encode(data, scratch.numeric, scratch.codes);
+		return this.classify(scratch);
+	}
+	
 	@Override
 	protected List<Pair<List<Object>, Double>> getNearest(List<Object> data) {
-		List<Pair<List<Object>, Double>> results;
-		switch (this.getMetric()) {
-			case keNN.DIST_MANHATTAN:
-				results = this.trainData.stream()
-						.map(entry -> new Pair<>(entry, this.determineManhattanDistance(entry, data)))
-						.sorted(Comparator.comparing(Pair::getB))
-						.collect(Collectors.toList());
-				break;
-			case keNN.DIST_EUCLIDEAN:
-				results = this.trainData.stream()
-						.map(entry -> new Pair<>(entry, this.determineEuclideanDistance(entry, data)))
-						.sorted(Comparator.comparing(Pair::getB))
-						.collect(Collectors.toList());
-				break;
-			default:
-				throw new UnknownError("Metric unknown");
+		this.prepareSearch();
+		Scratch scratch = this.scratch();
+		this.store.encode(data, scratch.numeric, scratch.codes);
+		return this.getNearest(scratch);
+	}
+	
+	/**
+	 * Searches the nearest neighbors of the instance encoded into the scratch buffers
+	 */
+	private List<Pair<List<Object>, Double>> getNearest(Scratch scratch) {
+		if (!this.search(scratch)) {
+			return this.getNearestSorted(scratch).stream()
+					.map(entry -> new Pair<>(this.store.getRow(entry.getA()), entry.getB()))
+					.collect(Collectors.toList());
+		}
+		List<Pair<List<Object>, Double>> results = new ArrayList<>(this.getkNearest());
+		NeighborHeap heap = scratch.heap;
+		for (int i = 0, size = heap.sort(); i < size; i++) {
+			results.add(new Pair<>(this.store.getRow(heap.row(i)), heap.distance(i)));
+		}
+		return results;
+	}
+	
+	/**
+	 * Collects the nearest neighbors of the instance encoded into the scratch buffers in its heap
+	 *
+	 * @return false if the heap cannot decide the neighbors because the rows behind the k-th nearest are tied
+	 */
+	private boolean search(Scratch scratch) {
+		double[] numeric = scratch.numeric;
+		long[] nominal = scratch.nominal;
+		this.kernel.normalize(numeric);
+		this.kernel.pack(scratch.codes, nominal);
+		
+		NeighborHeap heap = scratch.heap;
+		if (this.isScanningInParallel()) {
+			this.searchInParallel(numeric, nominal, heap);
+		} else {
+			this.search.search(this.kernel, numeric, nominal, heap);
+		}
+		this.statistics.record(heap);
+		return !heap.isTailTied();
+	}
+	
+	/**
+	 * Votes like {@link #vote(List)} without materializing the neighbors, see {@link #vote(Scratch)}. Ties between
+	 * classes are won by the smallest class index, which is the order of
+	 * {@link InstanceStore#declareValues(int, List)}. Apart from the rare tied neighbors this allocates nothing.
+	 *
+	 * @return the winning class
+	 */
+	private Object classify(Scratch scratch) {
+		return this.store.classValue(winner(this.vote(scratch), scratch.voted, scratch.numVoted));
+	}
+	
+	/**
+	 * @return the class index with the most votes, the smallest one on ties
+	 */
+	static int winner(double[] votes) {
+		int winner = 0;
+		for (int label = 1; label < votes.length; label++) {
+			if (votes[label] > votes[winner]) winner = label;
+		}
+		return winner;
+	}
+	
+	/**
+	 * Like {@link #winner(double[])}, but only looks at the class indices that received votes, so the time does not
+	 * depend on the amount of classes, e.g. the distinct values of a numeric class
+	 *
+	 * @param votes  the votes of every class index, 0 for all but the voted ones
+	 * @param voted  the class indices which received votes
+	 * @param count  the amount of voted class indices
+	 * @return the class index with the most votes, the smallest one on ties
+	 */
+	static int winner(double[] votes, int[] voted, int count) {
+		int winner = 0;
+		for (int i = 0; i < count; i++) {
+			int label = voted[i];
+			if (votes[label] > votes[winner] || votes[label] == votes[winner] && label < winner) winner = label;
+		}
+		return winner;
+	}
+	
+	/**
+	 * Searches the neighbors of the instance encoded into the scratch buffers, looks up their class indices in the
+	 * store and sums their votes per class index. Only the entries voted for by the previous query are cleared, so a
+	 * numeric class with many distinct values costs no more than a nominal one.
+	 *
+	 * @return the votes of every class index, the buffer of the scratch
+	 */
+	private double[] vote(Scratch scratch) {
+		double[] votes = scratch.votes;
+		for (int i = 0; i < scratch.numVoted; i++) {
+			votes[scratch.voted[i]] = 0;
 		}
+		scratch.numVoted = 0;
+		int[] labels = this.store.labels();
+		if (this.search(scratch)) {
+			NeighborHeap heap = scratch.heap;
+			for (int i = 0, size = heap.size(); i < size; i++) {
+				scratch.vote(labels[heap.row(i)], this.weight(heap.distance(i)));
+			}
+		} else {
+			for (Pair<Integer, Double> neighbour : this.getNearestSorted(scratch)) {
+				scratch.vote(labels[neighbour.getA()], this.weight(neighbour.getB()));
+			}
+		}
+		return votes;
+	}
+	
+	private double weight(double distance) {
+		return this.isInverseWeighting() ? 1 / (distance + 0.001) : 1;
+	}
+	
+	/**
+	 * Sorts the complete training set by distance and applies the tie handling of {@link #filterNeighbours(List)}.
+	 * Only needed if every row behind the k-th nearest neighbor has the same distance. An approximate strategy only
+	 * sorts the candidates it offered, so the fallback stays as cheap as its search.
+	 *
+	 * @return the row index and distance of every neighbor
+	 */
+	private List<Pair<Integer, Double>> getNearestSorted(Scratch scratch) {
+		List<Pair<Integer, Double>> results;
+		if (scratch.heap instanceof CandidateHeap) {
+			results = ((CandidateHeap) scratch.heap).sorted();
+		} else {
+			double[] numeric = scratch.numeric;
+			long[] nominal = scratch.nominal;
+			results = IntStream.range(0, this.store.size())
+					.mapToObj(row -> new Pair<>(row, this.kernel.distance(row, numeric, nominal)))
+					.sorted(Comparator.comparing(Pair::getB))
+					.collect(Collectors.toList());
+		}
+		this.statistics.recordSorted(results.size());
 		return this.filterNeighbours(results);
 	}
 	
-	private List<Pair<List<Object>, Double>> filterNeighbours(List<Pair<List<Object>, Double>> data) {
+	private List<Pair<Integer, Double>> filterNeighbours(List<Pair<Integer, Double>> data) {
 		if (this.getkNearest() == 1) return data.stream().limit(this.getkNearest()).collect(Collectors.toList());
 		
 		int equals = 0;
@@ -107,17 +1132,17 @@ public class NearestNeighbor extends INearestNeighbor implements Serializable {
 			}
 			if (i >= this.getkNearest() && !foundEquals) break;
 			
-			String currentClass = data.get(i).getA().toString();
+			String currentClass = this.store.getRow(data.get(i).getA()).toString();
 			classes.put(currentClass, classes.getOrDefault(currentClass, 0) + 1);
 		}
 		if (!foundEquals) return data.stream().limit(this.getkNearest()).collect(Collectors.toList());
 		HashMap<String, Integer> classesOrdered = new HashMap<>();
 		classes.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEachOrdered(x -> classesOrdered.put(x.getKey(), x.getValue()));
 		
-		List<Pair<List<Object>, Double>> result = data.stream().limit(this.getkNearest() - equals).collect(Collectors.toList());
+		List<Pair<Integer, Double>> result = data.stream().limit(this.getkNearest() - equals).collect(Collectors.toList());
 		for (String key : classesOrdered.keySet()) {
 			for (int i = equals; i < data.size(); i++) {
-				String currentClass = data.get(i).getA().toString();
+				String currentClass = this.store.getRow(data.get(i).getA()).toString();
 				if (currentClass.equals(key) && result.size() <= this.getkNearest()) {
 					result.add(data.get(i));
 				} else break;
@@ -168,32 +1193,156 @@ public class NearestNeighbor extends INearestNeighbor implements Serializable {
 	
 	@Override
 	protected double[][] normalizationScaling() {
-		// save minimum and maximum per attribute
-		double[][] boundsPerAttr = new double[2][this.numAttributes];
-		for (int i = 0; i < this.trainData.size(); i++) {
-			for (int j = 0; j < this.numAttributes; j++) {
-				Object attr = this.trainData.get(i).get(j);
-				if (attr instanceof Double) {
-					double dAttr = (double) attr;
-					if (i == 0) {
-						boundsPerAttr[0][j] = dAttr;
-						boundsPerAttr[1][j] = dAttr;
-					}
-					boundsPerAttr[0][j] = dAttr < boundsPerAttr[0][j] ? dAttr : boundsPerAttr[0][j];
-					boundsPerAttr[1][j] = dAttr > boundsPerAttr[1][j] ? dAttr : boundsPerAttr[1][j];
-				}
-			}
-		}
-		
+		return this.normalizationScaling(this.scalingMode);
+	}
+	
+	/**
+	 * @param scalingMode {@link keNN#SCALE_RANGE} or {@link keNN#SCALE_ZSCORE}
+	 * @return the factors and offsets of every attribute for the given scaling of the training data
+	 */
+	double[][] normalizationScaling(int scalingMode) {
 		double[][] normalization = new double[2][this.numAttributes];
-		for (int i = 0; i < this.numAttributes; i++) {
-			if (this.trainData.get(0).get(i) instanceof Double) {
-				double diff = boundsPerAttr[1][i] - boundsPerAttr[0][i];
+		for (int p = 0; p < this.store.numNumeric(); p++) {
+			int i = this.store.numericAttribute(p);
+			if (scalingMode == keNN.SCALE_ZSCORE) {
+				double deviation = Math.sqrt(this.attributeStatistics.getVariance(i));
+				normalization[0][i] = deviation == 0 ? Double.MAX_VALUE : 1 / deviation;
+				normalization[1][i] = -this.attributeStatistics.getMean(i);
+			} else {
+				double diff = this.attributeStatistics.getMax(i) - this.attributeStatistics.getMin(i);
 				normalization[0][i] = diff == 0 ? Double.MAX_VALUE : 1 / diff;
-				normalization[1][i] = -boundsPerAttr[0][i];
+				normalization[1][i] = -this.attributeStatistics.getMin(i);
 			}
 		}
 		return normalization;
 	}
 	
+	/**
+	 * Returns how numeric attributes are normalized
+	 *
+	 * @return {@link keNN#SCALE_RANGE} or {@link keNN#SCALE_ZSCORE}
+	 */
+	public int getScalingMode() {
+		return scalingMode;
+	}
+	
+	/**
+	 * @param scalingMode {@link keNN#SCALE_RANGE} to map the range of every numeric attribute to [0, 1] or
+	 *                    {@link keNN#SCALE_ZSCORE} to subtract the mean and divide by the standard deviation
+	 */
+	public void setScalingMode(int scalingMode) {
+		if (scalingMode != keNN.SCALE_RANGE && scalingMode != keNN.SCALE_ZSCORE) throw new UnknownError("Scaling mode unknown");
+		this.scalingMode = scalingMode;
+	}
+	
+	/**
+	 * Determines if the distances between all training rows are precomputed for {@link #selectK(int)}
+	 *
+	 * @return true if the distance matrix is used
+	 */
+	public boolean isCachingDistances() {
+		return cachingDistances;
+	}
+	
+	/**
+	 * The matrix needs 2 n^2 bytes for n training rows and pays off when the rows are compared with each other many
+	 * times, see {@link #getDistanceMatrix()}. Its distances are rounded to floats.
+	 *
+	 * @param cachingDistances true to precompute the distances between all training rows
+	 */
+	public void setCachingDistances(boolean cachingDistances) {
+		this.cachingDistances = cachingDistances;
+	}
+	
+	/**
+	 * Returns the size from which the distance matrix is stored in a memory mapped temporary file
+	 *
+	 * @return the size in bytes
+	 */
+	public long getDistanceSpillThreshold() {
+		return distanceSpillThreshold;
+	}
+	
+	/**
+	 * @param distanceSpillThreshold the size in bytes from which the distance matrix is stored in a memory mapped
+	 *                               temporary file instead of direct memory
+	 */
+	public void setDistanceSpillThreshold(long distanceSpillThreshold) {
+		this.distanceSpillThreshold = distanceSpillThreshold;
+	}
+	
+	/**
+	 * Returns the maximum amount of training instances the model keeps
+	 *
+	 * @return the amount of instances, 0 if the model is not bounded
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+	
+	/**
+	 * Bounds the model to the most recently added instances, older instances are evicted before the next query. The
+	 * normalization and the statistics then only describe the instances inside the window.
+	 *
+	 * @param windowSize the amount of instances, 0 to keep all instances
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+	
+	/**
+	 * Returns the maximum age of the training instances the model keeps
+	 *
+	 * @return the age in milliseconds relative to the newest instance, 0 if instances never expire
+	 */
+	public long getWindowDuration() {
+		return windowDuration;
+	}
+	
+	/**
+	 * Bounds the model to the instances added at most the given time before the newest instance, see
+	 * {@link #addInstance(List, long)} and {@link #setWindowSize(int)}. Instances of the learned data count as added
+	 * when they were stored.
+	 *
+	 * @param windowDuration the age in milliseconds, 0 to keep all instances
+	 */
+	public void setWindowDuration(long windowDuration) {
+		this.windowDuration = windowDuration;
+	}
+	
+	/**
+	 * @return minimum, maximum, mean and variance of the numeric attributes of the training data
+	 */
+	public AttributeStatistics getAttributeStatistics() {
+		return attributeStatistics;
+	}
+	
+	/**
+	 * Per thread buffers of a query.
+	 */
+	private static class Scratch {
+		private double[] values = new double[0];
+		private double[] numeric = new double[0];
+		private int[] codes = new int[0];
+		private long[] nominal = new long[0];
+		private double[] votes = new double[0];
+		/**
+		 * The class indices with a vote in {@link #votes}, every index once
+		 */
+		private int[] voted = new int[0];
+		private int numVoted;
+		private NeighborHeap heap;
+		
+		/**
+		 * Adds a positive vote to a class index
+		 */
+		void vote(int label, double weight) {
+			if (this.votes[label] == 0) {
+				if (this.numVoted == this.voted.length) this.voted = Arrays.copyOf(this.voted, Math.max(8, 2 * this.numVoted));
+				this.voted[this.numVoted++] = label;
+			}
+			this.votes[label] += weight;
+		}
+	}
+	
 }
@@ -0,0 +1,232 @@
+package tud.ke.ml.project.classifier;
+
+/**
+ * Bounded max-heap collecting the k nearest training rows of a query.
+ * <p>
+ * Rows are ordered by distance and, for equal distances, by row index, which is the order a stable sort of the whole
+ * training set would produce. Besides the k best rows the heap remembers the smallest and largest distance it had to
+ * reject, so callers can detect the case in which every row behind the k-th one is tied (see {@link #isTailTied()}).
+ */
+public class NeighborHeap {
+	
+	private final int capacity;
+	private final int[] rows;
+	private final double[] distances;
+	private int size;
+	
+	private int seen;
+	private int rejected;
+	private double rejectedMin = Double.POSITIVE_INFINITY, rejectedMax = Double.NEGATIVE_INFINITY;
+	private int skipped;
+	private double skippedMaxBound = Double.NEGATIVE_INFINITY;
+	
+	private double limitBound = Double.NaN, limit;
+	
+	/**
+	 * @param capacity the amount of neighbors to keep (k)
+	 */
+	public NeighborHeap(int capacity) {
+		this.capacity = capacity;
+		this.rows = new int[capacity];
+		this.distances = new double[capacity];
+	}
+	
+	/**
+	 * Offers a training row to the heap
+	 *
+	 * @param row      index of the training row
+	 * @param distance its distance to the query
+	 * @return true if the row is currently among the k nearest
+	 */
+	public boolean offer(int row, double distance) {
+		this.seen++;
+		if (this.size < this.capacity) {
+			this.rows[this.size] = row;
+			this.distances[this.size] = distance;
+			siftUp(this.size++);
+			return true;
+		}
+		if (!isBefore(row, distance, this.rows[0], this.distances[0])) {
+			reject(distance);
+			return false;
+		}
+		reject(this.distances[0]);
+		this.rows[0] = row;
+		this.distances[0] = distance;
+		siftDown(0);
+		return true;
+	}
+	
+	/**
+	 * Records rows that were not evaluated because their distance is known to be greater than {@link #bound()}
+	 *
+	 * @param count      the amount of skipped rows
+	 * @param lowerBound a lower bound of their distances
+	 */
+	public void skip(int count, double lowerBound) {
+		if (count <= 0) return;
+		this.seen += count;
+		this.skipped += count;
+		this.skippedMaxBound = Math.max(this.skippedMaxBound, lowerBound);
+	}
+	
+	/**
+	 * @return the distance a row must not exceed to enter the heap, infinity while the heap is not full
+	 */
+	public double bound() {
+		return this.size < this.capacity ? Double.POSITIVE_INFINITY : this.distances[0];
+	}
+	
+	/**
+	 * Returns {@link #bound()} converted by {@link DistanceKernel#sumLimit(double)}. The conversion is cached until the
+	 * bound changes.
+	 *
+	 * @param kernel the kernel computing the sums
+	 * @return the largest partial sum a row may reach before it can be abandoned
+	 */
+	public double abandonLimit(DistanceKernel kernel) {
+		double bound = bound();
+		if (bound != this.limitBound) {
+			this.limitBound = bound;
+			this.limit = kernel.sumLimit(bound);
+		}
+		return this.limit;
+	}
+	
+	/**
+	 * Adds all rows and statistics of another heap, e.g. the result of a scan over a different part of the data
+	 *
+	 * @param other heap with the same capacity
+	 */
+	public void merge(NeighborHeap other) {
+		int seenBefore = this.seen;
+		for (int i = 0; i < other.size; i++) {
+			offer(other.rows[i], other.distances[i]);
+		}
+		this.seen = seenBefore + other.seen;
+		this.rejected += other.rejected;
+		this.rejectedMin = Math.min(this.rejectedMin, other.rejectedMin);
+		this.rejectedMax = Math.max(this.rejectedMax, other.rejectedMax);
+		this.skipped += other.skipped;
+		this.skippedMaxBound = Math.max(this.skippedMaxBound, other.skippedMaxBound);
+	}
+	
+	/**
+	 * Determines if every row behind the k-th nearest may have the same distance. In that case the tie handling of
+	 * {@link NearestNeighbor} needs the complete ordering of the training set instead of only the k best rows. The
+	 * answer is conservative: very small training sets and skipped rows of unknown distance count as tied.
+	 *
+	 * @return false if the k nearest rows in sort order are the final neighbors
+	 */
+	public boolean isTailTied() {
+		if (this.capacity <= 1) return false;
+		if (this.seen <= this.capacity + 1) return true;
+		if (this.rejected == 0) return true;
+		if (this.rejectedMin != this.rejectedMax) return false;
+		return this.skipped == 0 || this.skippedMaxBound <= this.rejectedMin;
+	}
+	
+	/**
+	 * Sorts the collected rows by ascending distance. Afterwards the heap must be {@link #clear() cleared} before it
+	 * can collect again.
+	 *
+	 * @return the amount of collected rows, available via {@link #row(int)} and {@link #distance(int)}
+	 */
+	public int sort() {
+		for (int end = this.size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		return this.size;
+	}
+	
+	/**
+	 * Removes all rows and statistics
+	 */
+	public void clear() {
+		this.size = 0;
+		this.seen = 0;
+		this.rejected = 0;
+		this.rejectedMin = Double.POSITIVE_INFINITY;
+		this.rejectedMax = Double.NEGATIVE_INFINITY;
+		this.skipped = 0;
+		this.skippedMaxBound = Double.NEGATIVE_INFINITY;
+		this.limitBound = Double.NaN;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	/**
+	 * @return the amount of rows offered with their exact distance
+	 */
+	public int evaluated() {
+		return seen - skipped;
+	}
+	
+	/**
+	 * @return the amount of rows reported via {@link #skip(int, double)}
+	 */
+	public int skipped() {
+		return skipped;
+	}
+	
+	public int row(int i) {
+		return rows[i];
+	}
+	
+	public double distance(int i) {
+		return distances[i];
+	}
+	
+	private void reject(double distance) {
+		this.rejected++;
+		this.rejectedMin = Math.min(this.rejectedMin, distance);
+		this.rejectedMax = Math.max(this.rejectedMax, distance);
+	}
+	
+	private static boolean isBefore(int row1, double distance1, int row2, double distance2) {
+		return distance1 < distance2 || (distance1 == distance2 && row1 < row2);
+	}
+	
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!isBefore(this.rows[parent], this.distances[parent], this.rows[i], this.distances[i])) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+	
+	private void siftDown(int i) {
+		siftDown(i, this.size);
+	}
+	
+	private void siftDown(int i, int end) {
+		while (true) {
+			int largest = i;
+			int left = 2 * i + 1, right = left + 1;
+			if (left < end && isBefore(this.rows[largest], this.distances[largest], this.rows[left], this.distances[left]))
+				largest = left;
+			if (right < end && isBefore(this.rows[largest], this.distances[largest], this.rows[right], this.distances[right]))
+				largest = right;
+			if (largest == i) return;
+			swap(i, largest);
+			i = largest;
+		}
+	}
+	
+	private void swap(int i, int j) {
+		int row = this.rows[i];
+		this.rows[i] = this.rows[j];
+		this.rows[j] = row;
+		double distance = this.distances[i];
+		this.distances[i] = this.distances[j];
+		this.distances[j] = distance;
+	}
+}
@@ -0,0 +1,39 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.Serializable;
+
+/**
+ * Strategy collecting the nearest training rows of an encoded instance.
+ */
+public interface NeighborSearch extends Serializable {
+	
+	/**
+	 * Offers at least every training row which may belong to the nearest neighbors to the heap. Rows left out must
+	 * be reported via {@link NeighborHeap#skip(int, double)}. Approximate strategies like {@link LSHIndex} and
+	 * {@link HNSWIndex} offer only likely candidates instead and report nothing about the rest.
+	 *
+	 * @param kernel  the distance to use
+	 * @param numeric numeric values of the instance, see {@link InstanceStore#encode(java.util.List, double[], int[])}
+	 * @param nominal packed nominal values of the instance, see {@link DistanceKernel#pack(int[], long[])}
+	 * @param heap    collector of the nearest neighbors
+	 */
+	void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap);
+	
+	/**
+	 * Determines if this strategy still answers queries for the given distance, e.g. after the metric was changed.
+	 *
+	 * @param kernel the distance to use
+	 * @return true if the strategy can be used with the kernel
+	 */
+	boolean supports(DistanceKernel kernel);
+	
+	/**
+	 * Determines if the strategy offers every row which may belong to the nearest neighbors. Ties behind the k-th
+	 * nearest neighbor of an approximate strategy are decided over the rows it offered, see {@link CandidateHeap}.
+	 *
+	 * @return false for strategies which offer only likely candidates
+	 */
+	default boolean isExact() {
+		return true;
+	}
+}
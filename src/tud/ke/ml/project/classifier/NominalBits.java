@@ -0,0 +1,217 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Bit-packed copy of the nominal block of an {@link InstanceStore}.
+ * <p>
+ * Attributes with at most {@link #MAX_ONE_HOT} distinct values are one-hot encoded into shared long words, so a row
+ * has exactly one bit set per such attribute and the mismatches of two rows a and b are the bits of a that are missing
+ * in b, counted with {@link Long#bitCount(long)}. Attributes with more values would waste too many bits and keep their
+ * dictionary code in a word of their own behind the bit words. Every row occupies {@link #stride()} words.
+ */
+public class NominalBits implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Largest vocabulary which is one-hot encoded
+	 */
+	static final int MAX_ONE_HOT = 64;
+	
+	private final int numNominal;
+	private final int[] bitOffset;
+	private final int[] numValues;
+	private final int[] codeWord;
+	private final int bitWords;
+	private final int stride;
+	private long[] block;
+	private int size;
+	
+	/**
+	 * Packs all rows of the store
+	 *
+	 * @param store the training data
+	 */
+	public NominalBits(InstanceStore store) {
+		this(store, 0);
+		this.append(store);
+	}
+	
+	private NominalBits(InstanceStore store, int size) {
+		this.numNominal = store.numNominal();
+		this.bitOffset = new int[this.numNominal];
+		this.numValues = new int[this.numNominal];
+		this.codeWord = new int[this.numNominal];
+		int bits = 0, wide = 0;
+		for (int p = 0; p < this.numNominal; p++) {
+			this.numValues[p] = store.numValues(p);
+			if (this.numValues[p] <= MAX_ONE_HOT) {
+				this.bitOffset[p] = bits;
+				this.codeWord[p] = -1;
+				bits += this.numValues[p];
+			} else {
+				this.bitOffset[p] = -1;
+				this.codeWord[p] = wide++;
+			}
+		}
+		this.bitWords = (bits + Long.SIZE - 1) / Long.SIZE;
+		for (int p = 0; p < this.numNominal; p++) {
+			if (this.codeWord[p] >= 0) this.codeWord[p] += this.bitWords;
+		}
+		this.stride = this.bitWords + wide;
+		
+		this.block = new long[store.size() * this.stride];
+		this.size = size;
+	}
+	
+	/**
+	 * Creates the layout for the store with room for all of its rows, whose packed words are then written into
+	 * {@link #block()} directly, e.g. by {@link ModelFile}
+	 *
+	 * @param store the training data
+	 * @return the packed rows, all zero
+	 */
+	static NominalBits allocate(InstanceStore store) {
+		return new NominalBits(store, store.size());
+	}
+	
+	/**
+	 * Packs the rows appended to the store since the last call
+	 *
+	 * @param store the training data
+	 * @return false if a one-hot encoded attribute got new values, which requires a new layout
+	 */
+	public boolean append(InstanceStore store) {
+		for (int p = 0; p < this.numNominal; p++) {
+			if (this.codeWord[p] < 0 && store.numValues(p) != this.numValues[p]) return false;
+		}
+		if (this.block.length < store.size() * this.stride) {
+			this.block = Arrays.copyOf(this.block, Math.max(store.size(), 2 * this.size) * this.stride);
+		}
+		int[] nominal = store.nominal();
+		for (int row = this.size; row < store.size(); row++) {
+			this.pack(nominal, row * this.numNominal, this.block, row * this.stride);
+		}
+		this.size = store.size();
+		return true;
+	}
+	
+	/**
+	 * Packs the nominal codes of an encoded instance
+	 *
+	 * @param nominal nominal codes of the instance, see {@link InstanceStore#encode(java.util.List, double[], int[])}
+	 * @param out     buffer of length {@link #stride()}
+	 */
+	public void pack(int[] nominal, long[] out) {
+		this.pack(nominal, 0, out, 0);
+	}
+	
+	private void pack(int[] codes, int codeOffset, long[] out, int outOffset) {
+		for (int w = 0; w < this.stride; w++) {
+			out[outOffset + w] = 0;
+		}
+		for (int p = 0; p < this.numNominal; p++) {
+			int code = codes[codeOffset + p];
+			if (this.codeWord[p] >= 0) {
+				out[outOffset + this.codeWord[p]] = code;
+			} else if (code >= 0 && code < this.numValues[p]) {
+				// unknown values set no bit and therefore mismatch every row
+				int bit = this.bitOffset[p] + code;
+				out[outOffset + (bit >>> 6)] |= 1L << bit;
+			}
+		}
+	}
+	
+	/**
+	 * Drops the oldest packed rows
+	 *
+	 * @param count the amount of rows removed from the front of the store
+	 */
+	public void removeFirst(int count) {
+		System.arraycopy(this.block, count * this.stride, this.block, 0, (this.size - count) * this.stride);
+		this.size -= count;
+	}
+	
+	/**
+	 * Returns the value of a nominal attribute of a stored row
+	 *
+	 * @param row       index of the training row
+	 * @param attribute position among the nominal attributes
+	 * @return the dictionary code, -1 for an unknown value of a one-hot encoded attribute
+	 */
+	public long value(int row, int attribute) {
+		return this.value(this.block, row * this.stride, attribute);
+	}
+	
+	/**
+	 * Returns the value of a nominal attribute of a packed instance
+	 *
+	 * @param query     packed nominal values of the instance
+	 * @param attribute position among the nominal attributes
+	 * @return the dictionary code, -1 for an unknown value of a one-hot encoded attribute
+	 */
+	public long value(long[] query, int attribute) {
+		return this.value(query, 0, attribute);
+	}
+	
+	private long value(long[] block, int offset, int attribute) {
+		if (this.codeWord[attribute] >= 0) return block[offset + this.codeWord[attribute]];
+		int bit = this.bitOffset[attribute], word = offset + (bit >>> 6), shift = bit & 63, width = this.numValues[attribute];
+		long bits = block[word] >>> shift;
+		if (shift + width > Long.SIZE) bits |= block[word + 1] << (Long.SIZE - shift);
+		if (width < Long.SIZE) bits &= (1L << width) - 1;
+		return bits == 0 ? -1 : Long.numberOfTrailingZeros(bits);
+	}
+	
+	/**
+	 * Counts the attributes in which a stored row differs from a packed instance
+	 *
+	 * @param row   index of the training row
+	 * @param query packed nominal values of the instance
+	 * @return the amount of mismatching attributes
+	 */
+	public int mismatches(int row, long[] query) {
+		return this.mismatches(this.block, row * this.stride, query, 0);
+	}
+	
+	/**
+	 * Counts the attributes in which two stored rows differ
+	 *
+	 * @param row1 index of the first training row
+	 * @param row2 index of the second training row
+	 * @return the amount of mismatching attributes
+	 */
+	public int mismatches(int row1, int row2) {
+		return this.mismatches(this.block, row1 * this.stride, this.block, row2 * this.stride);
+	}
+	
+	/**
+	 * a has to be a stored row, so it holds exactly one bit per one-hot encoded attribute
+	 */
+	private int mismatches(long[] a, int aOffset, long[] b, int bOffset) {
+		int mismatches = 0;
+		int w = 0;
+		for (; w < this.bitWords; w++) {
+			mismatches += Long.bitCount(a[aOffset + w] & ~b[bOffset + w]);
+		}
+		for (; w < this.stride; w++) {
+			mismatches += a[aOffset + w] != b[bOffset + w] ? 1 : 0;
+		}
+		return mismatches;
+	}
+	
+	/**
+	 * @return the packed rows, {@link #stride()} words per row, possibly followed by unused capacity
+	 */
+	long[] block() {
+		return block;
+	}
+	
+	/**
+	 * @return the amount of long words per row
+	 */
+	public int stride() {
+		return stride;
+	}
+}
@@ -0,0 +1,301 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Row-major block of doubles outside the Java heap.
+ * <p>
+ * The rows are split into direct buffers of at most {@link #CHUNK} bytes, every buffer holds a power of two of
+ * complete rows, so a row is read from one buffer at an offset found by a shift and a mask. The garbage collector only
+ * sees the small buffer objects, not the values. The memory is returned by {@link #close()} right away instead of
+ * whenever the buffers are collected. The block must not be read after it was closed, so it must not be closed while
+ * another thread queries it. A block can also be mapped from a file, see {@link #map(FileChannel, long, int, int)} and
+ * {@link #spill(double[], int, int)}.
+ */
+final class OffHeapBlock implements Closeable, Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Largest buffer in bytes, a single direct buffer is limited to 2 GB
+	 */
+	private static final int CHUNK = 1 << 30;
+	
+	/**
+	 * Releases a direct buffer, null if the running JVM offers no way to do so
+	 */
+	private static final Method CLEANER = cleaner();
+	private static final Object UNSAFE = unsafe();
+	
+	private final int rows;
+	private final int width;
+	private final int rowShift;
+	private transient ByteBuffer[] buffers;
+	private transient DoubleBuffer[] chunks;
+	
+	/**
+	 * Copies the leading rows of a row-major array
+	 *
+	 * @param values the values of all rows
+	 * @param rows   the amount of rows to copy
+	 * @param width  the amount of values per row
+	 */
+	OffHeapBlock(double[] values, int rows, int width) {
+		this(rows, width);
+		this.allocateChunks();
+		for (int row = 0; row < rows; row += 1 << this.rowShift) {
+			int count = Math.min(1 << this.rowShift, rows - row);
+			this.chunks[row >>> this.rowShift].put(values, row * width, count * width);
+		}
+	}
+	
+	/**
+	 * Allocates a block of zeros, the rows are filled via {@link #put(int, double[])}
+	 *
+	 * @param rows  the amount of rows
+	 * @param width the amount of values per row
+	 * @return the new block
+	 */
+	static OffHeapBlock allocate(int rows, int width) {
+		OffHeapBlock block = new OffHeapBlock(rows, width);
+		block.allocateChunks();
+		return block;
+	}
+	
+	private OffHeapBlock(int rows, int width) {
+		this.rows = rows;
+		this.width = width;
+		int shift = 0;
+		while (shift < 30 && (long) Double.BYTES * width << (shift + 1) <= CHUNK && 1L << shift < rows) shift++;
+		this.rowShift = shift;
+	}
+	
+	/**
+	 * Maps a row-major block of little-endian doubles from a file instead of copying it, the values are read from the
+	 * page cache and the file must not be changed while the block is used
+	 *
+	 * @param channel  the file, opened for reading
+	 * @param position the offset of the first value in the file
+	 * @param rows     the amount of rows
+	 * @param width    the amount of values per row
+	 * @return the mapped block, read-only
+	 * @throws IOException if the file cannot be mapped
+	 */
+	static OffHeapBlock map(FileChannel channel, long position, int rows, int width) throws IOException {
+		OffHeapBlock block = new OffHeapBlock(rows, width);
+		block.mapChunks(channel, position, FileChannel.MapMode.READ_ONLY);
+		return block;
+	}
+	
+	/**
+	 * Copies the leading rows of a row-major array into a temporary file, which is deleted right away, and maps it. The
+	 * values are read from the page cache like a block mapped by {@link #map(FileChannel, long, int, int)}, so the
+	 * operating system can drop the pages of rows which are rarely read.
+	 *
+	 * @param values the values of all rows
+	 * @param rows   the amount of rows to copy
+	 * @param width  the amount of values per row
+	 * @return the mapped block
+	 */
+	static OffHeapBlock spill(double[] values, int rows, int width) {
+		OffHeapBlock block = new OffHeapBlock(rows, width);
+		try {
+			Path file = Files.createTempFile("values", ".bin");
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				block.mapChunks(channel, 0, FileChannel.MapMode.READ_WRITE);
+			} finally {
+				if (!file.toFile().delete()) file.toFile().deleteOnExit();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (int row = 0; row < rows; row += 1 << block.rowShift) {
+			int count = Math.min(1 << block.rowShift, rows - row);
+			block.chunks[row >>> block.rowShift].put(values, row * width, count * width);
+		}
+		return block;
+	}
+	
+	private void mapChunks(FileChannel channel, long position, FileChannel.MapMode mode) throws IOException {
+		int perChunk = 1 << this.rowShift;
+		int count = (this.rows + perChunk - 1) >>> this.rowShift;
+		this.buffers = new ByteBuffer[count];
+		this.chunks = new DoubleBuffer[count];
+		for (int c = 0; c < count; c++) {
+			long bytes = (long) Math.min(perChunk, this.rows - c * perChunk) * this.width * Double.BYTES;
+			this.buffers[c] = channel.map(mode, position + (long) c * perChunk * this.width * Double.BYTES, bytes);
+			this.chunks[c] = this.buffers[c].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		}
+	}
+	
+	private void allocateChunks() {
+		int perChunk = 1 << this.rowShift;
+		int count = (this.rows + perChunk - 1) >>> this.rowShift;
+		this.buffers = new ByteBuffer[count];
+		this.chunks = new DoubleBuffer[count];
+		for (int c = 0; c < count; c++) {
+			int chunkRows = Math.min(perChunk, this.rows - c * perChunk);
+			this.buffers[c] = ByteBuffer.allocateDirect(Math.max(1, chunkRows * this.width * Double.BYTES)).order(ByteOrder.nativeOrder());
+			this.chunks[c] = this.buffers[c].asDoubleBuffer();
+		}
+	}
+	
+	/**
+	 * @param row index of the row
+	 * @return the buffer holding the row, see {@link #offset(int)}
+	 */
+	DoubleBuffer chunk(int row) {
+		DoubleBuffer[] chunks = this.chunks;
+		if (chunks == null) throw new IllegalStateException("Off-heap values released");
+		return chunks[row >>> this.rowShift];
+	}
+	
+	/**
+	 * @param row index of the row
+	 * @return the position of the first value of the row inside its {@link #chunk(int)}
+	 */
+	int offset(int row) {
+		return (row & ((1 << this.rowShift) - 1)) * this.width;
+	}
+	
+	/**
+	 * Copies consecutive rows into an array
+	 *
+	 * @param from  the first row
+	 * @param count the amount of rows
+	 * @param out   array receiving the rows from position 0
+	 */
+	void get(int from, int count, double[] out) {
+		for (int row = from; row < from + count; ) {
+			int rows = Math.min(from + count - row, (1 << this.rowShift) - (row & ((1 << this.rowShift) - 1)));
+			DoubleBuffer chunk = this.chunk(row).duplicate();
+			chunk.position(this.offset(row));
+			chunk.get(out, (row - from) * this.width, rows * this.width);
+			row += rows;
+		}
+	}
+	
+	/**
+	 * Overwrites a row, a block mapped from a file is read-only
+	 *
+	 * @param row    index of the row
+	 * @param values the values of the row
+	 */
+	void put(int row, double[] values) {
+		DoubleBuffer chunk = this.chunk(row);
+		for (int p = 0, offset = this.offset(row); p < this.width; p++) {
+			chunk.put(offset + p, values[p]);
+		}
+	}
+	
+	/**
+	 * @return the amount of rows
+	 */
+	int rows() {
+		return rows;
+	}
+	
+	/**
+	 * @return the bytes allocated outside the heap, 0 once the block is closed
+	 */
+	long bytes() {
+		return this.chunks == null ? 0 : (long) this.rows * this.width * Double.BYTES;
+	}
+	
+	/**
+	 * Returns the memory of the block, further calls do nothing
+	 */
+	@Override
+	public synchronized void close() {
+		ByteBuffer[] buffers = this.buffers;
+		if (buffers == null) return;
+		this.buffers = null;
+		this.chunks = null;
+		for (ByteBuffer buffer : buffers) {
+			free(buffer);
+		}
+	}
+	
+	/**
+	 * Returns the memory of a direct or mapped buffer right away. If the JVM offers no way to do so, the memory is
+	 * returned once the buffer is garbage collected. The buffer must not be accessed afterwards.
+	 *
+	 * @param buffer a buffer created by {@link ByteBuffer#allocateDirect(int)} or by mapping a file, not a view
+	 */
+	static void free(ByteBuffer buffer) {
+		if (CLEANER == null) return;
+		try {
+			if (UNSAFE != null) {
+				CLEANER.invoke(UNSAFE, buffer);
+			} else {
+				Object cleaner = CLEANER.invoke(buffer);
+				if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// the buffer is released by the garbage collector instead
+		}
+	}
+	
+	/**
+	 * Java 9 and later release buffers via Unsafe.invokeCleaner, Java 8 via the cleaner of the buffer itself
+	 */
+	private static Method cleaner() {
+		try {
+			return Class.forName("sun.misc.Unsafe").getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			try {
+				Method method = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+				method.setAccessible(true);
+				return method;
+			} catch (ReflectiveOperationException | RuntimeException inner) {
+				return null;
+			}
+		}
+	}
+	
+	private static Object unsafe() {
+		try {
+			Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return CLEANER != null && CLEANER.getDeclaringClass().getName().equals("sun.misc.Unsafe") ? field.get(null) : null;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		if (this.chunks == null) throw new IllegalStateException("Off-heap values released");
+		out.defaultWriteObject();
+		double[] row = new double[this.width];
+		for (int r = 0; r < this.rows; r++) {
+			this.get(r, 1, row);
+			for (double value : row) {
+				out.writeDouble(value);
+			}
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.allocateChunks();
+		for (int r = 0; r < this.rows; r++) {
+			DoubleBuffer chunk = this.chunk(r);
+			for (int p = 0, offset = this.offset(r); p < this.width; p++) {
+				chunk.put(offset + p, in.readDouble());
+			}
+		}
+	}
+}
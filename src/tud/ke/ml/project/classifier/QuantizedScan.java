@@ -0,0 +1,259 @@
+package tud.ke.ml.project.classifier;
+
+import weka.classifiers.lazy.keNN;
+
+import java.util.Arrays;
+
+/**
+ * Linear scan over a compressed copy of the numeric values of a {@link DistanceKernel}.
+ * <p>
+ * The (normalized) values are stored as floats or as 16 or 8 bit codes on a per-attribute grid between the minimum and
+ * the maximum of the attribute, so the scan reads a half, a quarter or an eighth of the bytes of the double block. The
+ * query is mapped into the same code space once and the distances are computed directly on the codes, nominal
+ * mismatches are counted exactly. The scan keeps the nearest rows by approximate distance as candidates: with a
+ * re-rank factor r the r * k nearest, which are offered with their exact distance and only read the double block of
+ * the candidates, without re-ranking the k + 2 nearest, which are offered with their approximate distance. Either way
+ * the heap only learns about the candidates, so the strategy is approximate and ties behind the k-th neighbor are
+ * decided among the candidates. The copy replaces the double block on the heap, see
+ * {@link NearestNeighbor#setNumericStorage(int)}, so the kernel is read-only while it is scanned.
+ */
+public class QuantizedScan implements NeighborSearch {
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Amount of attributes summed between two checks of the abandon limit, a multiple of 4
+	 */
+	private static final int BLOCK = 8;
+	
+	private final DistanceKernel kernel;
+	private final int metric;
+	private final int size;
+	private final int dimensions;
+	private final int rerank;
+	private float[] floats;
+	private short[] shorts;
+	private byte[] bytes;
+	/**
+	 * Value of code 0 per attribute, 0 for floats
+	 */
+	private final double[] minimum;
+	/**
+	 * Distance between two codes per attribute
+	 */
+	private final float[] step;
+	
+	private transient ThreadLocal<Buffers> buffers;
+	
+	/**
+	 * Compresses all rows of the kernel
+	 *
+	 * @param kernel  the distance whose (normalized) values are compressed
+	 * @param storage {@link keNN#STORAGE_FLOAT}, {@link keNN#STORAGE_16BIT} or {@link keNN#STORAGE_8BIT}
+	 * @param rerank  the amount of candidates per neighbor offered with their exact distance, 0 to offer the
+	 *                approximate distances of the nearest candidates
+	 */
+	public QuantizedScan(DistanceKernel kernel, int storage, int rerank) {
+		this.kernel = kernel;
+		this.metric = kernel.getMetric();
+		this.size = kernel.size();
+		this.dimensions = kernel.getStore().numNumeric();
+		this.rerank = rerank;
+		this.minimum = new double[this.dimensions];
+		this.step = new float[this.dimensions];
+		
+		double[] values = new double[this.dimensions];
+		int length = this.size * this.dimensions;
+		if (storage == keNN.STORAGE_FLOAT) {
+			this.floats = new float[length];
+			for (int row = 0, i = 0; row < this.size; row++) {
+				kernel.row(row, values);
+				for (int p = 0; p < this.dimensions; p++, i++) {
+					this.floats[i] = (float) values[p];
+				}
+			}
+			Arrays.fill(this.step, 1);
+			return;
+		}
+		int levels;
+		if (storage == keNN.STORAGE_16BIT) {
+			levels = 0xFFFF;
+			this.shorts = new short[length];
+		} else if (storage == keNN.STORAGE_8BIT) {
+			levels = 0xFF;
+			this.bytes = new byte[length];
+		} else {
+			throw new UnknownError("Storage unknown");
+		}
+		double[] max = new double[this.dimensions];
+		Arrays.fill(this.minimum, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (int row = 0; row < this.size; row++) {
+			kernel.row(row, values);
+			for (int p = 0; p < this.dimensions; p++) {
+				this.minimum[p] = Math.min(this.minimum[p], values[p]);
+				max[p] = Math.max(max[p], values[p]);
+			}
+		}
+		for (int p = 0; p < this.dimensions; p++) {
+			this.step[p] = max[p] > this.minimum[p] ? (float) ((max[p] - this.minimum[p]) / levels) : 1;
+		}
+		for (int row = 0, i = 0; row < this.size; row++) {
+			kernel.row(row, values);
+			for (int p = 0; p < this.dimensions; p++, i++) {
+				long code = Math.round((values[p] - this.minimum[p]) / this.step[p]);
+				if (this.shorts != null) this.shorts[i] = (short) code;
+				else this.bytes[i] = (byte) code;
+			}
+		}
+	}
+	
+	@Override
+	public void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap) {
+		Buffers buffers = this.buffers(heap.capacity());
+		float[] query = buffers.query;
+		for (int p = 0; p < this.dimensions; p++) {
+			query[p] = (float) (numeric[p] - this.minimum[p]);
+		}
+		
+		NeighborHeap candidates = buffers.candidates;
+		candidates.clear();
+		for (int row = 0; row < this.size; row++) {
+			double limit = candidates.abandonLimit(kernel);
+			int mismatches = kernel.mismatches(row, nominal);
+			double sum = mismatches > limit ? mismatches : mismatches + this.numericSum(row * this.dimensions, query, limit - mismatches);
+			if (sum > limit) candidates.skip(1, kernel.finish(sum));
+			else candidates.offer(row, kernel.finish(sum));
+		}
+		for (int i = 0; i < candidates.size(); i++) {
+			if (this.rerank > 0) kernel.offer(candidates.row(i), numeric, nominal, heap);
+			else heap.offer(candidates.row(i), candidates.distance(i));
+		}
+	}
+	
+	/**
+	 * Sums the numeric terms between a compressed row and the query, which is given relative to the minimum of every
+	 * attribute. Stops early, returning a partial sum above the limit, once the row cannot enter the heap.
+	 */
+	private double numericSum(int offset, float[] query, double limit) {
+		float[] step = this.step, floats = this.floats;
+		short[] shorts = this.shorts;
+		byte[] bytes = this.bytes;
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int p = 0, length = this.dimensions, unrolled = length - length % BLOCK;
+		boolean manhattan = this.metric == keNN.DIST_MANHATTAN;
+		while (p < unrolled) {
+			if (floats != null) {
+				float[] block = floats;
+				for (int end = p + BLOCK; p < end; p += 4) {
+					float d0 = block[offset + p] - query[p], d1 = block[offset + p + 1] - query[p + 1];
+					float d2 = block[offset + p + 2] - query[p + 2], d3 = block[offset + p + 3] - query[p + 3];
+					if (manhattan) {
+						s0 += Math.abs(d0);
+						s1 += Math.abs(d1);
+						s2 += Math.abs(d2);
+						s3 += Math.abs(d3);
+					} else {
+						s0 += d0 * d0;
+						s1 += d1 * d1;
+						s2 += d2 * d2;
+						s3 += d3 * d3;
+					}
+				}
+			} else if (shorts != null) {
+				short[] block = shorts;
+				for (int end = p + BLOCK; p < end; p += 4) {
+					float d0 = (block[offset + p] & 0xFFFF) * step[p] - query[p], d1 = (block[offset + p + 1] & 0xFFFF) * step[p + 1] - query[p + 1];
+					float d2 = (block[offset + p + 2] & 0xFFFF) * step[p + 2] - query[p + 2], d3 = (block[offset + p + 3] & 0xFFFF) * step[p + 3] - query[p + 3];
+					if (manhattan) {
+						s0 += Math.abs(d0);
+						s1 += Math.abs(d1);
+						s2 += Math.abs(d2);
+						s3 += Math.abs(d3);
+					} else {
+						s0 += d0 * d0;
+						s1 += d1 * d1;
+						s2 += d2 * d2;
+						s3 += d3 * d3;
+					}
+				}
+			} else {
+				byte[] block = bytes;
+				for (int end = p + BLOCK; p < end; p += 4) {
+					float d0 = (block[offset + p] & 0xFF) * step[p] - query[p], d1 = (block[offset + p + 1] & 0xFF) * step[p + 1] - query[p + 1];
+					float d2 = (block[offset + p + 2] & 0xFF) * step[p + 2] - query[p + 2], d3 = (block[offset + p + 3] & 0xFF) * step[p + 3] - query[p + 3];
+					if (manhattan) {
+						s0 += Math.abs(d0);
+						s1 += Math.abs(d1);
+						s2 += Math.abs(d2);
+						s3 += Math.abs(d3);
+					} else {
+						s0 += d0 * d0;
+						s1 += d1 * d1;
+						s2 += d2 * d2;
+						s3 += d3 * d3;
+					}
+				}
+			}
+			double partial = (s0 + s1) + (s2 + s3);
+			if (partial > limit) return partial;
+		}
+		double sum = (s0 + s1) + (s2 + s3);
+		for (; p < length; p++) {
+			float d = this.value(offset + p, p) - query[p];
+			sum += manhattan ? Math.abs(d) : d * d;
+		}
+		return sum;
+	}
+	
+	/**
+	 * @return the decoded value of a compressed position relative to the minimum of its attribute
+	 */
+	private float value(int position, int attribute) {
+		if (this.floats != null) return this.floats[position];
+		if (this.shorts != null) return (this.shorts[position] & 0xFFFF) * this.step[attribute];
+		return (this.bytes[position] & 0xFF) * this.step[attribute];
+	}
+	
+	private Buffers buffers(int k) {
+		ThreadLocal<Buffers> buffers = this.buffers;
+		if (buffers == null) {
+			buffers = ThreadLocal.withInitial(Buffers::new);
+			this.buffers = buffers;
+		}
+		Buffers result = buffers.get();
+		if (result.query == null) result.query = new float[this.dimensions];
+		// without re-ranking two rows more than k, so the heap can tell whether the rows behind the k-th nearest are tied
+		int capacity = this.rerank > 0 ? this.rerank * k : k + 2;
+		if (result.candidates == null || result.candidates.capacity() != capacity) {
+			result.candidates = new NeighborHeap(capacity);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the bytes of the compressed numeric block
+	 */
+	public long compressedBytes() {
+		if (this.floats != null) return (long) this.floats.length * Float.BYTES;
+		if (this.shorts != null) return (long) this.shorts.length * Short.BYTES;
+		return this.bytes.length;
+	}
+	
+	@Override
+	public boolean isExact() {
+		return false;
+	}
+	
+	@Override
+	public boolean supports(DistanceKernel kernel) {
+		return kernel == this.kernel && kernel.getMetric() == this.metric && kernel.size() == this.size;
+	}
+	
+	/**
+	 * Query buffers of a thread.
+	 */
+	private static class Buffers {
+		private float[] query;
+		private NeighborHeap candidates;
+	}
+}
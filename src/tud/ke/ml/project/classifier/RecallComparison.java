@@ -0,0 +1,233 @@
+package tud.ke.ml.project.classifier;
+
+import tud.ke.ml.project.util.Pair;
+import weka.classifiers.lazy.keNN;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the approximate search of {@link LSHIndex} with the exact linear scan on a learned {@link NearestNeighbor}.
+ * <p>
+ * Every combination of table count, hashes per table and bucket width is configured on the model itself, so the index
+ * is built and queried exactly like for {@link NearestNeighbor#classifyInstance(List, int)}, including the resolution
+ * of tied neighbors. The queries are classified with the k of the model. The recall is the fraction of the found
+ * neighbors whose distance does not exceed the exact k-th nearest distance, so ties between equally distant rows do
+ * not count as misses. The queries run one after another on the calling thread, the latencies are averages per query.
+ * The search settings of the model are restored afterwards.
+ */
+public class RecallComparison {
+	private final NearestNeighbor model;
+	private final List<List<Object>> queries;
+	private int[] tables = {1, 2, 5, 10, 20};
+	private int[] hashes;
+	private double[] widths;
+	
+	/**
+	 * @param model   a learned model, its k, metric and normalization are used
+	 * @param queries instances with all attributes including the class attribute, whose value is ignored
+	 */
+	public RecallComparison(NearestNeighbor model, List<List<Object>> queries) {
+		this.model = model;
+		this.queries = queries;
+		this.hashes = new int[]{model.getHashesPerTable()};
+		this.widths = new double[]{model.getHashWidth()};
+	}
+	
+	/**
+	 * Evaluates all configurations
+	 *
+	 * @return recall and latency of every combination of table count, hashes per table and width
+	 */
+	public List<Result> run() {
+		int strategy = this.model.getSearchStrategy();
+		int hashTables = this.model.getHashTables();
+		int hashesPerTable = this.model.getHashesPerTable();
+		double hashWidth = this.model.getHashWidth();
+		try {
+			return this.compare();
+		} finally {
+			this.model.setSearchStrategy(strategy);
+			this.model.setHashTables(hashTables);
+			this.model.setHashesPerTable(hashesPerTable);
+			this.model.setHashWidth(hashWidth);
+		}
+	}
+	
+	private List<Result> compare() {
+		this.model.setSearchStrategy(keNN.SEARCH_LINEAR);
+		DistanceKernel kernel = this.model.getKernel();
+		InstanceStore store = kernel.getStore();
+		int k = Math.min(this.model.getkNearest(), kernel.size());
+		int count = this.queries.size();
+		double[] numeric = new double[store.numNumeric()];
+		long[] nominal = new long[kernel.packedLength()];
+		int[] codes = new int[store.numNominal()];
+		NeighborHeap heap = new NeighborHeap(k);
+		NeighborSearch exact = new LinearSearch(store);
+		double[] bounds = new double[count];
+		for (int q = 0; q < count; q++) {
+			store.encode(this.queries.get(q), numeric, codes);
+			kernel.normalize(numeric);
+			kernel.pack(codes, nominal);
+			heap.clear();
+			exact.search(kernel, numeric, nominal, heap);
+			bounds[q] = heap.bound();
+		}
+		double exactMicros = this.classifyAll(store.getClassAttribute()) / Math.max(1, count);
+		
+		List<Result> results = new ArrayList<>();
+		SearchStatistics statistics = this.model.getSearchStatistics();
+		for (int numTables : this.tables) {
+			for (int numHashes : this.hashes) {
+				for (double width : this.widths) {
+					this.model.setSearchStrategy(keNN.SEARCH_LSH);
+					this.model.setHashTables(numTables);
+					this.model.setHashesPerTable(numHashes);
+					this.model.setHashWidth(width);
+					long start = System.nanoTime();
+					this.model.getKernel();
+					long buildMillis = (System.nanoTime() - start) / 1000000;
+					long compared = statistics.getEvaluations() + statistics.getSkipped(), sorted = statistics.getSorted();
+					double micros = this.classifyAll(store.getClassAttribute()) / Math.max(1, count);
+					compared = statistics.getEvaluations() + statistics.getSkipped() - compared;
+					sorted = statistics.getSorted() - sorted;
+					long found = 0;
+					for (int q = 0; q < count; q++) {
+						int within = 0;
+						for (Pair<List<Object>, Double> neighbour : this.model.getNearest(this.queries.get(q))) {
+							if (neighbour.getB() <= bounds[q]) within++;
+						}
+						found += Math.min(k, within);
+					}
+					double recall = count == 0 ? 1 : (double) found / ((long) count * k);
+					double candidates = count == 0 ? 0 : (double) compared / count / kernel.size();
+					double sortedRows = count == 0 ? 0 : (double) sorted / count / kernel.size();
+					results.add(new Result(numTables, numHashes, width, recall, candidates, sortedRows, micros, exactMicros, buildMillis));
+				}
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Classifies every query with the current settings of the model
+	 *
+	 * @return the time in microseconds
+	 */
+	private double classifyAll(int classAttribute) {
+		long start = System.nanoTime();
+		for (List<Object> query : this.queries) {
+			this.model.classifyInstance(query, classAttribute);
+		}
+		return (System.nanoTime() - start) / 1e3;
+	}
+	
+	/**
+	 * @param tables the amounts of hash tables to evaluate
+	 */
+	public void setTables(int... tables) {
+		this.tables = tables;
+	}
+	
+	/**
+	 * @param hashes the amounts of hash functions per table to evaluate, by default the one of the model
+	 */
+	public void setHashes(int... hashes) {
+		this.hashes = hashes;
+	}
+	
+	/**
+	 * @param widths the relative bucket widths to evaluate, by default the one of the model
+	 */
+	public void setWidths(double... widths) {
+		this.widths = widths;
+	}
+	
+	/**
+	 * Recall and latency of one configuration.
+	 */
+	public static class Result {
+		private final int tables;
+		private final int hashes;
+		private final double width;
+		private final double recall;
+		private final double candidates;
+		private final double sorted;
+		private final double micros;
+		private final double exactMicros;
+		private final long buildMillis;
+		
+		Result(int tables, int hashes, double width, double recall, double candidates, double sorted, double micros, double exactMicros, long buildMillis) {
+			this.tables = tables;
+			this.hashes = hashes;
+			this.width = width;
+			this.recall = recall;
+			this.candidates = candidates;
+			this.sorted = sorted;
+			this.micros = micros;
+			this.exactMicros = exactMicros;
+			this.buildMillis = buildMillis;
+		}
+		
+		public int getTables() {
+			return tables;
+		}
+		
+		public int getHashes() {
+			return hashes;
+		}
+		
+		public double getWidth() {
+			return width;
+		}
+		
+		/**
+		 * @return the fraction of the exact k nearest neighbors found
+		 */
+		public double getRecall() {
+			return recall;
+		}
+		
+		/**
+		 * @return the mean fraction of the training rows compared per query
+		 */
+		public double getCandidates() {
+			return candidates;
+		}
+		
+		/**
+		 * @return the mean fraction of the training rows sorted per query to resolve tied neighbors
+		 */
+		public double getSorted() {
+			return sorted;
+		}
+		
+		/**
+		 * @return the mean time of an approximate query in microseconds
+		 */
+		public double getMicros() {
+			return micros;
+		}
+		
+		/**
+		 * @return the mean time of a query with the linear scan in microseconds
+		 */
+		public double getExactMicros() {
+			return exactMicros;
+		}
+		
+		/**
+		 * @return the time to hash the training rows, including the kernel if the model had to rebuild it
+		 */
+		public long getBuildMillis() {
+			return buildMillis;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d tables, %d hashes, width %.3f: recall %.4f, %.2f%% compared, %.2f%% sorted, %.1f us (exact %.1f us, build %d ms)", tables, hashes,
+					width, recall, 100 * candidates, 100 * sorted, micros, exactMicros, buildMillis);
+		}
+	}
+}
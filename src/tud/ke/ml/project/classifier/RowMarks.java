@@ -0,0 +1,39 @@
+package tud.ke.ml.project.classifier;
+
+import java.util.Arrays;
+
+/**
+ * Set of training rows visited by the current query of a thread. Starting the next query is constant time, the marks
+ * are only cleared when the query counter wraps around.
+ */
+class RowMarks {
+	private final int[] stamps;
+	private int epoch;
+	
+	/**
+	 * @param size the amount of rows
+	 */
+	RowMarks(int size) {
+		this.stamps = new int[size];
+	}
+	
+	/**
+	 * Forgets all marks
+	 */
+	void next() {
+		if (++this.epoch == 0) {
+			Arrays.fill(this.stamps, 0);
+			this.epoch = 1;
+		}
+	}
+	
+	/**
+	 * @param row index of the row
+	 * @return false if the row was already marked since {@link #next()}
+	 */
+	boolean mark(int row) {
+		if (this.stamps[row] == this.epoch) return false;
+		this.stamps[row] = this.epoch;
+		return true;
+	}
+}
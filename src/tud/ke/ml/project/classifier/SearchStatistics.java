@@ -0,0 +1,86 @@
+package tud.ke.ml.project.classifier;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many distance evaluations the neighbor searches performed and how many rows they were able to skip.
+ */
+public class SearchStatistics implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong evaluations = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong sorted = new AtomicLong();
+	
+	/**
+	 * Adds the counters of a finished query
+	 *
+	 * @param heap the collector used by the query
+	 */
+	public void record(NeighborHeap heap) {
+		this.queries.incrementAndGet();
+		this.evaluations.addAndGet(heap.evaluated());
+		this.skipped.addAndGet(heap.skipped());
+	}
+	
+	/**
+	 * Adds the rows a query sorted to resolve ties behind the k-th nearest neighbor
+	 *
+	 * @param rows the amount of sorted rows
+	 */
+	public void recordSorted(int rows) {
+		this.sorted.addAndGet(rows);
+	}
+	
+	public void reset() {
+		this.queries.set(0);
+		this.evaluations.set(0);
+		this.skipped.set(0);
+		this.sorted.set(0);
+	}
+	
+	/**
+	 * @return the amount of answered queries
+	 */
+	public long getQueries() {
+		return queries.get();
+	}
+	
+	/**
+	 * @return the amount of distances computed between a query and a training row
+	 */
+	public long getEvaluations() {
+		return evaluations.get();
+	}
+	
+	/**
+	 * @return the amount of training rows skipped without computing their distance
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+	
+	/**
+	 * @return the amount of rows sorted because the rows behind the k-th nearest neighbor were tied, all training rows
+	 * per tied query for exact strategies, only the candidates for approximate ones
+	 */
+	public long getSorted() {
+		return sorted.get();
+	}
+	
+	/**
+	 * @return the fraction of distance evaluations avoided compared to a linear scan
+	 */
+	public double getPruningRate() {
+		long total = getEvaluations() + getSkipped();
+		return total == 0 ? 0 : (double) getSkipped() / total;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d queries, %.1f distance evaluations and %.1f skipped rows per query (%.1f%% pruned)",
+				getQueries(), (double) getEvaluations() / Math.max(1, getQueries()), (double) getSkipped() / Math.max(1, getQueries()), 100 * getPruningRate());
+	}
+}
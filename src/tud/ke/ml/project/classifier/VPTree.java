@@ -0,0 +1,230 @@
+package tud.ke.ml.project.classifier;
+
+import java.util.Arrays;
+
+/**
+ * Vantage-point tree over complete training rows.
+ * <p>
+ * The tree only relies on the triangle inequality of the distance computed by a {@link DistanceKernel}, so it handles
+ * nominal and numeric attributes alike. Each inner node picks a vantage row and splits the remaining rows at the
+ * median distance to it. A child is skipped if the distance ranges stored for it prove that none of its rows can be
+ * closer than the current k-th nearest neighbor. The tree is bound to the kernel and metric it was built with. Rows
+ * appended to the kernel afterwards are compared linearly and rows removed from its front are ignored until the tree
+ * is rebuilt. A node whose vantage row was removed can no longer prune its children.
+ */
+public class VPTree implements NeighborSearch {
+	private static final long serialVersionUID = 1L;
+	
+	private static final int LEAF_SIZE = 8;
+	/**
+	 * Relative tolerance on the pruning bound, so rounding errors in the distance sums can never prune a row whose
+	 * computed distance ties the current k-th distance.
+	 */
+	private static final double TOLERANCE = 1e-9;
+	
+	private final DistanceKernel kernel;
+	private final int metric;
+	private final int[] order;
+	private final double[] distances;
+	private final int removed;
+	
+	private int[] start, end, inner, outer, minRow, maxRow;
+	private double[] innerLo, innerHi, outerLo, outerHi;
+	private int numNodes;
+	
+	/**
+	 * Builds the tree over all rows of the kernel's store
+	 *
+	 * @param kernel the distance the tree is built for
+	 */
+	public VPTree(DistanceKernel kernel) {
+		this.kernel = kernel;
+		this.metric = kernel.getMetric();
+		this.removed = kernel.removed();
+		int size = kernel.getStore().size();
+		this.order = new int[size];
+		for (int i = 0; i < size; i++) {
+			this.order[i] = i;
+		}
+		this.distances = new double[size];
+		
+		int capacity = Math.max(1, 2 * size / LEAF_SIZE + 1);
+		this.start = new int[capacity];
+		this.end = new int[capacity];
+		this.inner = new int[capacity];
+		this.outer = new int[capacity];
+		this.minRow = new int[capacity];
+		this.maxRow = new int[capacity];
+		this.innerLo = new double[capacity];
+		this.innerHi = new double[capacity];
+		this.outerLo = new double[capacity];
+		this.outerHi = new double[capacity];
+		if (size > 0) build(0, size);
+	}
+	
+	/**
+	 * Builds the node for order[from..to). The vantage row of an inner node is placed at position from.
+	 */
+	private int build(int from, int to) {
+		int node = newNode(from, to);
+		if (to - from <= LEAF_SIZE) return node;
+		
+		// the row farthest from the middle row tends to be a good vantage point
+		int middle = this.order[(from + to) >>> 1];
+		int vantage = from;
+		double farthest = -1;
+		for (int i = from; i < to; i++) {
+			double distance = this.kernel.distance(middle, this.order[i]);
+			if (distance > farthest) {
+				farthest = distance;
+				vantage = i;
+			}
+		}
+		swap(from, vantage);
+		
+		for (int i = from + 1; i < to; i++) {
+			this.distances[i] = this.kernel.distance(this.order[from], this.order[i]);
+		}
+		int median = (from + 1 + to) >>> 1;
+		select(from + 1, to - 1, median);
+		
+		this.innerLo[node] = range(from + 1, median, true);
+		this.innerHi[node] = range(from + 1, median, false);
+		this.outerLo[node] = range(median, to, true);
+		this.outerHi[node] = range(median, to, false);
+		int innerChild = build(from + 1, median);
+		int outerChild = build(median, to);
+		this.inner[node] = innerChild;
+		this.outer[node] = outerChild;
+		return node;
+	}
+	
+	private double range(int from, int to, boolean min) {
+		double result = min ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			result = min ? Math.min(result, this.distances[i]) : Math.max(result, this.distances[i]);
+		}
+		return result;
+	}
+	
+	private int newNode(int from, int to) {
+		if (this.numNodes == this.start.length) {
+			int capacity = this.numNodes * 2;
+			this.start = Arrays.copyOf(this.start, capacity);
+			this.end = Arrays.copyOf(this.end, capacity);
+			this.inner = Arrays.copyOf(this.inner, capacity);
+			this.outer = Arrays.copyOf(this.outer, capacity);
+			this.minRow = Arrays.copyOf(this.minRow, capacity);
+			this.maxRow = Arrays.copyOf(this.maxRow, capacity);
+			this.innerLo = Arrays.copyOf(this.innerLo, capacity);
+			this.innerHi = Arrays.copyOf(this.innerHi, capacity);
+			this.outerLo = Arrays.copyOf(this.outerLo, capacity);
+			this.outerHi = Arrays.copyOf(this.outerHi, capacity);
+		}
+		int node = this.numNodes++;
+		this.start[node] = from;
+		this.end[node] = to;
+		this.inner[node] = -1;
+		this.outer[node] = -1;
+		this.minRow[node] = Integer.MAX_VALUE;
+		this.maxRow[node] = Integer.MIN_VALUE;
+		for (int i = from; i < to; i++) {
+			this.minRow[node] = Math.min(this.minRow[node], this.order[i]);
+			this.maxRow[node] = Math.max(this.maxRow[node], this.order[i]);
+		}
+		return node;
+	}
+	
+	/**
+	 * Partially sorts order[from..to] by the distance to the vantage row, so position k holds the k-th smallest
+	 */
+	private void select(int from, int to, int k) {
+		while (from < to) {
+			double pivot = this.distances[(from + to) >>> 1];
+			int i = from, j = to;
+			while (i <= j) {
+				while (this.distances[i] < pivot) i++;
+				while (this.distances[j] > pivot) j--;
+				if (i <= j) swap(i++, j--);
+			}
+			if (k <= j) to = j;
+			else if (k >= i) from = i;
+			else return;
+		}
+	}
+	
+	private void swap(int i, int j) {
+		int row = this.order[i];
+		this.order[i] = this.order[j];
+		this.order[j] = row;
+		double distance = this.distances[i];
+		this.distances[i] = this.distances[j];
+		this.distances[j] = distance;
+	}
+	
+	@Override
+	public void search(DistanceKernel kernel, double[] numeric, long[] nominal, NeighborHeap heap) {
+		int shift = kernel.removed() - this.removed;
+		if (this.numNodes > 0) search(0, shift, numeric, nominal, heap);
+		for (int row = Math.max(0, this.order.length - shift); row < kernel.size(); row++) {
+			kernel.offer(row, numeric, nominal, heap);
+		}
+	}
+	
+	/**
+	 * Row r of the tree is row r - shift of the kernel, rows with a negative index were removed
+	 */
+	private void search(int node, int shift, double[] numeric, long[] nominal, NeighborHeap heap) {
+		if (this.inner[node] < 0) {
+			for (int i = this.start[node]; i < this.end[node]; i++) {
+				if (this.order[i] >= shift) this.kernel.offer(this.order[i] - shift, numeric, nominal, heap);
+			}
+			return;
+		}
+		int vantage = this.order[this.start[node]] - shift;
+		if (vantage < 0) {
+			visit(this.inner[node], Double.NEGATIVE_INFINITY, shift, numeric, nominal, heap);
+			visit(this.outer[node], Double.NEGATIVE_INFINITY, shift, numeric, nominal, heap);
+			return;
+		}
+		double distance = this.kernel.distance(vantage, numeric, nominal);
+		heap.offer(vantage, distance);
+		
+		double innerBound = lowerBound(distance, this.innerLo[node], this.innerHi[node]);
+		double outerBound = lowerBound(distance, this.outerLo[node], this.outerHi[node]);
+		if (innerBound <= outerBound) {
+			visit(this.inner[node], innerBound, shift, numeric, nominal, heap);
+			visit(this.outer[node], outerBound, shift, numeric, nominal, heap);
+		} else {
+			visit(this.outer[node], outerBound, shift, numeric, nominal, heap);
+			visit(this.inner[node], innerBound, shift, numeric, nominal, heap);
+		}
+	}
+	
+	private void visit(int node, double bound, int shift, double[] numeric, long[] nominal, NeighborHeap heap) {
+		if (this.maxRow[node] < shift) return;
+		if (bound > heap.bound() && this.minRow[node] >= shift) {
+			heap.skip(this.end[node] - this.start[node], bound);
+		} else {
+			search(node, shift, numeric, nominal, heap);
+		}
+	}
+	
+	/**
+	 * Lower bound of the distance between the instance and any row whose distance to the vantage row lies in [lo, hi]
+	 */
+	private static double lowerBound(double distance, double lo, double hi) {
+		double bound = Math.max(distance - hi, lo - distance);
+		return bound - TOLERANCE * (distance + hi);
+	}
+	
+	/**
+	 * The tree is rebuilt once the rows appended or removed after the build exceed an eighth of the indexed rows
+	 */
+	@Override
+	public boolean supports(DistanceKernel kernel) {
+		int shift = kernel.removed() - this.removed;
+		int appended = kernel.size() - Math.max(0, this.order.length - shift);
+		return kernel == this.kernel && kernel.getMetric() == this.metric && shift + appended <= this.order.length / 8 + LEAF_SIZE;
+	}
+}
@@ -1,15 +1,36 @@
 package tud.ke.ml.project.junit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 
+import tud.ke.ml.project.classifier.AttributeStatistics;
+import tud.ke.ml.project.classifier.CrossValidation;
+import tud.ke.ml.project.classifier.DistanceKernel;
+import tud.ke.ml.project.classifier.InstanceStore;
+import tud.ke.ml.project.classifier.ModelFile;
+import tud.ke.ml.project.classifier.NearestNeighbor;
+import tud.ke.ml.project.classifier.NeighborHeap;
+import tud.ke.ml.project.classifier.NominalBits;
+import tud.ke.ml.project.util.Pair;
+
 import weka.classifiers.lazy.IBk;
 import weka.classifiers.lazy.keNN;
 import weka.core.EuclideanDistance;
@@ -23,6 +44,7 @@ import weka.core.neighboursearch.LinearNNSearch;
 import weka.core.neighboursearch.NearestNeighbourSearch;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.NominalToBinary;
+import weka.filters.unsupervised.attribute.NumericToNominal;
 import weka.filters.unsupervised.instance.RemovePercentage;
 
 public class AdvancedValidation {
@@ -435,4 +457,1267 @@ public class AdvancedValidation {
 			}
 		}
 	}
+
+	/**
+	 * Compares the predictions of two configurations of the implemented classifier
+	 * 
+	 * @param reference classifier using the linear scan
+	 * @param candidate classifier using another search strategy
+	 * @param testInstance the instance to classify
+	 * @throws Exception
+	 */
+	public static void compareSearchStrategies(keNN reference, keNN candidate, Instance testInstance) throws Exception {
+		double expected = reference.classifyInstance(testInstance);
+		double actual = candidate.classifyInstance(testInstance);
+		assertEquals("Search strategy " + candidate.getSearchStrategy().getSelectedTag().getReadable() + " predicted another class for [" + testInstance.toString() + "]", expected, actual, 0);
+	}
+
+	/**
+	 * This test validates that the tree based search strategies return the same neighbours as the linear scan for both metrics, with and without normalization.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSearchStrategiesMatchLinearSearch() throws Exception {
+		List<Instances> data = new LinkedList<Instances>();
+
+		setUpSplittingFilter();
+		init(data);
+
+		for (int strategy : new int[] { keNN.SEARCH_KDTREE, keNN.SEARCH_VPTREE }) {
+			for (int metric = 0; metric <= 1; metric++) {
+				for (int norm = 0; norm <= 1; norm++) {
+					keNN linear = new keNN();
+					keNN candidate = new keNN();
+					for (keNN classifier : Arrays.asList(linear, candidate)) {
+						classifier.setkNearest(5);
+						classifier.setMetric(new SelectedTag(metric, keNN.TAGS_DISTANCE));
+						classifier.setDistanceWeighting(new SelectedTag(1, keNN.TAGS_WEIGHTING));
+						classifier.setNormalization(new SelectedTag(norm, keNN.TAGS_NORM));
+					}
+					candidate.setSearchStrategy(new SelectedTag(strategy, keNN.TAGS_SEARCH));
+
+					for (Instances instances : data) {
+						filterTrain.setInputFormat(instances);
+						filterTest.setInputFormat(instances);
+						Instances train = Filter.useFilter(instances, filterTrain);
+						linear.buildClassifier(train);
+						candidate.buildClassifier(train);
+						for (Instance instance : Filter.useFilter(instances, filterTest)) {
+							compareSearchStrategies(linear, candidate, instance);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * This test validates that the approximate search strategies predict almost the same classes as the linear scan with the default recall settings.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testApproximateSearchAgreesWithLinearSearch() throws Exception {
+		for (int strategy : new int[] { keNN.SEARCH_LSH, keNN.SEARCH_HNSW }) {
+			for (int metric = 0; metric <= 1; metric++) {
+				keNN linear = new keNN();
+				keNN approximate = new keNN();
+				for (keNN classifier : Arrays.asList(linear, approximate)) {
+					classifier.setkNearest(5);
+					classifier.setMetric(new SelectedTag(metric, keNN.TAGS_DISTANCE));
+					classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+				}
+				approximate.setSearchStrategy(new SelectedTag(strategy, keNN.TAGS_SEARCH));
+
+				forEachSplit((train, test) -> {
+					linear.buildClassifier(train);
+					approximate.buildClassifier(train);
+					int agreeing = countAgreeing(linear, approximate, test);
+					assertTrue("Approximate search agreed on " + agreeing + " of " + test.size() + " instances", agreeing >= 0.9 * test.size());
+				});
+			}
+		}
+	}
+
+	/**
+	 * This test validates that approximate search with sparse buckets resolves tied neighbors over its candidates only instead of sorting the training set.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSparseBucketsSortOnlyCandidates() throws Exception {
+		keNN approximate = new keNN();
+
+		approximate.setkNearest(5);
+		approximate.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+		approximate.setSearchStrategy(new SelectedTag(keNN.SEARCH_LSH, keNN.TAGS_SEARCH));
+		approximate.setHashesPerTable(12);
+		approximate.setHashWidth(0.1);
+
+		forEachSplit((train, test) -> {
+			approximate.buildClassifier(train);
+			for (Instance instance : test) {
+				double predicted = approximate.classifyInstance(instance);
+				assertTrue("No class predicted for [" + instance.toString() + "]", predicted >= 0 && predicted < test.numClasses());
+			}
+			double sorted = approximate.getMeasure("measureSortedRows");
+			assertTrue("No query of the sparse buckets had tied neighbors", sorted > 0);
+			assertTrue("Sorted " + sorted + " rows, more than the " + approximate.getMeasure("measureDistanceEvaluations") + " candidates", sorted <= approximate.getMeasure("measureDistanceEvaluations"));
+			assertTrue("Sorted the training set for every query", sorted < approximate.getMeasure("measureQueries") * train.numInstances() / 10);
+		});
+	}
+
+	/**
+	 * This test validates that the scan over compressed numeric values predicts like the scan over doubles, with and without re-ranking, and never sorts the training set on ties.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompressedStorageAgreesWithDoubleStorage() throws Exception {
+		for (int storage : new int[] { keNN.STORAGE_FLOAT, keNN.STORAGE_16BIT, keNN.STORAGE_8BIT }) {
+			for (int rerank : new int[] { 0, 4 }) {
+				keNN exact = new keNN();
+				keNN compressed = new keNN();
+				for (keNN classifier : Arrays.asList(exact, compressed)) {
+					classifier.setkNearest(5);
+					classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+				}
+				compressed.setNumericStorage(new SelectedTag(storage, keNN.TAGS_STORAGE));
+				compressed.setRerankFactor(rerank);
+
+				forEachSplit((train, test) -> {
+					exact.buildClassifier(train);
+					compressed.buildClassifier(train);
+					int agreeing = countAgreeing(exact, compressed, test);
+					assertTrue("Compressed storage agreed on " + agreeing + " of " + test.size() + " instances", agreeing >= 0.95 * test.size());
+					assertTrue("Compressed storage sorted more rows than its candidates", compressed.getMeasure("measureSortedRows") <= compressed.getMeasure("measureDistanceEvaluations"));
+				});
+			}
+		}
+	}
+
+	/**
+	 * This test validates that the compressed numeric values replace the doubles on the heap, that the model is read-only and that the doubles still give the exact distances of the cross-validation.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompressedStorageReplacesDoubles() throws Exception {
+		List<List<Object>> rows = createRows(new Random(89), 120);
+
+		for (boolean normalizing : new boolean[] { false, true }) {
+			NearestNeighbor exact = new NearestNeighbor();
+			NearestNeighbor compressed = new NearestNeighbor();
+			for (NearestNeighbor model : Arrays.asList(exact, compressed)) {
+				model.setNormalizing(normalizing);
+			}
+			compressed.setNumericStorage(keNN.STORAGE_8BIT);
+			exact.learnModel(createStore(rows, null, 0));
+			InstanceStore store = createStore(rows, null, 0);
+			compressed.learnModel(store);
+			assertNull("Doubles stayed on the heap next to the compressed values", store.numeric());
+			try {
+				compressed.addInstance(rows.get(0));
+				fail("Compressed model was updated");
+			} catch (IllegalStateException e) {
+				// the model is read-only
+			}
+			List<CrossValidation.Result> expected = new CrossValidation(exact, 5, 7).run();
+			List<CrossValidation.Result> actual = new CrossValidation(compressed, 5, 7).run();
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals("Compressed model validates differently for " + expected.get(i), expected.get(i).getAccuracy(), actual.get(i).getAccuracy(), 0);
+			}
+			exact.close();
+			compressed.close();
+		}
+	}
+
+	/**
+	 * This test validates that the parallel batch prediction returns the same classes as classifying one instance at a time, also after the threads were stopped by closing the model.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatchPredictionMatchesSequential() throws Exception {
+		keNN classifier = new keNN();
+		List<Instances> data = new LinkedList<Instances>();
+
+		setUpSplittingFilter();
+		init(data);
+
+		classifier.setkNearest(7);
+		classifier.setMetric(new SelectedTag(1, keNN.TAGS_DISTANCE));
+		classifier.setDistanceWeighting(new SelectedTag(1, keNN.TAGS_WEIGHTING));
+		classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+		classifier.setNumExecutionSlots(4);
+
+		for (Instances instances : data) {
+			filterTrain.setInputFormat(instances);
+			filterTest.setInputFormat(instances);
+			Instances train = Filter.useFilter(instances, filterTrain);
+			Instances test = Filter.useFilter(instances, filterTest);
+			classifier.buildClassifier(train);
+			double[][] distributions = classifier.distributionsForInstances(test);
+			for (int i = 0; i < test.numInstances(); i++) {
+				assertEquals("Batch prediction differs for [" + test.instance(i).toString() + "]", classifier.classifyInstance(test.instance(i)), Utils.maxIndex(distributions[i]), 0);
+			}
+			classifier.close();
+			classifier.buildClassifier(train);
+			assertTrue("Batch prediction after closing the model differs", Arrays.deepEquals(distributions, classifier.distributionsForInstances(test)));
+		}
+	}
+
+	/**
+	 * Test run on the training and test part of every data set
+	 */
+	interface SplitCheck {
+		void check(Instances train, Instances test) throws Exception;
+	}
+
+	/**
+	 * Splits every data set into training and test instances like the correctness tests and runs the check on both parts
+	 * 
+	 * @param check the test to run on every split
+	 * @throws Exception
+	 */
+	private void forEachSplit(SplitCheck check) throws Exception {
+		List<Instances> data = new LinkedList<Instances>();
+
+		setUpSplittingFilter();
+		init(data);
+
+		for (Instances instances : data) {
+			filterTrain.setInputFormat(instances);
+			filterTest.setInputFormat(instances);
+			check.check(Filter.useFilter(instances, filterTrain), Filter.useFilter(instances, filterTest));
+		}
+	}
+
+	/**
+	 * Compares the predictions of two models that must not differ
+	 * 
+	 * @param model description of the candidate model for the failure message
+	 * @param expected classifier giving the expected classes
+	 * @param actual classifier under test
+	 * @param test the instances to classify
+	 * @throws Exception
+	 */
+	public static void assertSamePredictions(String model, keNN expected, keNN actual, Instances test) throws Exception {
+		for (Instance instance : test) {
+			assertEquals(model + " differs for [" + instance.toString() + "]", expected.classifyInstance(instance), actual.classifyInstance(instance), 0);
+		}
+	}
+
+	/**
+	 * Counts the instances two models of which one only approximates the other predict the same class for
+	 * 
+	 * @param expected classifier giving the expected classes
+	 * @param actual approximating classifier
+	 * @param test the instances to classify
+	 * @return the amount of instances with equal predictions
+	 * @throws Exception
+	 */
+	public static int countAgreeing(keNN expected, keNN actual, Instances test) throws Exception {
+		int agreeing = 0;
+		for (Instance instance : test) {
+			if (expected.classifyInstance(instance) == actual.classifyInstance(instance)) agreeing++;
+		}
+		return agreeing;
+	}
+
+	/**
+	 * This test validates that a model extended by incremental updates predicts like a model built on all instances at once and that updates before the first build fail.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testIncrementalUpdatesMatchRebuild() throws Exception {
+		keNN reference = new keNN();
+		keNN incremental = new keNN();
+
+		for (keNN classifier : Arrays.asList(reference, incremental)) {
+			classifier.setkNearest(5);
+			classifier.setDistanceWeighting(new SelectedTag(1, keNN.TAGS_WEIGHTING));
+			classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+			classifier.setSearchStrategy(new SelectedTag(keNN.SEARCH_KDTREE, keNN.TAGS_SEARCH));
+		}
+
+		forEachSplit((train, test) -> {
+			try {
+				new keNN().updateClassifier(train.instance(0));
+				fail("Model without training data was updated");
+			} catch (IllegalStateException e) {
+				// updates need the schema of a built model
+			}
+			reference.buildClassifier(train);
+			incremental.buildClassifier(new Instances(train, 0, train.numInstances() / 2));
+			for (int i = train.numInstances() / 2; i < train.numInstances(); i++) {
+				incremental.updateClassifier(train.instance(i));
+			}
+			assertSamePredictions("Incremental model", reference, incremental, test);
+		});
+	}
+
+	/**
+	 * This test validates that a model with a sliding window predicts like a model built on the most recent instances only.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSlidingWindowMatchesRecentInstances() throws Exception {
+		keNN reference = new keNN();
+		keNN windowed = new keNN();
+
+		for (keNN classifier : Arrays.asList(reference, windowed)) {
+			classifier.setkNearest(3);
+			classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+			classifier.setSearchStrategy(new SelectedTag(keNN.SEARCH_VPTREE, keNN.TAGS_SEARCH));
+		}
+
+		forEachSplit((train, test) -> {
+			int window = train.numInstances() / 3;
+			windowed.setWindowSize(window);
+			reference.buildClassifier(new Instances(train, train.numInstances() - window, window));
+			windowed.buildClassifier(new Instances(train, 0, window));
+			for (int i = window; i < train.numInstances(); i++) {
+				windowed.updateClassifier(train.instance(i));
+			}
+			assertSamePredictions("Windowed model", reference, windowed, test);
+		});
+	}
+
+	/**
+	 * This test validates that a model loaded from a model file predicts like the model that was saved.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testModelFileMatchesLearnedModel() throws Exception {
+		keNN learned = new keNN();
+		keNN loaded = new keNN();
+		File file = File.createTempFile("model", ".knn");
+		file.deleteOnExit();
+
+		learned.setkNearest(5);
+		learned.setDistanceWeighting(new SelectedTag(1, keNN.TAGS_WEIGHTING));
+		learned.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+		learned.setSearchStrategy(new SelectedTag(keNN.SEARCH_KDTREE, keNN.TAGS_SEARCH));
+
+		forEachSplit((train, test) -> {
+			learned.buildClassifier(train);
+			learned.saveModel(file);
+			loaded.loadModel(file);
+			assertSamePredictions("Loaded model", learned, loaded, test);
+		});
+	}
+
+	/**
+	 * This test validates that a loaded model answers from the mapped file with the written statistics and predicts like the learned model once both were updated.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoadedModelIsMappedUntilUpdated() throws Exception {
+		File file = File.createTempFile("model", ".knn");
+		file.deleteOnExit();
+		List<List<Object>> rows = createRows(new Random(31), 150);
+		List<List<Object>> queries = createRows(new Random(37), 50);
+
+		for (boolean normalizing : new boolean[] { false, true }) {
+			NearestNeighbor learned = new NearestNeighbor();
+			learned.setkNearest(5);
+			learned.setNormalizing(normalizing);
+			learned.setSearchStrategy(keNN.SEARCH_VPTREE);
+			learned.learnModel(createStore(rows, null, 0));
+			ModelFile.write(learned, file.toPath());
+			NearestNeighbor loaded = ModelFile.read(file.toPath());
+			assertTrue("Loaded model copied its values", loaded.isMapped());
+			for (int j : new int[] { 0, 1, 3 }) {
+				assertEquals("Loaded mean differs", learned.getAttributeStatistics().getMean(j), loaded.getAttributeStatistics().getMean(j), 0);
+				assertEquals("Loaded variance differs", learned.getAttributeStatistics().getVariance(j), loaded.getAttributeStatistics().getVariance(j), 0);
+			}
+			for (List<Object> query : queries) {
+				assertEquals("Loaded model differs", learned.classifyInstance(query, 4), loaded.classifyInstance(query, 4));
+			}
+			assertTrue("Query copied the values of the loaded model", loaded.isMapped());
+
+			for (List<Object> row : queries.subList(0, 10)) {
+				learned.addInstance(row);
+				loaded.addInstance(row);
+			}
+			assertFalse("Updated model still reads the file", loaded.isMapped());
+			for (List<Object> query : queries) {
+				assertEquals("Updated loaded model differs", learned.classifyInstance(query, 4), loaded.classifyInstance(query, 4));
+			}
+			learned.close();
+			loaded.close();
+		}
+	}
+
+	/**
+	 * This test validates that a loaded model is cross-validated from the mapped file like the learned model, also if its KD-tree cannot read the mapped values.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoadedModelCrossValidatesLikeLearnedModel() throws Exception {
+		File file = File.createTempFile("model", ".knn");
+		file.deleteOnExit();
+		List<List<Object>> rows = createRows(new Random(79), 120);
+
+		for (boolean normalizing : new boolean[] { false, true }) {
+			NearestNeighbor learned = new NearestNeighbor();
+			learned.setNormalizing(normalizing);
+			learned.setSearchStrategy(keNN.SEARCH_KDTREE);
+			learned.learnModel(createStore(rows, null, 0));
+			ModelFile.write(learned, file.toPath());
+			NearestNeighbor loaded = ModelFile.read(file.toPath());
+			List<CrossValidation.Result> expected = new CrossValidation(learned, 5, 7).run();
+			List<CrossValidation.Result> actual = new CrossValidation(loaded, 5, 7).run();
+			assertTrue("Cross-validation copied the values of the loaded model", loaded.isMapped());
+			assertEquals("Unexpected amount of configurations", expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals("Loaded model validates differently for " + expected.get(i), expected.get(i).getAccuracy(), actual.get(i).getAccuracy(), 0);
+			}
+			learned.close();
+			loaded.close();
+		}
+	}
+
+	/**
+	 * This test validates that a model file of an older layout is rejected instead of being read with the current layout.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testModelFileRejectsOtherVersions() throws Exception {
+		File file = File.createTempFile("model", ".knn");
+		file.deleteOnExit();
+		NearestNeighbor model = new NearestNeighbor();
+		model.learnModel(createStore(createRows(new Random(83), 50), null, 0));
+		ModelFile.write(model, file.toPath());
+		ModelFile.read(file.toPath()).close();
+
+		// the version follows the length of the header and the magic number
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteBuffer.wrap(bytes).putInt(2 * Integer.BYTES, 5);
+		Files.write(file.toPath(), bytes);
+		try {
+			ModelFile.read(file.toPath());
+			fail("Model file of version 5 was read");
+		}
+		catch (IOException e) {
+			assertTrue("Unexpected error " + e.getMessage(), e.getMessage().contains("version 5"));
+		}
+	}
+
+	/**
+	 * This test validates that a model built while streaming the data file predicts like a model built on the loaded data set.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamingBuildMatchesBatchBuild() throws Exception {
+		keNN batch = new keNN();
+		keNN streaming = new keNN();
+		List<Instances> data = new LinkedList<Instances>();
+
+		init(data);
+
+		for (keNN classifier : Arrays.asList(batch, streaming)) {
+			classifier.setkNearest(5);
+			classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+		}
+
+		ArffLoader loader = new ArffLoader();
+		loader.setFile(new File("data/credit-g.arff"));
+		streaming.buildClassifier(loader);
+		for (Instances instances : data) {
+			batch.buildClassifier(instances);
+			assertSamePredictions("Streamed model", batch, streaming, instances);
+		}
+	}
+
+	/**
+	 * This test validates that the class distribution sums to 1, peaks at the predicted class and holds multiples of 1/k without weighting.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDistributionMatchesVotes() throws Exception {
+		keNN classifier = new keNN();
+
+		classifier.setkNearest(5);
+		classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+
+		forEachSplit((train, test) -> {
+			classifier.buildClassifier(train);
+			for (Instance instance : test) {
+				double[] distribution = classifier.distributionForInstance(instance);
+				assertEquals("Distribution does not sum to 1 for [" + instance.toString() + "]", 1, Utils.sum(distribution), 1e-9);
+				assertEquals("Distribution differs from the vote for [" + instance.toString() + "]", classifier.classifyInstance(instance), Utils.maxIndex(distribution), 0);
+				for (double probability : distribution) {
+					assertEquals("Unweighted votes are no multiple of 1/k for [" + instance.toString() + "]", Math.rint(probability * 5), probability * 5, 1e-9);
+				}
+			}
+		});
+	}
+
+	/**
+	 * This test validates that a numeric class with many distinct values predicts a value with the most votes of the same class declared as nominal attribute.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testNumericClassVotesLikeNominalClass() throws Exception {
+		List<Instances> data = new LinkedList<Instances>();
+
+		setUpSplittingFilter();
+		init(data);
+
+		for (int k : new int[] { 1, 3 }) {
+			keNN numeric = new keNN();
+			keNN nominal = new keNN();
+			for (keNN classifier : Arrays.asList(numeric, nominal)) {
+				classifier.setkNearest(k);
+				classifier.setDistanceWeighting(new SelectedTag(k == 1 ? 0 : 1, keNN.TAGS_WEIGHTING));
+				classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+			}
+
+			for (Instances instances : data) {
+				Instances amounts = new Instances(instances);
+				amounts.setClassIndex(amounts.attribute("credit_amount").index());
+				NumericToNominal toNominal = new NumericToNominal();
+				toNominal.setAttributeIndices(String.valueOf(amounts.classIndex() + 1));
+				toNominal.setInputFormat(amounts);
+				Instances nominalAmounts = Filter.useFilter(amounts, toNominal);
+				filterTrain.setInputFormat(amounts);
+				filterTest.setInputFormat(amounts);
+				numeric.buildClassifier(Filter.useFilter(amounts, filterTrain));
+				Instances test = Filter.useFilter(amounts, filterTest);
+				filterTrain.setInputFormat(nominalAmounts);
+				filterTest.setInputFormat(nominalAmounts);
+				nominal.buildClassifier(Filter.useFilter(nominalAmounts, filterTrain));
+				Instances nominalTest = Filter.useFilter(nominalAmounts, filterTest);
+				for (int i = 0; i < test.numInstances(); i++) {
+					double[] distribution = nominal.distributionForInstance(nominalTest.instance(i));
+					double predicted = numeric.classifyInstance(test.instance(i));
+					int index = -1;
+					for (int value = 0; value < nominalTest.classAttribute().numValues(); value++) {
+						if (Double.parseDouble(nominalTest.classAttribute().value(value)) == predicted) index = value;
+					}
+					assertTrue("Numeric class vote " + predicted + " for [" + test.instance(i).toString() + "] not among top values of the nominal class", index >= 0 && distribution[index] == distribution[Utils.maxIndex(distribution)]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This test validates that selecting k by cross-validation keeps the configured k and predicts like a model with the selected k.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSelectedKMatchesManualChoice() throws Exception {
+		keNN selecting = new keNN();
+		keNN fixed = new keNN();
+
+		for (keNN classifier : Arrays.asList(selecting, fixed)) {
+			classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+		}
+		selecting.setkNearest(15);
+		selecting.setSelectK(true);
+
+		forEachSplit((train, test) -> {
+			selecting.buildClassifier(train);
+			int k = (int) selecting.getMeasure("measureSelectedK");
+			assertTrue("Selected k " + k + " out of range", k >= 1 && k <= 15);
+			assertEquals("Selecting k changed the configured k", 15, selecting.getkNearest());
+			fixed.setkNearest(k);
+			fixed.buildClassifier(train);
+			assertSamePredictions("Model with selected k", fixed, selecting, test);
+		});
+	}
+
+	/**
+	 * This test validates that selecting k with a coarse approximate search strategy or compressed numeric values without re-ranking selects the same k as an exact linear search.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSelectedKIgnoresApproximateSearch() throws Exception {
+		keNN exact = new keNN();
+		keNN approximate = new keNN();
+
+		for (keNN classifier : Arrays.asList(exact, approximate)) {
+			classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+			classifier.setkNearest(15);
+			classifier.setSelectK(true);
+		}
+		approximate.setHashTables(1);
+		approximate.setHashesPerTable(8);
+		approximate.setGraphDegree(2);
+		approximate.setSearchBeam(1);
+		approximate.setRerankFactor(0);
+
+		forEachSplit((train, test) -> {
+			exact.buildClassifier(train);
+			for (int strategy : new int[] { keNN.SEARCH_LSH, keNN.SEARCH_HNSW }) {
+				approximate.setSearchStrategy(new SelectedTag(strategy, keNN.TAGS_SEARCH));
+				approximate.buildClassifier(train);
+				assertEquals("Selected k of search strategy " + strategy, exact.getMeasure("measureSelectedK"), approximate.getMeasure("measureSelectedK"), 0);
+			}
+			approximate.setSearchStrategy(new SelectedTag(keNN.SEARCH_LINEAR, keNN.TAGS_SEARCH));
+			approximate.setNumericStorage(new SelectedTag(keNN.STORAGE_8BIT, keNN.TAGS_STORAGE));
+			approximate.buildClassifier(train);
+			assertEquals("Selected k of 8 bit storage", exact.getMeasure("measureSelectedK"), approximate.getMeasure("measureSelectedK"), 0);
+			approximate.setNumericStorage(new SelectedTag(keNN.STORAGE_DOUBLE, keNN.TAGS_STORAGE));
+		});
+	}
+
+	/**
+	 * This test validates that the cross-validation over shared neighbor lists scores every configuration like models built on the training folds, also if the model uses an approximate search strategy or keeps its numeric values off heap.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCrossValidationMatchesFoldModels() throws Exception {
+		List<List<Object>> rows = createRows(new Random(29), 120);
+
+		for (int strategy : new int[] { keNN.SEARCH_LINEAR, keNN.SEARCH_VPTREE, keNN.SEARCH_LSH }) {
+			for (boolean offHeap : new boolean[] { false, true }) {
+				NearestNeighbor model = new NearestNeighbor();
+				model.setSearchStrategy(strategy);
+				model.setOffHeap(offHeap);
+				model.learnModel(createStore(rows, null, 0));
+				assertFoldModelsMatch(rows, model);
+				model.close();
+			}
+		}
+	}
+
+	/**
+	 * Compares every configuration of a cross-validation of the model with models built on the training folds
+	 */
+	private static void assertFoldModelsMatch(List<List<Object>> rows, NearestNeighbor model) {
+		CrossValidation validation = new CrossValidation(model, 5, 7);
+		validation.setMaxK(6);
+		int[] folds = validation.folds();
+		for (CrossValidation.Result result : validation.run()) {
+			AttributeStatistics statistics = result.isNormalizing() ? model.getAttributeStatistics() : null;
+			int correct = 0;
+			for (int fold = 0; fold < 5; fold++) {
+				List<List<Object>> train = new ArrayList<List<Object>>();
+				for (int i = 0; i < rows.size(); i++) {
+					if (folds[i] != fold) train.add(rows.get(i));
+				}
+				NearestNeighbor foldModel = new NearestNeighbor();
+				foldModel.setkNearest(result.getK());
+				foldModel.setMetric(result.getMetric());
+				foldModel.setInverseWeighting(result.isInverseWeighting());
+				foldModel.learnModel(createStore(train, statistics, result.getScalingMode()));
+				for (int i = 0; i < rows.size(); i++) {
+					List<Object> row = scale(rows.get(i), statistics, result.getScalingMode());
+					if (folds[i] == fold && foldModel.classifyInstance(row, 4).equals(row.get(4))) correct++;
+				}
+			}
+			assertEquals("Cross-validation differs from the fold models for " + result, (double) correct / rows.size(), result.getAccuracy(), 1e-12);
+		}
+	}
+
+	/**
+	 * This test validates that selecting k from the cached distance matrix, over heap or off-heap values, chooses the same k as selecting it by searching.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCachedDistancesSelectSameK() throws Exception {
+		keNN cached = new keNN();
+		keNN cachedOffHeap = new keNN();
+		keNN searched = new keNN();
+
+		for (keNN classifier : Arrays.asList(cached, cachedOffHeap, searched)) {
+			classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+			classifier.setkNearest(15);
+			classifier.setSelectK(true);
+		}
+		cached.setCacheDistances(true);
+		cachedOffHeap.setCacheDistances(true);
+		cachedOffHeap.setOffHeap(true);
+
+		forEachSplit((train, test) -> {
+			cached.buildClassifier(train);
+			cachedOffHeap.buildClassifier(train);
+			searched.buildClassifier(train);
+			assertEquals("Cached distances selected another k", searched.getMeasure("measureSelectedK"), cached.getMeasure("measureSelectedK"), 0);
+			assertEquals("Cached off-heap distances selected another k", searched.getMeasure("measureSelectedK"), cachedOffHeap.getMeasure("measureSelectedK"), 0);
+			cachedOffHeap.close();
+		});
+	}
+
+	/**
+	 * This test validates that a model keeping its numeric values off the heap predicts like the heap model, is read-only and fails once it is closed.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testOffHeapModelMatchesHeapModel() throws Exception {
+		for (int strategy : new int[] { keNN.SEARCH_LINEAR, keNN.SEARCH_VPTREE }) {
+			keNN heap = new keNN();
+			keNN offHeap = new keNN();
+			for (keNN classifier : Arrays.asList(heap, offHeap)) {
+				classifier.setkNearest(5);
+				classifier.setDistanceWeighting(new SelectedTag(1, keNN.TAGS_WEIGHTING));
+				classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+				classifier.setSearchStrategy(new SelectedTag(strategy, keNN.TAGS_SEARCH));
+			}
+			offHeap.setOffHeap(true);
+
+			forEachSplit((train, test) -> {
+				heap.buildClassifier(train);
+				offHeap.buildClassifier(train);
+				assertSamePredictions("Off-heap model", heap, offHeap, test);
+				try {
+					offHeap.updateClassifier(test.instance(0));
+					fail("Off-heap model was updated");
+				} catch (IllegalStateException e) {
+					// the model is read-only
+				}
+				offHeap.close();
+				try {
+					offHeap.classifyInstance(test.instance(0));
+					fail("Closed model classified an instance");
+				} catch (IllegalStateException e) {
+					// the memory was returned
+				}
+			});
+		}
+	}
+
+	/**
+	 * This test validates that the columnar store encodes numeric values, dictionary codes and class labels losslessly, also when rows are added in the primitive layout, removed or the numeric block is reordered.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testInstanceStoreKeepsRows() throws Exception {
+		List<List<Object>> rows = createRows(new Random(71), 200);
+		InstanceStore store = InstanceStore.forPrototype(rows.get(0), 4);
+		for (List<Object> row : rows) {
+			store.add(row);
+		}
+		InstanceStore primitive = InstanceStore.forPrototype(rows.get(0), 4);
+		primitive.declareValues(2, Arrays.asList("v0", "v1", "v2"));
+		primitive.declareValues(4, Arrays.asList("c0", "c1", "c2"));
+		for (List<Object> row : rows) {
+			double[] values = new double[5];
+			for (int j = 0; j < 5; j++) {
+				values[j] = row.get(j) instanceof Double ? (Double) row.get(j) : Double.parseDouble(((String) row.get(j)).substring(1));
+			}
+			primitive.add(values);
+		}
+		assertEquals("Unexpected numeric attributes", 3, store.numNumeric());
+		assertEquals("Unexpected nominal attributes", 1, store.numNominal());
+
+		double[] numeric = new double[3];
+		int[] nominal = new int[1];
+		for (InstanceStore candidate : Arrays.asList(store, primitive)) {
+			for (int row = 0; row < rows.size(); row++) {
+				assertEquals("Stored row differs", rows.get(row), candidate.getRow(row));
+				for (int p = 0; p < 3; p++) {
+					assertEquals("Numeric value differs", (Double) rows.get(row).get(candidate.numericAttribute(p)), candidate.numeric()[row * 3 + p], 0);
+				}
+				candidate.encode(rows.get(row), numeric, nominal);
+				assertEquals("Nominal code differs", nominal[0], candidate.nominal()[row]);
+				assertEquals("Class value differs", rows.get(row).get(4), candidate.classValue(candidate.labels()[row]));
+			}
+		}
+
+		store.reorderNumeric(new int[] { 2, 0, 1 });
+		store.remove(10);
+		for (int row = 0; row < store.size(); row++) {
+			assertEquals("Row differs after removal and reordering", rows.get(row < 10 ? row : row + 1), store.getRow(row));
+		}
+		assertEquals("Removed row found", -1, store.indexOf(rows.get(10)));
+		assertEquals("Row not found", 10, store.indexOf(rows.get(11)));
+	}
+
+	/**
+	 * Creates random rows with three numeric attributes, the nominal attribute v0, v1 or v2 at index 2 and the class c0, c1 or c2 as fifth attribute
+	 */
+	private static List<List<Object>> createRows(Random random, int count) {
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int i = 0; i < count; i++) {
+			List<Object> row = new ArrayList<Object>();
+			for (int j = 0; j < 4; j++) {
+				row.add(j == 2 ? (Object) ("v" + random.nextInt(3)) : (Object) (random.nextGaussian() * (j + 1)));
+			}
+			row.add("c" + random.nextInt(3));
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * This test validates that the bounded heap keeps the k nearest rows in the order of a stable sort and reports a tie whenever every row behind the k-th nearest has the same distance.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testNeighborHeapKeepsNearestAndDetectsTiedTail() throws Exception {
+		Random random = new Random(61);
+		for (int round = 0; round < 1000; round++) {
+			int k = 1 + random.nextInt(6), size = 1 + random.nextInt(30), range = 1 + random.nextInt(4);
+			double[] distances = new double[size];
+			List<Integer> sorted = new ArrayList<Integer>();
+			NeighborHeap heap = new NeighborHeap(k);
+			for (int row = 0; row < size; row++) {
+				distances[row] = random.nextInt(range);
+				sorted.add(row);
+				heap.offer(row, distances[row]);
+			}
+			sorted.sort(Comparator.comparing(row -> distances[row]));
+
+			assertEquals("Heap keeps the wrong amount of rows", Math.min(k, size), heap.sort());
+			for (int i = 0; i < heap.size(); i++) {
+				assertEquals("Heap differs from a stable sort at " + i, (int) sorted.get(i), heap.row(i));
+			}
+			boolean tied = k > 1;
+			for (int i = k + 1; i < size; i++) {
+				tied &= distances[sorted.get(i)] == distances[sorted.get(k)];
+			}
+			if (tied) assertTrue("Tied tail of " + Arrays.toString(distances) + " not detected for k=" + k, heap.isTailTied());
+		}
+	}
+
+	/**
+	 * This test validates that the model selects the same neighbors as sorting all training rows and applying the tie handling of the original implementation, also if every row is tied.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testNearestNeighborsMatchFullSort() throws Exception {
+		// a query with unseen values mismatches every row in all attributes, so all rows are tied
+		int[] vocabularies = { 2, 2 };
+		Random random = new Random(67);
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int i = 0; i < 300; i++) {
+			rows.add(createNominalRow(random, vocabularies, 0));
+		}
+
+		for (int k : new int[] { 1, 2, 3, 5, 8 }) {
+			for (List<List<Object>> train : Arrays.asList(rows, rows.subList(0, k + 1))) {
+				ExposedNearestNeighbor model = new ExposedNearestNeighbor();
+				model.setkNearest(k);
+				model.learnModel(train, 2);
+				for (int i = 0; i < 100; i++) {
+					List<Object> query = createNominalRow(random, vocabularies, 2);
+					assertEquals("Neighbors of " + query + " differ for k=" + k, sortAndFilterNeighbours(train, query, k), model.nearest(query));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives access to the neighbors the model selects
+	 */
+	private static class ExposedNearestNeighbor extends NearestNeighbor {
+		private static final long serialVersionUID = 1L;
+
+		List<Pair<List<Object>, Double>> nearest(List<Object> query) {
+			return this.getNearest(query);
+		}
+	}
+
+	/**
+	 * Selects the neighbors of a query like the original implementation: sorts all rows of nominal attributes by their mismatches and keeps k of them with its tie handling
+	 */
+	private static List<Pair<List<Object>, Double>> sortAndFilterNeighbours(List<List<Object>> rows, List<Object> query, int k) {
+		List<Pair<List<Object>, Double>> data = new ArrayList<Pair<List<Object>, Double>>();
+		for (List<Object> row : rows) {
+			double distance = 0;
+			for (int j = 0; j < query.size() - 1; j++) {
+				if (!row.get(j).equals(query.get(j))) distance++;
+			}
+			data.add(new Pair<List<Object>, Double>(row, distance));
+		}
+		data.sort(Comparator.comparing(Pair::getB));
+		if (k == 1) return data.subList(0, 1);
+
+		int equals = 0;
+		boolean foundEquals = false;
+		HashMap<String, Integer> classes = new HashMap<String, Integer>();
+		for (int i = 0; i < data.size() - 1; i++) {
+			double dist1 = data.get(i).getB();
+			double dist2 = data.get(i + 1).getB();
+			if (foundEquals && dist1 != dist2) foundEquals = false;
+			if (!foundEquals && dist1 == dist2) {
+				equals = i;
+				foundEquals = true;
+			}
+			if (i >= k && !foundEquals) break;
+			String currentClass = data.get(i).getA().toString();
+			classes.put(currentClass, classes.getOrDefault(currentClass, 0) + 1);
+		}
+		if (!foundEquals) return data.subList(0, Math.min(k, data.size()));
+		HashMap<String, Integer> classesOrdered = new HashMap<String, Integer>();
+		classes.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEachOrdered(x -> classesOrdered.put(x.getKey(), x.getValue()));
+
+		List<Pair<List<Object>, Double>> result = new ArrayList<Pair<List<Object>, Double>>(data.subList(0, Math.min(k - equals, data.size())));
+		for (String key : classesOrdered.keySet()) {
+			for (int i = equals; i < data.size(); i++) {
+				if (data.get(i).getA().toString().equals(key) && result.size() <= k) {
+					result.add(data.get(i));
+				} else break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a row of nominal attributes with the given amounts of values v0, v1, ... followed by the class c0, c1 or c2
+	 * 
+	 * @param unseen the amount of further values, which are unknown to a store declaring the vocabularies
+	 */
+	private static List<Object> createNominalRow(Random random, int[] vocabularies, int unseen) {
+		List<Object> row = new ArrayList<Object>();
+		for (int vocabulary : vocabularies) {
+			row.add("v" + random.nextInt(vocabulary + unseen));
+		}
+		row.add("c" + random.nextInt(3));
+		return row;
+	}
+
+	/**
+	 * This test validates that a query scanning chunks of the training rows in parallel predicts like the sequential scan, also if many neighbors are tied at the k-th distance.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelScanMatchesSequentialScan() throws Exception {
+		keNN sequential = new keNN();
+		keNN parallel = new keNN();
+
+		for (keNN classifier : Arrays.asList(sequential, parallel)) {
+			classifier.setkNearest(5);
+			classifier.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+		}
+		parallel.setNumExecutionSlots(4);
+		parallel.setParallelScanThreshold(1);
+
+		forEachSplit((train, test) -> {
+			sequential.buildClassifier(train);
+			parallel.buildClassifier(train);
+			for (Instance instance : test) {
+				assertTrue("Parallel scan differs for [" + instance.toString() + "]", Arrays.equals(sequential.distributionForInstance(instance), parallel.distributionForInstance(instance)));
+			}
+		});
+		parallel.close();
+
+		// a query with unseen values mismatches every row in all attributes, so all rows are tied
+		int[] vocabularies = { 2, 2 };
+		Random random = new Random(59);
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int i = 0; i < 400; i++) {
+			rows.add(createNominalRow(random, vocabularies, 0));
+		}
+		for (int k : new int[] { 1, 3, 7 }) {
+			NearestNeighbor expected = new NearestNeighbor();
+			NearestNeighbor actual = new NearestNeighbor();
+			for (NearestNeighbor model : Arrays.asList(expected, actual)) {
+				model.setkNearest(k);
+				model.learnModel(rows, 2);
+			}
+			actual.setNumThreads(4);
+			actual.setParallelScanThreshold(1);
+			for (int i = 0; i < 200; i++) {
+				List<Object> query = createNominalRow(random, vocabularies, 2);
+				assertEquals("Parallel scan with ties differs for " + query, expected.classifyInstance(query, 2), actual.classifyInstance(query, 2));
+			}
+			assertTrue("No query was tied", k == 1 || expected.getSearchStatistics().getSorted() > 0);
+			assertEquals("Parallel scan detected other ties", expected.getSearchStatistics().getSorted(), actual.getSearchStatistics().getSorted());
+			actual.close();
+		}
+	}
+
+	/**
+	 * This test validates that abandoning distance computations beyond the current k-th nearest neighbor keeps exactly the neighbors and distances of complete computations while skipping most rows of a wide data set.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testEarlyAbandonKeepsNearestNeighbors() throws Exception {
+		Random random = new Random(73);
+		boolean[] isNumeric = new boolean[41];
+		Arrays.fill(isNumeric, 0, 40, true);
+		InstanceStore store = new InstanceStore(isNumeric, 40);
+		store.declareValues(40, Arrays.asList("c0", "c1", "c2"));
+		for (int i = 0; i < 2000; i++) {
+			double[] values = new double[41];
+			for (int j = 0; j < 40; j++) {
+				values[j] = random.nextGaussian() * (j % 5 + 1);
+			}
+			values[40] = random.nextInt(3);
+			store.add(values);
+		}
+
+		for (int metric : new int[] { keNN.DIST_MANHATTAN, keNN.DIST_EUCLIDEAN }) {
+			DistanceKernel kernel = new DistanceKernel(store, metric, null, null);
+			long[] nominal = new long[kernel.packedLength()];
+			kernel.pack(new int[0], nominal);
+			long skipped = 0;
+			for (int i = 0; i < 50; i++) {
+				double[] query = new double[40];
+				for (int j = 0; j < 40; j++) {
+					query[j] = random.nextGaussian() * (j % 5 + 1);
+				}
+				double[] distances = new double[store.size()];
+				List<Integer> sorted = new ArrayList<Integer>();
+				NeighborHeap heap = new NeighborHeap(5);
+				for (int row = 0; row < store.size(); row++) {
+					distances[row] = kernel.distance(row, query, nominal);
+					sorted.add(row);
+					kernel.offer(row, query, nominal, heap);
+				}
+				sorted.sort(Comparator.comparing(row -> distances[row]));
+				skipped += heap.skipped();
+
+				assertEquals("Heap keeps the wrong amount of rows", 5, heap.sort());
+				for (int n = 0; n < 5; n++) {
+					assertEquals("Neighbor differs at " + n, (int) sorted.get(n), heap.row(n));
+					assertEquals("Distance differs at " + n, distances[sorted.get(n)], heap.distance(n), 0);
+				}
+			}
+			assertTrue("Only " + skipped + " rows abandoned", skipped > 50 * store.size() / 2);
+		}
+	}
+
+	/**
+	 * This test validates that the packed nominal values count the same mismatches as comparing the dictionary codes, for a vocabulary wider than one word, one-hot attributes spilling into the next word and values unseen during training.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testNominalBitsCountMismatchesLikeCodes() throws Exception {
+		int[] vocabularies = { 70, 40, 40, 3 };
+		Random random = new Random(53);
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int i = 0; i < 300; i++) {
+			rows.add(createNominalRow(random, vocabularies, 0));
+		}
+		InstanceStore store = InstanceStore.forPrototype(rows.get(0), 4);
+		for (int j = 0; j < 4; j++) {
+			List<Object> values = new ArrayList<Object>();
+			for (int code = 0; code < vocabularies[j]; code++) {
+				values.add("v" + code);
+			}
+			store.declareValues(j, values);
+		}
+		store.declareValues(4, Arrays.asList("c0", "c1", "c2"));
+		for (List<Object> row : rows) {
+			store.add(row);
+		}
+		NominalBits bits = new NominalBits(store);
+		DistanceKernel kernel = new DistanceKernel(store, keNN.DIST_MANHATTAN, null, null);
+		int[] codes = store.nominal();
+		// one word for the code of the wide attribute and 83 one-hot bits in two words
+		assertEquals("Unexpected layout", 3, bits.stride());
+
+		for (int row = 0; row < store.size(); row++) {
+			int other = row * 7 % store.size(), expected = 0;
+			for (int j = 0; j < 4; j++) {
+				assertEquals("Packed value differs", codes[row * 4 + j], bits.value(row, j));
+				if (codes[row * 4 + j] != codes[other * 4 + j]) expected++;
+			}
+			assertEquals("Mismatches between rows differ", expected, bits.mismatches(row, other));
+		}
+		int[] query = new int[4];
+		long[] packed = new long[bits.stride()];
+		for (int i = 0; i < 100; i++) {
+			store.encode(createNominalRow(random, vocabularies, 3), new double[0], query);
+			bits.pack(query, packed);
+			for (int j = 0; j < 4; j++) {
+				assertEquals("Packed query value differs", query[j], bits.value(packed, j));
+			}
+			for (int row = 0; row < store.size(); row++) {
+				int expected = 0;
+				for (int j = 0; j < 4; j++) {
+					if (query[j] != codes[row * 4 + j]) expected++;
+				}
+				assertEquals("Mismatches differ", expected, bits.mismatches(row, packed));
+				assertEquals("Distance differs", expected, kernel.distance(row, new double[0], packed), 0);
+			}
+		}
+	}
+
+	/**
+	 * This test validates that converting WEKA instances straight into primitive rows predicts like learning from rows of boxed values and nominal value names.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDirectConversionMatchesListConversion() throws Exception {
+		keNN direct = new keNN();
+		direct.setkNearest(5);
+		direct.setDistanceWeighting(new SelectedTag(1, keNN.TAGS_WEIGHTING));
+		direct.setNormalization(new SelectedTag(1, keNN.TAGS_NORM));
+
+		forEachSplit((train, test) -> {
+			direct.buildClassifier(train);
+			NearestNeighbor listed = new NearestNeighbor();
+			listed.setkNearest(5);
+			listed.setInverseWeighting(true);
+			listed.setNormalizing(true);
+			List<List<Object>> rows = new ArrayList<List<Object>>();
+			for (Instance instance : train) {
+				rows.add(toList(instance));
+			}
+			listed.learnModel(rows, train.classIndex());
+			for (Instance instance : test) {
+				Object expected = listed.classifyInstance(toList(instance), test.classIndex());
+				assertEquals("Direct conversion differs for [" + instance.toString() + "]", test.classAttribute().indexOfValue(expected.toString()), direct.classifyInstance(instance), 0);
+			}
+		});
+	}
+
+	/**
+	 * Converts an instance into a row of Doubles for numeric and value names for nominal attributes
+	 */
+	private static List<Object> toList(Instance instance) {
+		List<Object> row = new ArrayList<Object>();
+		for (int i = 0; i < instance.numAttributes(); i++) {
+			row.add(instance.attribute(i).isNumeric() ? (Object) instance.value(i) : instance.attribute(i).value((int) instance.value(i)));
+		}
+		return row;
+	}
+
+	/**
+	 * This test validates that merged statistics, statistics after removing rows and windowed statistics after evicting the oldest rows equal the statistics computed in a single pass over the same rows.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testAttributeStatisticsMatchRecomputation() throws Exception {
+		List<List<Object>> rows = createRows(new Random(41), 200);
+		InstanceStore store = createStore(rows, null, 0);
+		AttributeStatistics single = new AttributeStatistics(store);
+		AttributeStatistics front = new AttributeStatistics(store);
+		AttributeStatistics back = new AttributeStatistics(store);
+		AttributeStatistics removed = new AttributeStatistics(store);
+		AttributeStatistics windowed = new AttributeStatistics(store, true);
+		AttributeStatistics remaining = new AttributeStatistics(store);
+		for (int row = 0; row < rows.size(); row++) {
+			single.add(store, row);
+			(row < 80 ? front : back).add(store, row);
+			removed.add(store, row);
+			windowed.add(store, row);
+			if (row >= 50) remaining.add(store, row);
+		}
+		front.merge(back);
+		for (int row = 0; row < 50; row++) {
+			removed.remove(store, row);
+			windowed.removeOldest(store, row);
+		}
+
+		for (int j : new int[] { 0, 1, 3 }) {
+			assertEquals("Merged count differs", single.getCount(j), front.getCount(j));
+			assertEquals("Merged minimum differs", single.getMin(j), front.getMin(j), 0);
+			assertEquals("Merged maximum differs", single.getMax(j), front.getMax(j), 0);
+			assertEquals("Merged mean differs", single.getMean(j), front.getMean(j), 1e-12);
+			assertEquals("Merged variance differs", single.getVariance(j), front.getVariance(j), 1e-12);
+
+			assertEquals("Count after removal differs", remaining.getCount(j), removed.getCount(j));
+			assertEquals("Mean after removal differs", remaining.getMean(j), removed.getMean(j), 1e-12);
+			assertEquals("Variance after removal differs", remaining.getVariance(j), removed.getVariance(j), 1e-12);
+
+			assertEquals("Windowed minimum differs", remaining.getMin(j), windowed.getMin(j), 0);
+			assertEquals("Windowed maximum differs", remaining.getMax(j), windowed.getMax(j), 0);
+			assertEquals("Windowed mean differs", remaining.getMean(j), windowed.getMean(j), 1e-12);
+			assertEquals("Windowed variance differs", remaining.getVariance(j), windowed.getVariance(j), 1e-12);
+		}
+	}
+
+	/**
+	 * This test validates that a model standardizing by mean and standard deviation predicts like a model without normalization on data standardized beforehand.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testZScoreMatchesManualStandardization() throws Exception {
+		List<List<Object>> rows = createRows(new Random(43), 200);
+		List<List<Object>> queries = createRows(new Random(47), 100);
+		NearestNeighbor standardizing = new NearestNeighbor();
+		standardizing.setkNearest(5);
+		standardizing.setNormalizing(true);
+		standardizing.setScalingMode(keNN.SCALE_ZSCORE);
+		standardizing.learnModel(createStore(rows, null, 0));
+
+		AttributeStatistics statistics = AttributeStatistics.of(createStore(rows, null, 0));
+		NearestNeighbor manual = new NearestNeighbor();
+		manual.setkNearest(5);
+		manual.learnModel(createStore(rows, statistics, keNN.SCALE_ZSCORE));
+
+		for (List<Object> query : queries) {
+			assertEquals("Standardizing model differs", manual.classifyInstance(scale(query, statistics, keNN.SCALE_ZSCORE), 4), standardizing.classifyInstance(query, 4));
+		}
+	}
+
+	/**
+	 * Creates a store of rows with four attributes and the class c0, c1 or c2 as fifth attribute
+	 */
+	private static InstanceStore createStore(List<List<Object>> rows, AttributeStatistics statistics, int scalingMode) {
+		InstanceStore store = InstanceStore.forPrototype(rows.get(0), 4);
+		store.declareValues(4, Arrays.asList("c0", "c1", "c2"));
+		for (List<Object> row : rows) {
+			store.add(scale(row, statistics, scalingMode));
+		}
+		return store;
+	}
+
+	/**
+	 * Normalizes the numeric values of a row with the given statistics like a model of the given scaling mode does
+	 */
+	private static List<Object> scale(List<Object> row, AttributeStatistics statistics, int scalingMode) {
+		if (statistics == null) return row;
+		List<Object> scaled = new ArrayList<Object>(row);
+		for (int j = 0; j < 4; j++) {
+			if (!(row.get(j) instanceof Double)) continue;
+			double factor, offset;
+			if (scalingMode == keNN.SCALE_ZSCORE) {
+				factor = 1 / Math.sqrt(statistics.getVariance(j));
+				offset = -statistics.getMean(j);
+			} else {
+				factor = 1 / (statistics.getMax(j) - statistics.getMin(j));
+				offset = -statistics.getMin(j);
+			}
+			scaled.set(j, ((Double) row.get(j) + offset) * factor);
+		}
+		return scaled;
+	}
+
+	/**
+	 * This test validates that a tie between the votes of two classes is won by the class with the smallest class index, whichever of them has the nearer neighbor and whatever the hash codes of the class values.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testClassTiesWonBySmallestClassIndex() throws Exception {
+		for (boolean inverseWeighting : new boolean[] { false, true }) {
+			for (List<String> classes : Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("c", "b", "a"))) {
+				for (double side : new double[] { 1, -1 }) {
+					// the query 0 is as near to 1 as to -1, the row at 5 makes the first class the one with index 0
+					List<List<Object>> rows = new ArrayList<List<Object>>();
+					rows.add(Arrays.<Object> asList(5.0, classes.get(0)));
+					rows.add(Arrays.<Object> asList(side, classes.get(1)));
+					rows.add(Arrays.<Object> asList(-side, classes.get(2)));
+					NearestNeighbor model = new NearestNeighbor();
+					model.setkNearest(2);
+					model.setInverseWeighting(inverseWeighting);
+					model.learnModel(rows, 1);
+					assertEquals("Tie between " + classes.subList(1, 3) + " won by the wrong class", classes.get(1), model.classifyInstance(Arrays.<Object> asList(0.0, "a"), 1));
+				}
+			}
+		}
+	}
 }
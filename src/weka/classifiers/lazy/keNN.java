@@ -1,16 +1,24 @@
 package weka.classifiers.lazy;
 
+import tud.ke.ml.project.classifier.InstanceStore;
+import tud.ke.ml.project.classifier.ModelFile;
 import tud.ke.ml.project.classifier.NearestNeighbor;
+import tud.ke.ml.project.classifier.SearchStatistics;
 import weka.classifiers.AbstractClassifier;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.*;
 import weka.core.Capabilities.Capability;
+import weka.core.converters.Loader;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 /**
  * WEKA Wrapper class. Do not modify.
  */
-public class keNN extends AbstractClassifier implements OptionHandler {
+public class keNN extends AbstractClassifier implements OptionHandler, AdditionalMeasureProducer, UpdateableClassifier, Closeable {
 	
 	public static final int WEIGHT_NONE = 0;
 	public static final int WEIGHT_INVERSE = 1;
@@ -21,31 +29,181 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 	public static final int NORM_TRUE = 0;
 	public static final int NORM_FALSE = 1;
 	public static final Tag[] TAGS_NORM = {new Tag(NORM_FALSE, "No normalization"), new Tag(NORM_TRUE, "Normalize variables"),};
+	public static final int SCALE_RANGE = 0;
+	public static final int SCALE_ZSCORE = 1;
+	public static final Tag[] TAGS_SCALE = {new Tag(SCALE_RANGE, "Scale to [0, 1] by minimum and maximum"), new Tag(SCALE_ZSCORE, "Standardize by mean and standard deviation"),};
+	public static final int SEARCH_LINEAR = 0;
+	public static final int SEARCH_KDTREE = 1;
+	public static final int SEARCH_VPTREE = 2;
+	public static final int SEARCH_LSH = 3;
+	public static final int SEARCH_HNSW = 4;
+	public static final Tag[] TAGS_SEARCH = {new Tag(SEARCH_LINEAR, "Linear scan"), new Tag(SEARCH_KDTREE, "KD-tree"), new Tag(SEARCH_VPTREE, "Vantage-point tree"), new Tag(SEARCH_LSH, "Locality-sensitive hashing (approximate)"), new Tag(SEARCH_HNSW, "Navigable small world graph (approximate)"),};
+	public static final int STORAGE_DOUBLE = 0;
+	public static final int STORAGE_FLOAT = 1;
+	public static final int STORAGE_16BIT = 2;
+	public static final int STORAGE_8BIT = 3;
+	public static final Tag[] TAGS_STORAGE = {new Tag(STORAGE_DOUBLE, "64 bit doubles"), new Tag(STORAGE_FLOAT, "32 bit floats"), new Tag(STORAGE_16BIT, "16 bit codes"), new Tag(STORAGE_8BIT, "8 bit codes"),};
 	private static final long serialVersionUID = 923612147248506865L;
 	private NearestNeighbor classifier = new NearestNeighbor();
+	private int kNearest = 1;
+	private boolean selectingK;
 	
 	private boolean[] isNumeric;
 	
 	@Override
 	public void buildClassifier(Instances instances) throws Exception {
-		List<List<Object>> data = new LinkedList<List<Object>>();
-		int classAttribute = instances.classAttribute().index();
-		determineNumericAttributes(instances);
+		InstanceStore store = createStore(instances);
+		double[] values = new double[isNumeric.length];
 		for (Instance inst : instances) {
-			data.add(convert(inst));
+			convert(inst, values);
+			store.add(values);
 		}
-		classifier.learnModel(data, classAttribute);
+		learn(store);
+	}
+	
+	/**
+	 * Builds the model while the loader reads the data, e.g. an {@link weka.core.converters.ArffLoader} or a
+	 * {@link weka.core.converters.CSVLoader}. Every instance is written into the model store as soon as it is read,
+	 * so the data set is never held as {@link Instances}. The last attribute is the class unless the structure of the
+	 * loader declares another one.
+	 */
+	public void buildClassifier(Loader loader) throws Exception {
+		Instances structure = loader.getStructure();
+		if (structure.classIndex() < 0) structure.setClassIndex(structure.numAttributes() - 1);
+		InstanceStore store = createStore(structure);
+		double[] values = new double[isNumeric.length];
+		for (Instance inst = loader.getNextInstance(structure); inst != null; inst = loader.getNextInstance(structure)) {
+			convert(inst, values);
+			store.add(values);
+		}
+		learn(store);
+	}
+	
+	/**
+	 * Learns the model, with {@link #setSelectK(boolean)} the k with the best leave-one-out accuracy up to the
+	 * configured k is used
+	 */
+	private void learn(InstanceStore store) {
+		classifier.setkNearest(kNearest);
+		classifier.learnModel(store);
+		if (selectingK) {
+			classifier.setkNearest(classifier.selectK(kNearest).getBestK(classifier.isInverseWeighting()));
+		}
+	}
+	
+	/**
+	 * Creates an empty store for the schema of the instances, nominal values keep their WEKA indices
+	 */
+	private InstanceStore createStore(Instances structure) {
+		determineNumericAttributes(structure);
+		InstanceStore store = new InstanceStore(isNumeric, structure.classAttribute().index());
+		for (int i = 0; i < isNumeric.length; i++) {
+			if (!isNumeric[i]) {
+				store.declareValues(i, Collections.list(structure.attribute(i).enumerateValues()));
+			}
+		}
+		return store;
+	}
+	
+	@Override
+	public void updateClassifier(Instance instance) throws Exception {
+		if (isNumeric == null) throw new IllegalStateException("No model learned, build the classifier before updating it");
+		double[] values = new double[isNumeric.length];
+		convert(instance, values);
+		classifier.addInstance(values);
+	}
+	
+	/**
+	 * Writes the learned model into a binary model file, see {@link ModelFile}
+	 */
+	public void saveModel(File file) throws IOException {
+		ModelFile.write(classifier, file.toPath());
+	}
+	
+	/**
+	 * Replaces the model and its settings by a model file written via {@link #saveModel(File)}. The thread settings
+	 * are kept, the previous model is closed.
+	 */
+	public void loadModel(File file) throws IOException {
+		NearestNeighbor loaded = ModelFile.read(file.toPath());
+		loaded.setNumThreads(classifier.getNumThreads());
+		loaded.setParallelScanThreshold(classifier.getParallelScanThreshold());
+		classifier.close();
+		classifier = loaded;
+		kNearest = loaded.getkNearest();
+		isNumeric = loaded.getNumericAttributes();
 	}
 	
 	@Override
 	public double classifyInstance(Instance instance) {
-		int classAttribute = instance.classAttribute().index();
-		Object classValue = classifier.classifyInstance(convert(instance), classAttribute);
+		Object classValue = classifier.classifyInstance(values -> convert(instance, values));
+		if (instance.classAttribute().isNumeric()) return (Double) classValue;
 		return instance.classAttribute().indexOfValue(classValue.toString());
 	}
 	
+	@Override
+	public Enumeration<String> enumerateMeasures() {
+		Vector<String> measures = new Vector<String>();
+		measures.add("measureQueries");
+		measures.add("measureDistanceEvaluations");
+		measures.add("measureSkippedRows");
+		measures.add("measurePruningRate");
+		measures.add("measureSortedRows");
+		measures.add("measureSelectedK");
+		return measures.elements();
+	}
+	
+	@Override
+	public double getMeasure(String measureName) {
+		SearchStatistics statistics = classifier.getSearchStatistics();
+		switch (measureName) {
+			case "measureQueries":
+				return statistics.getQueries();
+			case "measureDistanceEvaluations":
+				return statistics.getEvaluations();
+			case "measureSkippedRows":
+				return statistics.getSkipped();
+			case "measurePruningRate":
+				return statistics.getPruningRate();
+			case "measureSortedRows":
+				return statistics.getSorted();
+			case "measureSelectedK":
+				return classifier.getkNearest();
+			default:
+				throw new IllegalArgumentException(measureName + " not supported (keNN)");
+		}
+	}
+	
+	/**
+	 * The distribution of a nominal class holds the share of the (weighted) votes of every class value, a numeric
+	 * class value is predicted like {@link #classifyInstance(Instance)}.
+	 */
+	@Override
+	public double[] distributionForInstance(Instance instance) throws Exception {
+		if (instance.classAttribute().isNumeric()) return new double[]{(Double) classifier.classifyInstance(values -> convert(instance, values))};
+		return classifier.distributionForInstance(values -> convert(instance, values));
+	}
+	
+	@Override
+	public double[][] distributionsForInstances(Instances instances) throws Exception {
+		if (instances.classAttribute().isNumeric()) {
+			List<Object> classValues = classifier.classifyInstances(instances.numInstances(), (values, i) -> convert(instances.instance(i), values));
+			double[][] distributions = new double[instances.numInstances()][];
+			for (int i = 0; i < distributions.length; i++) {
+				distributions[i] = new double[]{(Double) classValues.get(i)};
+			}
+			return distributions;
+		}
+		return classifier.distributionsForInstances(instances.numInstances(), (values, i) -> convert(instances.instance(i), values)).toArray(new double[0][]);
+	}
+	
+	@Override
+	public boolean implementsMoreEfficientBatchPrediction() {
+		return true;
+	}
+	
 	public String globalInfo() {
-		return "KE Project Nearest Neighbour Classifier";
+		return "KE Project Nearest Neighbour Classifier. A tie between the votes of classes is won by the class value declared first, like in IBk.";
 	}
 	
 	private void determineNumericAttributes(Instances instances) {
@@ -58,25 +216,41 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 		}
 	}
 	
-	private List<Object> convert(Instance instance) {
-		List<Object> data = new LinkedList<Object>();
+	/**
+	 * Writes the values of an instance into the layout of {@link InstanceStore#add(double[])}. Nominal values stay
+	 * WEKA indices, a missing nominal value becomes the first value of its attribute.
+	 */
+	private void convert(Instance instance, double[] values) {
 		for (int i = 0; i < isNumeric.length; i++) {
-			if (isNumeric[i]) {
-				data.add(instance.value(i));
-			} else {
-				data.add(instance.attribute(i).value((int) instance.value(i)));
-			}
+			double value = instance.value(i);
+			values[i] = isNumeric[i] || !Double.isNaN(value) ? value : 0;
 		}
-		return data;
 	}
 	
 	@Override
 	public Enumeration<Option> listOptions() {
-		Vector<Option> newVector = new Vector<Option>(7);
+		Vector<Option> newVector = new Vector<Option>(9);
 		
 		newVector.addElement(new Option("\tNumber of nearest neighbours (k) used in classification.\n" + "\t(Default = 1)", "K", 1, "-K <number of neighbors>"));
 		newVector.addElement(new Option("\tUse weighted voting by the inverse of their distance\n" + "\t(use when k > 1)", "I", 0, "-I"));
+		newVector.addElement(new Option("\tSelect the number of neighbours between 1 and k by leave-one-out\n" + "\tevaluation on the training data.", "X", 0, "-X"));
 		newVector.addElement(new Option("\tUse euclidean distance instead of manhattan.\n", "E", 0, "-E "));
+		newVector.addElement(new Option("\tNormalize by z-score instead of minimum and maximum.\n", "Z", 0, "-Z"));
+		newVector.addElement(new Option("\tNearest neighbour search strategy, 0 = linear scan, 1 = KD-tree, 2 = vantage-point tree,\n" + "\t3 = locality-sensitive hashing (approximate), 4 = navigable small world graph (approximate).\n" + "\t(Default = 0)", "S", 1, "-S <strategy>"));
+		newVector.addElement(new Option("\tNumber of threads used for batch prediction, 0 = one per processor.\n" + "\t(Default = 0)", "num-slots", 1, "-num-slots <num>"));
+		newVector.addElement(new Option("\tModel size from which a single query scans the training data in parallel, 0 = never.\n" + "\t(Default = 0)", "parallel-scan", 1, "-parallel-scan <rows>"));
+		newVector.addElement(new Option("\tDiscard the raw numeric values once the normalized values are computed.\n", "discard-raw", 0, "-discard-raw"));
+		newVector.addElement(new Option("\tKeep the numeric training values outside the Java heap, the model becomes read-only.\n", "off-heap", 0, "-off-heap"));
+		newVector.addElement(new Option("\tKeep only the most recent training instances, 0 = all.\n" + "\t(Default = 0)", "window", 1, "-window <rows>"));
+		newVector.addElement(new Option("\tPrecompute the distances between all training instances for the selection of k.\n", "cache-distances", 0, "-cache-distances"));
+		newVector.addElement(new Option("\tHash tables of the approximate search, more tables find more true neighbours.\n" + "\t(Default = 10)", "lsh-tables", 1, "-lsh-tables <num>"));
+		newVector.addElement(new Option("\tHash functions per table of the approximate search, more functions compare less candidates.\n" + "\t(Default = 6)", "lsh-hashes", 1, "-lsh-hashes <num>"));
+		newVector.addElement(new Option("\tBucket width of the approximate search relative to the mean distance of two instances.\n" + "\t(Default = 1)", "lsh-width", 1, "-lsh-width <width>"));
+		newVector.addElement(new Option("\tPrecision of the numeric values scanned by the linear search, 0 = double, 1 = float, 2 = 16 bit, 3 = 8 bit, compressed values make the model read-only.\n" + "\t(Default = 0)", "storage", 1, "-storage <precision>"));
+		newVector.addElement(new Option("\tCandidates per neighbour re-ranked with the exact distance after a compressed scan, 0 = none.\n" + "\t(Default = 4)", "rerank", 1, "-rerank <factor>"));
+		newVector.addElement(new Option("\tLinks per node of the graph search (M).\n" + "\t(Default = 16)", "hnsw-m", 1, "-hnsw-m <num>"));
+		newVector.addElement(new Option("\tBeam width building the graph (efConstruction).\n" + "\t(Default = 100)", "hnsw-ef-construction", 1, "-hnsw-ef-construction <num>"));
+		newVector.addElement(new Option("\tBeam width of a query on the graph (efSearch).\n" + "\t(Default = 50)", "hnsw-ef-search", 1, "-hnsw-ef-search <num>"));
 		newVector.addAll(Collections.list(super.listOptions()));
 		
 		return newVector.elements();
@@ -86,7 +260,11 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 	public String[] getOptions() {
 		Vector<String> options = new Vector<String>();
 		options.add("-K");
-		options.add("" + classifier.getkNearest());
+		options.add("" + kNearest);
+		
+		if (selectingK) {
+			options.add("-X");
+		}
 		
 		if (classifier.isInverseWeighting()) {
 			options.add("-I");
@@ -96,6 +274,58 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 			options.add("-E");
 		}
 		
+		if (classifier.getScalingMode() == SCALE_ZSCORE) {
+			options.add("-Z");
+		}
+		
+		options.add("-S");
+		options.add("" + classifier.getSearchStrategy());
+		
+		options.add("-num-slots");
+		options.add("" + classifier.getNumThreads());
+		
+		options.add("-parallel-scan");
+		options.add("" + classifier.getParallelScanThreshold());
+		
+		if (!classifier.isKeepingRawValues()) {
+			options.add("-discard-raw");
+		}
+		
+		if (classifier.isOffHeap()) {
+			options.add("-off-heap");
+		}
+		
+		options.add("-window");
+		options.add("" + classifier.getWindowSize());
+		
+		if (classifier.isCachingDistances()) {
+			options.add("-cache-distances");
+		}
+		
+		options.add("-lsh-tables");
+		options.add("" + classifier.getHashTables());
+		
+		options.add("-lsh-hashes");
+		options.add("" + classifier.getHashesPerTable());
+		
+		options.add("-lsh-width");
+		options.add("" + classifier.getHashWidth());
+		
+		options.add("-storage");
+		options.add("" + classifier.getNumericStorage());
+		
+		options.add("-rerank");
+		options.add("" + classifier.getRerankFactor());
+		
+		options.add("-hnsw-m");
+		options.add("" + classifier.getGraphDegree());
+		
+		options.add("-hnsw-ef-construction");
+		options.add("" + classifier.getConstructionBeam());
+		
+		options.add("-hnsw-ef-search");
+		options.add("" + classifier.getSearchBeam());
+		
 		Collections.addAll(options, super.getOptions());
 		
 		return options.toArray(new String[0]);
@@ -106,11 +336,13 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 		String knnString = Utils.getOption('K', options);
 		
 		if (knnString.length() != 0) {
-			classifier.setkNearest(Integer.parseInt(knnString));
+			setkNearest(Integer.parseInt(knnString));
 		} else {
-			classifier.setkNearest(1);
+			setkNearest(1);
 		}
 		
+		selectingK = Utils.getFlag('X', options);
+		
 		if (Utils.getFlag('I', options)) {
 			classifier.setInverseWeighting(true);
 		} else {
@@ -122,6 +354,118 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 		} else {
 			classifier.setMetric(0);
 		}
+		
+		if (Utils.getFlag('Z', options)) {
+			classifier.setScalingMode(SCALE_ZSCORE);
+		} else {
+			classifier.setScalingMode(SCALE_RANGE);
+		}
+		
+		String searchString = Utils.getOption('S', options);
+		
+		if (searchString.length() != 0) {
+			classifier.setSearchStrategy(Integer.parseInt(searchString));
+		} else {
+			classifier.setSearchStrategy(SEARCH_LINEAR);
+		}
+		
+		String slotsString = Utils.getOption("num-slots", options);
+		
+		if (slotsString.length() != 0) {
+			classifier.setNumThreads(Integer.parseInt(slotsString));
+		} else {
+			classifier.setNumThreads(0);
+		}
+		
+		String scanString = Utils.getOption("parallel-scan", options);
+		
+		if (scanString.length() != 0) {
+			classifier.setParallelScanThreshold(Integer.parseInt(scanString));
+		} else {
+			classifier.setParallelScanThreshold(0);
+		}
+		
+		if (Utils.getFlag("discard-raw", options)) {
+			classifier.setKeepingRawValues(false);
+		} else {
+			classifier.setKeepingRawValues(true);
+		}
+		
+		classifier.setOffHeap(Utils.getFlag("off-heap", options));
+		
+		String windowString = Utils.getOption("window", options);
+		
+		if (windowString.length() != 0) {
+			classifier.setWindowSize(Integer.parseInt(windowString));
+		} else {
+			classifier.setWindowSize(0);
+		}
+		
+		classifier.setCachingDistances(Utils.getFlag("cache-distances", options));
+		
+		String tablesString = Utils.getOption("lsh-tables", options);
+		
+		if (tablesString.length() != 0) {
+			classifier.setHashTables(Integer.parseInt(tablesString));
+		} else {
+			classifier.setHashTables(10);
+		}
+		
+		String hashesString = Utils.getOption("lsh-hashes", options);
+		
+		if (hashesString.length() != 0) {
+			classifier.setHashesPerTable(Integer.parseInt(hashesString));
+		} else {
+			classifier.setHashesPerTable(6);
+		}
+		
+		String widthString = Utils.getOption("lsh-width", options);
+		
+		if (widthString.length() != 0) {
+			classifier.setHashWidth(Double.parseDouble(widthString));
+		} else {
+			classifier.setHashWidth(1);
+		}
+		
+		String storageString = Utils.getOption("storage", options);
+		
+		if (storageString.length() != 0) {
+			classifier.setNumericStorage(Integer.parseInt(storageString));
+		} else {
+			classifier.setNumericStorage(STORAGE_DOUBLE);
+		}
+		
+		String rerankString = Utils.getOption("rerank", options);
+		
+		if (rerankString.length() != 0) {
+			classifier.setRerankFactor(Integer.parseInt(rerankString));
+		} else {
+			classifier.setRerankFactor(4);
+		}
+		
+		String degreeString = Utils.getOption("hnsw-m", options);
+		
+		if (degreeString.length() != 0) {
+			classifier.setGraphDegree(Integer.parseInt(degreeString));
+		} else {
+			classifier.setGraphDegree(16);
+		}
+		
+		String constructionString = Utils.getOption("hnsw-ef-construction", options);
+		
+		if (constructionString.length() != 0) {
+			classifier.setConstructionBeam(Integer.parseInt(constructionString));
+		} else {
+			classifier.setConstructionBeam(100);
+		}
+		
+		String beamString = Utils.getOption("hnsw-ef-search", options);
+		
+		if (beamString.length() != 0) {
+			classifier.setSearchBeam(Integer.parseInt(beamString));
+		} else {
+			classifier.setSearchBeam(50);
+		}
 	}
 	
 	@Override
@@ -144,13 +488,27 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 	}
 	
 	public int getkNearest() {
-		return classifier.getkNearest();
+		return kNearest;
 	}
 	
 	public void setkNearest(int kNearest) {
+		this.kNearest = kNearest;
 		classifier.setkNearest(kNearest);
 	}
 	
+	public String selectKTipText() {
+		
+		return "Select the k with the best leave-one-out accuracy between 1 and the given k on the training data.";
+	}
+	
+	public boolean getSelectK() {
+		return selectingK;
+	}
+	
+	public void setSelectK(boolean selectK) {
+		this.selectingK = selectK;
+	}
+	
 	public String kNearestTipText() {
 		return "Amount of nearest neighbours to use (k)";
 	}
@@ -200,4 +558,232 @@ public class keNN extends AbstractClassifier implements OptionHandler {
 			classifier.setNormalizing(newMethod.getSelectedTag().getID() == 0 ? false : true);
 		}
 	}
+	
+	public String scalingModeTipText() {
+		
+		return "How numeric attributes are normalized if normalization is used.";
+	}
+	
+	public SelectedTag getScalingMode() {
+		
+		return new SelectedTag(classifier.getScalingMode(), TAGS_SCALE);
+	}
+	
+	public void setScalingMode(SelectedTag newMethod) {
+		
+		if (newMethod.getTags() == TAGS_SCALE) {
+			classifier.setScalingMode(newMethod.getSelectedTag().getID());
+		}
+	}
+	
+	public String searchStrategyTipText() {
+		
+		return "The strategy used to find the nearest neighbours.";
+	}
+	
+	public SelectedTag getSearchStrategy() {
+		
+		return new SelectedTag(classifier.getSearchStrategy(), TAGS_SEARCH);
+	}
+	
+	public void setSearchStrategy(SelectedTag newMethod) {
+		
+		if (newMethod.getTags() == TAGS_SEARCH) {
+			classifier.setSearchStrategy(newMethod.getSelectedTag().getID());
+		}
+	}
+	
+	public String numExecutionSlotsTipText() {
+		
+		return "The number of threads used for batch prediction, 0 uses one thread per available processor.";
+	}
+	
+	public int getNumExecutionSlots() {
+		return classifier.getNumThreads();
+	}
+	
+	public void setNumExecutionSlots(int numSlots) {
+		classifier.setNumThreads(numSlots);
+	}
+	
+	public String parallelScanThresholdTipText() {
+		
+		return "The model size (rows) from which a single query scans the training data in parallel, 0 disables it.";
+	}
+	
+	public int getParallelScanThreshold() {
+		return classifier.getParallelScanThreshold();
+	}
+	
+	public void setParallelScanThreshold(int rows) {
+		classifier.setParallelScanThreshold(rows);
+	}
+	
+	public String discardRawValuesTipText() {
+		
+		return "Discard the raw numeric values once the normalized values are computed, which halves the memory of the training data.";
+	}
+	
+	public boolean getDiscardRawValues() {
+		return !classifier.isKeepingRawValues();
+	}
+	
+	public void setDiscardRawValues(boolean discard) {
+		classifier.setKeepingRawValues(!discard);
+	}
+	
+	public String offHeapTipText() {
+		
+		return "Keep the numeric training values outside the Java heap, the model cannot be updated afterwards and the KD-tree cannot be used.";
+	}
+	
+	public boolean getOffHeap() {
+		return classifier.isOffHeap();
+	}
+	
+	public void setOffHeap(boolean offHeap) {
+		classifier.setOffHeap(offHeap);
+	}
+	
+	public String windowSizeTipText() {
+		
+		return "The amount of most recent training instances kept by the model, older instances are evicted when updated, 0 keeps all.";
+	}
+	
+	public int getWindowSize() {
+		return classifier.getWindowSize();
+	}
+	
+	public void setWindowSize(int rows) {
+		classifier.setWindowSize(rows);
+	}
+	
+	public String cacheDistancesTipText() {
+		
+		return "Precompute the distances between all training instances once, so the selection of k looks them up instead of searching, needs 2 n^2 bytes outside the heap.";
+	}
+	
+	public boolean getCacheDistances() {
+		return classifier.isCachingDistances();
+	}
+	
+	public void setCacheDistances(boolean cache) {
+		classifier.setCachingDistances(cache);
+	}
+	
+	public String hashTablesTipText() {
+		
+		return "The amount of hash tables of the approximate search, more tables find more of the true neighbours but compare more candidates.";
+	}
+	
+	public int getHashTables() {
+		return classifier.getHashTables();
+	}
+	
+	public void setHashTables(int tables) {
+		classifier.setHashTables(tables);
+	}
+	
+	public String hashesPerTableTipText() {
+		
+		return "The amount of hash functions per table of the approximate search, more functions compare less candidates but miss more true neighbours.";
+	}
+	
+	public int getHashesPerTable() {
+		return classifier.getHashesPerTable();
+	}
+	
+	public void setHashesPerTable(int hashes) {
+		classifier.setHashesPerTable(hashes);
+	}
+	
+	public String hashWidthTipText() {
+		
+		return "The bucket width of the approximate search relative to the mean distance between two training instances, wider buckets find more of the true neighbours but compare more candidates.";
+	}
+	
+	public double getHashWidth() {
+		return classifier.getHashWidth();
+	}
+	
+	public void setHashWidth(double width) {
+		classifier.setHashWidth(width);
+	}
+	
+	public String graphDegreeTipText() {
+		
+		return "The amount of links per node of the graph search (M), more links find more of the true neighbours but need more memory.";
+	}
+	
+	public int getGraphDegree() {
+		return classifier.getGraphDegree();
+	}
+	
+	public void setGraphDegree(int degree) {
+		classifier.setGraphDegree(degree);
+	}
+	
+	public String constructionBeamTipText() {
+		
+		return "The beam width building the graph (efConstruction), a wider beam builds a better graph in more time.";
+	}
+	
+	public int getConstructionBeam() {
+		return classifier.getConstructionBeam();
+	}
+	
+	public void setConstructionBeam(int beam) {
+		classifier.setConstructionBeam(beam);
+	}
+	
+	public String searchBeamTipText() {
+		
+		return "The beam width of a query on the graph (efSearch), a wider beam finds more of the true neighbours in more time.";
+	}
+	
+	public int getSearchBeam() {
+		return classifier.getSearchBeam();
+	}
+	
+	public void setSearchBeam(int beam) {
+		classifier.setSearchBeam(beam);
+	}
+	
+	public String numericStorageTipText() {
+		
+		return "The precision of the numeric values scanned by the linear search, floats and 16 or 8 bit codes read less memory but give approximate distances and make the model read-only.";
+	}
+	
+	public SelectedTag getNumericStorage() {
+		
+		return new SelectedTag(classifier.getNumericStorage(), TAGS_STORAGE);
+	}
+	
+	public void setNumericStorage(SelectedTag newMethod) {
+		
+		if (newMethod.getTags() == TAGS_STORAGE) {
+			classifier.setNumericStorage(newMethod.getSelectedTag().getID());
+		}
+	}
+	
+	public String rerankFactorTipText() {
+		
+		return "The amount of candidates per neighbour which are re-ranked with the exact distance after a compressed scan, 0 uses the approximate distances.";
+	}
+	
+	public int getRerankFactor() {
+		return classifier.getRerankFactor();
+	}
+	
+	public void setRerankFactor(int factor) {
+		classifier.setRerankFactor(factor);
+	}
+	
+	/**
+	 * Returns the memory the model holds outside the heap right away, the classifier has to be built again afterwards
+	 */
+	@Override
+	public void close() {
+		classifier.close();
+	}
 }